@@ -0,0 +1,82 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cost of checking a payId and turning it into the OP_RETURN script of a
+ * payment. Does not depend on the wallet.
+ * </p>
+ * <p>
+ * The legacy benchmarks repeat the regex and BigInteger code PayIdCodec
+ * replaced, for comparison.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayIdBenchmark {
+
+	// payId length in bytes, bitmark payIds are 48 bytes
+	@Param({"16", "48", "80"})
+	public int payIdBytes;
+
+	private final Pattern hexPattern = Pattern.compile("[0-9a-fA-F]+");
+	private String payId;
+
+	@Setup
+	public void setUp() {
+		byte[] bytes = new byte[payIdBytes];
+		new Random(1).nextBytes(bytes);
+		payId = Utils.HEX.encode(bytes);
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		return PayIdCodec.isValid(payId);
+	}
+
+	@Benchmark
+	public byte[] encodeScript() {
+		return PayIdCodec.encodeScript(payId);
+	}
+
+	@Benchmark
+	public boolean legacyCheckHex() {
+		return hexPattern.matcher(payId).matches();
+	}
+
+	// only correct for payIds of 16 bytes or more
+	@Benchmark
+	public Script legacyGenerateBitmarkScript() {
+		if (!hexPattern.matcher(payId).matches()) {
+			return null;
+		}
+		String scriptStr = "6a" + Integer.toHexString(payId.length() / 2) + payId;
+		return new Script(new BigInteger(scriptStr, 16).toByteArray());
+	}
+}
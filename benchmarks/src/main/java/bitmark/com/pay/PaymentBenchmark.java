@@ -0,0 +1,73 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cost of parsing the address/amount arguments of a pay command into the
+ * Payment list, as CommandProcessor does. Does not depend on the wallet.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentBenchmark {
+
+	@Param({"1", "16", "256"})
+	public int payments;
+
+	private CommandProcessor processor;
+	private String[] addresses;
+	private String[] amounts;
+
+	@Setup
+	public void setUp() throws Exception {
+		BitmarkWalletKit bitmarkWalletKit = new BitmarkWalletKit(NetType.LOCAL_BITCOIN_REG,
+									 Files.createTempDirectory("benchmark").toString(), null);
+		processor = new CommandProcessor(bitmarkWalletKit);
+		NetworkParameters params = bitmarkWalletKit.getWalletAppkit().params();
+		addresses = new String[payments];
+		amounts = new String[payments];
+		for (int i = 0; i < payments; i++) {
+			addresses[i] = new ECKey().toAddress(params).toString();
+			amounts[i] = Long.toString(10000 + i);
+		}
+	}
+
+	@Benchmark
+	public List<Payment> buildPayments() throws CommandException {
+		List<Payment> result = new ArrayList<Payment>(payments);
+		Coin needSatoshi = Coin.ZERO;
+		for (int i = 0; i < payments; i++) {
+			Payment p = processor.parsePayment(addresses[i], amounts[i]);
+			result.add(p);
+			needSatoshi = needSatoshi.add(p.amountSatoshi);
+		}
+		return result;
+	}
+}
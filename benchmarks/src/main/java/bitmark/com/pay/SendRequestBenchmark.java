@@ -0,0 +1,119 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * <p>
+ * Cost of completing the SendRequest of a payment the way
+ * BitmarkWalletKit.sendCoinsAsync() builds it: coin selection, fee and
+ * change, with and without signing the inputs.
+ * </p>
+ * <p>
+ * The transaction is never committed so every invocation sees the same
+ * wallet. An encrypted wallet signs with the key derived once in the
+ * setup, as CommandProcessor.checkPassword() does.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendRequestBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int utxos;
+
+	@Param({"false", "true"})
+	public boolean encrypted;
+
+	// bitcoinj's DefaultCoinSelector or the BitmarkCoinSelector of the kit
+	@Param({"default", "bitmark"})
+	public String selector;
+
+	private BitmarkWalletKit bitmarkWalletKit;
+	private NetworkParameters params;
+	private Wallet wallet;
+	private KeyParameter aesKey;
+	private Address target;
+	private Coin amount;
+	private String payId;
+
+	@Setup
+	public void setUp() throws Exception {
+		bitmarkWalletKit = new BitmarkWalletKit(NetType.LOCAL_BITCOIN_REG,
+							Files.createTempDirectory("benchmark").toString(), null);
+		params = bitmarkWalletKit.getWalletAppkit().params();
+		wallet = SyntheticWallet.create(params, utxos, encrypted);
+		if (encrypted) {
+			aesKey = wallet.getKeyCrypter().deriveKey(SyntheticWallet.PASSWORD);
+		}
+		target = new ECKey().toAddress(params);
+
+		// needs a few inputs, whatever the size of the wallet
+		amount = SyntheticWallet.OUTPUT_VALUE.multiply(3);
+
+		byte[] bytes = new byte[48];
+		new Random(1).nextBytes(bytes);
+		payId = Utils.HEX.encode(bytes);
+	}
+
+	private SendRequest request(boolean sign) {
+		Context.propagate(wallet.getContext());
+		SendRequest sendRequest = SendRequest.to(target, amount);
+		sendRequest.tx.addOutput(new TransactionOutput(params, sendRequest.tx, Coin.ZERO, PayIdCodec.encodeScript(payId)));
+		sendRequest.feePerKb = BitmarkWalletKit.DEFAULT_TX_FEE;
+		if (selector.equals("bitmark")) {
+			sendRequest.coinSelector = new BitmarkCoinSelector(wallet,
+									   BitmarkCoinSelector.DEFAULT_MAX_UNCONFIRMED_ANCESTORS);
+		}
+		sendRequest.aesKey = aesKey;
+		sendRequest.signInputs = sign;
+		return sendRequest;
+	}
+
+	@Benchmark
+	public Transaction completeUnsigned() throws InsufficientMoneyException {
+		SendRequest sendRequest = request(false);
+		wallet.completeTx(sendRequest);
+		return sendRequest.tx;
+	}
+
+	@Benchmark
+	public Transaction completeAndSign() throws InsufficientMoneyException {
+		SendRequest sendRequest = request(true);
+		wallet.completeTx(sendRequest);
+		return sendRequest.tx;
+	}
+}
@@ -0,0 +1,135 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Time to add a long regtest chain to a new block chain, with the
+ * BitmarkRegTestParams difficulty check and with the store walk it
+ * replaced.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyncBenchmark {
+
+	/**
+	 * <p>
+	 * The check before the ancestor cache: walk getInterval() - 1 blocks
+	 * back through the store for every block. It stops at genesis as the
+	 * current check does, or no chain could be synced from genesis.
+	 * </p>
+	 */
+	public static class LegacyRegTestParams extends BitmarkRegTestParams {
+		@Override
+		public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
+				throws VerificationException, BlockStoreException {
+			StoredBlock cursor = blockStore.get(storedPrev.getHeader().getHash());
+			for (int i = 0; i < this.getInterval() - 1; i++) {
+				if (cursor == null) {
+					throw new VerificationException(
+							"Difficulty transition point but we did not find a way back to the genesis block.");
+				}
+				if (cursor.getHeight() == 0) {
+					break;
+				}
+				cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+			}
+		}
+	}
+
+	@Param({"10000"})
+	public int blocks;
+
+	@Param({"legacy", "cached"})
+	public String check;
+
+	@Param({"memory", "spv"})
+	public String store;
+
+	private List<Block> chainBlocks;
+	private BlockStore blockStore;
+	private BlockChain chain;
+	private File storeFile;
+
+	@Setup(Level.Trial)
+	public void mine() throws Exception {
+		BitmarkRegTestParams params = new BitmarkRegTestParams();
+		Context.propagate(new Context(params));
+		BlockChain miner = new BlockChain(params, new MemoryBlockStore(params));
+		Address to = new ECKey().toAddress(params);
+		chainBlocks = new ArrayList<Block>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			Block block = miner.getChainHead().getHeader().createNextBlock(to);
+			miner.add(block);
+			chainBlocks.add(block);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		// a new instance each time, so nothing is remembered
+		BitmarkRegTestParams params = check.equals("legacy") ? new LegacyRegTestParams() : new BitmarkRegTestParams();
+		Context.propagate(new Context(params));
+		if (store.equals("spv")) {
+			storeFile = File.createTempFile("sync", ".spvchain");
+			storeFile.delete();
+			blockStore = new SPVBlockStore(params, storeFile);
+		} else {
+			blockStore = new MemoryBlockStore(params);
+		}
+		chain = new BlockChain(params, blockStore);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		blockStore.close();
+		if (storeFile != null) {
+			storeFile.delete();
+		}
+	}
+
+	@Benchmark
+	public int sync() throws Exception {
+		for (Block block : chainBlocks) {
+			chain.add(block);
+		}
+		return chain.getBestChainHeight();
+	}
+}
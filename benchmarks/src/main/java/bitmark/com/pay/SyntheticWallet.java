@@ -0,0 +1,78 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+
+/**
+ * <p>
+ * Wallets holding a given number of confirmed outputs, built without a
+ * block chain so the benchmarks only measure the wallet.
+ * </p>
+ */
+public class SyntheticWallet {
+
+	// outputs per funding transaction
+	private static final int OUTPUTS_PER_TX = 1000;
+
+	// value of the first output, each next one is a satoshi more
+	public static final Coin OUTPUT_VALUE = Coin.valueOf(100000);
+
+	public static final String PASSWORD = "benchmark-password";
+
+	private SyntheticWallet() {
+	}
+
+	/**
+	 * <p>
+	 * Create a wallet with confirmed outputs to its first receive address.
+	 * </p>
+	 *
+	 * @param params
+	 *            network of the wallet
+	 * @param outputs
+	 *            number of unspent outputs
+	 * @param encrypted
+	 *            encrypt the wallet with PASSWORD
+	 * @return the wallet
+	 */
+	public static Wallet create(NetworkParameters params, int outputs, boolean encrypted) {
+		Context.propagate(new Context(params));
+		Wallet wallet = new Wallet(params);
+		Address address = wallet.currentReceiveAddress();
+
+		int funded = 0;
+		int txCount = 0;
+		while (funded < outputs) {
+			Transaction tx = new Transaction(params);
+			// unrelated outpoint, the wallet does not check where funds come from
+			tx.addInput(new TransactionInput(params, tx, new byte[] {},
+							 new TransactionOutPoint(params, 0, Sha256Hash.of(Integer.toString(txCount).getBytes()))));
+			int count = Math.min(OUTPUTS_PER_TX, outputs - funded);
+			for (int i = 0; i < count; i++) {
+				tx.addOutput(OUTPUT_VALUE.add(Coin.valueOf(funded + i)), address);
+			}
+			tx.getConfidence().setAppearedAtChainHeight(1);
+			tx.getConfidence().setDepthInBlocks(6);
+			wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+			funded += count;
+			txCount += 1;
+		}
+
+		if (encrypted) {
+			wallet.encrypt(PASSWORD);
+		}
+		return wallet;
+	}
+}
@@ -1,20 +1,27 @@
 package bitmark.com.config;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.FileSystems;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.bitcoinj.core.Transaction;
 
-import org.bitcoinj.core.PeerAddress;
+import com.google.common.net.InetAddresses;
+
+import bitmark.com.pay.BitmarkWalletKit;
+import bitmark.com.pay.KitDefaults;
+import bitmark.com.pay.WalletArchive;
 
 public class BitmarkConfigReader {
 
@@ -23,7 +30,62 @@ public class BitmarkConfigReader {
 	// files from src/main/resources/*.xml are embedded in the jar
 	private boolean defaultConfiguration = true;
 
-	private List<PeerAddress> bitcoinPeers;
+	private List<InetSocketAddress> bitcoinPeers;
+
+	// peers to connect to, 0 for all of them
+	private int maxConnections;
+
+	// msec to wait for a peer to answer
+	private int connectTimeout;
+
+	// connected peers a broadcast waits for, 0 for the bitcoinj default
+	private int broadcastConnections;
+
+	// bloom filter false positive rate, higher hides the wallet better
+	// but makes peers send more transactions
+	private double falsePositiveRate;
+
+	// msec to merge filter recalculations over, 0 for none
+	private int recalculateDelay;
+
+	// fee policy: static or estimate, the static rate and the starting
+	// rate of the estimate in satoshi per kB, blocks the estimate aims
+	// for and the clamp, max 0 for none
+	private String feePolicy;
+	private long feePerKb;
+	private int feeTargetBlocks;
+	private long minFeePerKb;
+	private long maxFeePerKb;
+
+	// msec from a wallet change to the save of the wallet file
+	private int autosaveDelay;
+
+	// archive the spent transactions this deep on start, 0 for never
+	private int archiveDepth;
+
+	// names of the wallets hosted beside the network wallet
+	private List<String> hostedWallets;
+
+	// pending transactions a payment may depend on
+	private int maxUnconfirmedAncestors;
+
+	// outputs of utxoPoolAmount kept for parallel payments, 0 for none
+	private int utxoPoolCount;
+	private long utxoPoolAmount;
+
+	// local port for the daemon, 0 lets the system choose one
+	private int daemonPort;
+
+	// seconds between metrics log lines, 0 for none
+	private int metricsInterval;
+
+	// checkpoints file, relative to the configuration directory
+	private String checkpoints;
+
+	// block store: spv, full or memory
+	private String blockStoreType;
+	private int blockStoreCapacity;
+	private boolean blockStorePreallocate;
 
 	public BitmarkConfigReader(String file) throws Exception {
 		Configurations configs = new Configurations();
@@ -32,11 +94,14 @@ public class BitmarkConfigReader {
 		}
 
 		try {
-			try {
-				XMLConfiguration config = configs.xml(file);
-				bitcoinPeers = parseBitCoinPeers(config);
+			// only a missing or unreadable file falls back to the default,
+			// an invalid setting in the file is an error
+			File configFile = new File(file);
+			if (configFile.isFile() && configFile.canRead()) {
+				XMLConfiguration config = configs.xml(configFile);
+				parse(config);
 				defaultConfiguration = false;
-			} catch (ConfigurationException e) {
+			} else {
 
 				String path = FileSystems.getDefault().getPath(file).getFileName().toString();
 				URL defaultFile = getClass().getClassLoader().getResource(path);
@@ -44,7 +109,7 @@ public class BitmarkConfigReader {
 				//System.err.printf("read configuration from default: %s\n", defaultFile);
 
 				XMLConfiguration config = configs.xml(defaultFile);
-				bitcoinPeers = parseBitCoinPeers(config);
+				parse(config);
 
 			}
 		} catch (ConfigurationException e) {
@@ -53,45 +118,196 @@ public class BitmarkConfigReader {
 		}
 	}
 
-	private List<PeerAddress> parseBitCoinPeers(XMLConfiguration config) throws Exception {
+	private void parse(XMLConfiguration config) throws Exception {
+		bitcoinPeers = parseBitCoinPeers(config);
+		maxConnections = config.getInt("bitcoin.max_connections", 0);
+		connectTimeout = config.getInt("bitcoin.connect_timeout", 5000);
+		broadcastConnections = config.getInt("bitcoin.broadcast_connections", 0);
+		if (maxConnections < 0 || connectTimeout <= 0 || broadcastConnections < 0) {
+			throw new ConfigurationException("bitcoin max_connections: " + maxConnections + " connect_timeout: "
+					+ connectTimeout + " broadcast_connections: " + broadcastConnections + " out of range");
+		}
+		falsePositiveRate = config.getDouble("bitcoin.bloom_filter.false_positive_rate", 0.00001);
+		recalculateDelay = config.getInt("bitcoin.bloom_filter.recalculate_delay", 0);
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1 || recalculateDelay < 0) {
+			throw new ConfigurationException("bitcoin bloom_filter false_positive_rate: " + falsePositiveRate
+					+ " recalculate_delay: " + recalculateDelay + " out of range");
+		}
+		feePolicy = config.getString("fee.policy", "static").toLowerCase();
+		if (!Arrays.asList("static", "estimate").contains(feePolicy)) {
+			throw new ConfigurationException("fee policy: " + feePolicy + " is not static or estimate");
+		}
+		feePerKb = config.getLong("fee.fee_per_kb", 100000);
+		feeTargetBlocks = config.getInt("fee.target_blocks", 6);
+		minFeePerKb = config.getLong("fee.min_fee_per_kb", 5000);
+		maxFeePerKb = config.getLong("fee.max_fee_per_kb", 0);
+		if (feePerKb <= 0 || feeTargetBlocks < 1 || minFeePerKb < 0 || maxFeePerKb < 0
+				|| (maxFeePerKb > 0 && minFeePerKb > maxFeePerKb)) {
+			throw new ConfigurationException("fee fee_per_kb: " + feePerKb + " target_blocks: " + feeTargetBlocks
+					+ " min_fee_per_kb: " + minFeePerKb + " max_fee_per_kb: " + maxFeePerKb + " out of range");
+		}
+		autosaveDelay = config.getInt("wallet.autosave_delay", 5000);
+		if (autosaveDelay < 0) {
+			throw new ConfigurationException("wallet autosave_delay: " + autosaveDelay + " is negative");
+		}
+		archiveDepth = config.getInt("wallet.archive_depth", 0);
+		if (archiveDepth != 0 && archiveDepth < WalletArchive.MIN_DEPTH) {
+			throw new ConfigurationException("wallet archive_depth: " + archiveDepth + " is below " + WalletArchive.MIN_DEPTH);
+		}
+		hostedWallets = new ArrayList<String>();
+		List<String> names = config.getList(String.class, "wallet.hosted.name");
+		if (names != null) {
+			for (String name : names) {
+				name = name.trim();
+				if (!KitDefaults.isHostedName(name) || hostedWallets.contains(name)) {
+					throw new ConfigurationException("wallet hosted name: '" + name + "' is invalid or repeated");
+				}
+				hostedWallets.add(name);
+			}
+		}
+		maxUnconfirmedAncestors = config.getInt("coin_selection.max_unconfirmed_ancestors", 10);
+		if (maxUnconfirmedAncestors < 0) {
+			throw new ConfigurationException("coin_selection max_unconfirmed_ancestors: " + maxUnconfirmedAncestors
+					+ " is negative");
+		}
+		utxoPoolCount = config.getInt("utxo_pool.count", 0);
+		utxoPoolAmount = config.getLong("utxo_pool.amount", 0);
+		if (utxoPoolCount < 0 || utxoPoolCount > BitmarkWalletKit.MAX_SPLIT_OUTPUTS
+				|| (utxoPoolCount > 0 && utxoPoolAmount < Transaction.MIN_NONDUST_OUTPUT.value)) {
+			throw new ConfigurationException("utxo_pool count: " + utxoPoolCount + " amount: " + utxoPoolAmount
+					+ " out of range");
+		}
+		daemonPort = config.getInt("daemon.port", 0);
+		checkpoints = config.getString("checkpoints", null);
+		metricsInterval = config.getInt("metrics.interval", 60);
+		blockStoreType = config.getString("block_store.type", "spv").toLowerCase();
+		if (!Arrays.asList("spv", "full", "memory").contains(blockStoreType)) {
+			throw new ConfigurationException("block_store type: " + blockStoreType + " is not spv, full or memory");
+		}
+		blockStoreCapacity = config.getInt("block_store.capacity", 5000);
+		if (blockStoreCapacity <= 0) {
+			throw new ConfigurationException("block_store capacity: " + blockStoreCapacity + " is not positive");
+		}
+		blockStorePreallocate = config.getBoolean("block_store.preallocate", false);
+	}
+
+	// an IPv4 or IPv6 literal is used as is, a host name is resolved when
+	// the peers are probed so an offline command does no lookup
+	private List<InetSocketAddress> parseBitCoinPeers(XMLConfiguration config) throws Exception {
 		List<String> peers = config.getList(String.class, "bitcoin.peers.ip");
 		if (peers == null || peers.size() == 0) {
 			return null;
 		}
 
-		List<Integer> ports = config.getList(Integer.class, "bitcoin.peers.ip[@port]");
-
-		List<PeerAddress> peerAddresses = new ArrayList<PeerAddress>();
+		List<InetSocketAddress> peerAddresses = new ArrayList<InetSocketAddress>();
 		for (int i = 0; i < peers.size(); i++) {
-			byte[] address = convertToInetAddress(peers.get(i));
-			try {
-				InetAddress tmpAddr = InetAddress.getByAddress(address);
-				peerAddresses.add(new PeerAddress(tmpAddr, ports.get(i)));
-			} catch (IOException e) {
-				//System.err.printf("Failed to convert address: %s\n", e);
-				throw e;
+			String host = peers.get(i).trim();
+			if (host.startsWith("[") && host.endsWith("]")) {
+				host = host.substring(1, host.length() - 1);
+			}
+			int port = config.getInt("bitcoin.peers.ip(" + i + ")[@port]", -1);
+			if (host.isEmpty() || port <= 0 || port > 0xffff) {
+				throw new ConfigurationException("Incorrect peer: '" + peers.get(i) + "' port: " + port);
+			}
+			if (InetAddresses.isInetAddress(host)) {
+				peerAddresses.add(new InetSocketAddress(InetAddresses.forString(host), port));
+			} else {
+				peerAddresses.add(InetSocketAddress.createUnresolved(host, port));
 			}
 		}
 		return peerAddresses;
 	}
 
-	private byte[] convertToInetAddress(String address) throws Exception {
-		byte[] byteAddr = new byte[4];
-		String[] tmpAddr = address.split("\\.");
-		if (tmpAddr.length != 4) {
-			String msg = "Incorrect address format: " + address;
-			//System.err.println(msg);
-			throw new Exception(msg);
-		}
+	public List<InetSocketAddress> getBitcoinPeers() {
+		return bitcoinPeers;
+	}
 
-		for (int i = 0; i < tmpAddr.length; i++) {
-			byteAddr[i] = Integer.valueOf(tmpAddr[i]).byteValue();
-		}
-		return byteAddr;
+	public int getMaxConnections() {
+		return maxConnections;
 	}
 
-	public List<PeerAddress> getBitcoinPeers() {
-		return bitcoinPeers;
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getBroadcastConnections() {
+		return broadcastConnections;
+	}
+
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	public int getRecalculateDelay() {
+		return recalculateDelay;
+	}
+
+	public int getAutosaveDelay() {
+		return autosaveDelay;
+	}
+
+	public int getArchiveDepth() {
+		return archiveDepth;
+	}
+
+	public List<String> getHostedWallets() {
+		return hostedWallets;
+	}
+
+	public String getFeePolicy() {
+		return feePolicy;
+	}
+
+	public long getFeePerKb() {
+		return feePerKb;
+	}
+
+	public int getFeeTargetBlocks() {
+		return feeTargetBlocks;
+	}
+
+	public long getMinFeePerKb() {
+		return minFeePerKb;
+	}
+
+	public long getMaxFeePerKb() {
+		return maxFeePerKb;
+	}
+
+	public int getMaxUnconfirmedAncestors() {
+		return maxUnconfirmedAncestors;
+	}
+
+	public int getUtxoPoolCount() {
+		return utxoPoolCount;
+	}
+
+	public long getUtxoPoolAmount() {
+		return utxoPoolAmount;
+	}
+
+	public int getDaemonPort() {
+		return daemonPort;
+	}
+
+	public int getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	public String getCheckpoints() {
+		return checkpoints;
+	}
+
+	public String getBlockStoreType() {
+		return blockStoreType;
+	}
+
+	public int getBlockStoreCapacity() {
+		return blockStoreCapacity;
+	}
+
+	public boolean getBlockStorePreallocate() {
+		return blockStorePreallocate;
 	}
 
 	public boolean isDefault() {
@@ -6,4 +6,8 @@ public class AddressJsonResponse {
 	public AddressJsonResponse(String address) {
 		this.address = address;
 	}
+
+	public String getAddress() {
+		return address;
+	}
 }
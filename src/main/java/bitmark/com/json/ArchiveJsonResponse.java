@@ -0,0 +1,25 @@
+package bitmark.com.json;
+
+public class ArchiveJsonResponse {
+	private Integer depth;
+	private Integer archived;
+	private String archiveFile;
+
+	public ArchiveJsonResponse(Integer depth, Integer archived, String archiveFile) {
+		this.depth = depth;
+		this.archived = archived;
+		this.archiveFile = archiveFile;
+	}
+
+	public Integer getDepth() {
+		return depth;
+	}
+
+	public Integer getArchived() {
+		return archived;
+	}
+
+	public String getArchiveFile() {
+		return archiveFile;
+	}
+}
@@ -0,0 +1,53 @@
+package bitmark.com.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArchivedJsonResponse {
+
+	public static class ArchivedTx {
+		private String txId;
+		private String payId;
+		private Integer height;
+		private Long time;
+		private String tx;
+
+		public ArchivedTx(String txId, String payId, Integer height, Long time, String tx) {
+			this.txId = txId;
+			this.payId = payId;
+			this.height = height;
+			this.time = time;
+			this.tx = tx;
+		}
+
+		public String getTxId() {
+			return txId;
+		}
+
+		public String getPayId() {
+			return payId;
+		}
+
+		public Integer getHeight() {
+			return height;
+		}
+
+		public Long getTime() {
+			return time;
+		}
+
+		public String getTx() {
+			return tx;
+		}
+	}
+
+	private List<ArchivedTx> transactions = new ArrayList<ArchivedTx>();
+
+	public void addTransaction(ArchivedTx tx) {
+		transactions.add(tx);
+	}
+
+	public List<ArchivedTx> getTransactions() {
+		return transactions;
+	}
+}
@@ -3,9 +3,49 @@ package bitmark.com.json;
 public class BalanceJsonResponse {
 	private Long estimated;
 	private Long available;
+	private Integer lastBlockHeight;
+	private Long lastBlockTime;
+	private Boolean offline;
+	private Long snapshotTime;
 
 	public BalanceJsonResponse(Long estimated, Long available) {
 		this.estimated = estimated;
 		this.available = available;
 	}
+
+	public void setLastBlock(Integer height, Long time, boolean offline) {
+		this.lastBlockHeight = height;
+		this.lastBlockTime = time;
+		if (offline) {
+			this.offline = true;
+		}
+	}
+
+	public void setSnapshotTime(Long snapshotTime) {
+		this.snapshotTime = snapshotTime;
+	}
+
+	public Long getSnapshotTime() {
+		return snapshotTime;
+	}
+
+	public Integer getLastBlockHeight() {
+		return lastBlockHeight;
+	}
+
+	public Long getLastBlockTime() {
+		return lastBlockTime;
+	}
+
+	public boolean isOffline() {
+		return offline != null && offline;
+	}
+
+	public Long getEstimated() {
+		return estimated;
+	}
+
+	public Long getAvailable() {
+		return available;
+	}
 }
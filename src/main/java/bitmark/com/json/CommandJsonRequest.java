@@ -0,0 +1,43 @@
+package bitmark.com.json;
+
+import java.util.List;
+import java.util.Map;
+
+public class CommandJsonRequest {
+	private String command;
+	private List<String> args;
+	private Map<String, String> options;
+	private String password;
+	private String token;
+
+	public CommandJsonRequest(String command, List<String> args, Map<String, String> options, String password) {
+		this.command = command;
+		this.args = args;
+		this.options = options;
+		this.password = password;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public List<String> getArgs() {
+		return args;
+	}
+
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public String getToken() {
+		return token;
+	}
+}
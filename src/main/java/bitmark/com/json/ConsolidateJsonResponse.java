@@ -0,0 +1,131 @@
+package bitmark.com.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConsolidateJsonResponse {
+
+	public static class ConsolidateTx {
+		private String txId;
+		private Integer inputs;
+		private Long value;
+		private Integer estimatedSize;
+		private Long fee;
+		private Long bytesSaved;
+		private Long breakEvenFeePerKb;
+		private Long savings;
+
+		public ConsolidateTx(String txId, Integer inputs, Long value, Integer estimatedSize, Long fee, Long bytesSaved,
+				Long breakEvenFeePerKb, Long savings) {
+			this.txId = txId;
+			this.inputs = inputs;
+			this.value = value;
+			this.estimatedSize = estimatedSize;
+			this.fee = fee;
+			this.bytesSaved = bytesSaved;
+			this.breakEvenFeePerKb = breakEvenFeePerKb;
+			this.savings = savings;
+		}
+
+		public String getTxId() {
+			return txId;
+		}
+
+		public Integer getInputs() {
+			return inputs;
+		}
+
+		public Long getValue() {
+			return value;
+		}
+
+		public Integer getEstimatedSize() {
+			return estimatedSize;
+		}
+
+		public Long getFee() {
+			return fee;
+		}
+
+		public Long getBytesSaved() {
+			return bytesSaved;
+		}
+
+		public Long getBreakEvenFeePerKb() {
+			return breakEvenFeePerKb;
+		}
+
+		public Long getSavings() {
+			return savings;
+		}
+	}
+
+	private Boolean dryRun;
+	private Long threshold;
+	private Long feePerKb;
+	private Long laterFeePerKb;
+	private List<ConsolidateTx> transactions = new ArrayList<ConsolidateTx>();
+
+	public ConsolidateJsonResponse(Boolean dryRun, Long threshold, Long feePerKb, Long laterFeePerKb) {
+		this.dryRun = dryRun;
+		this.threshold = threshold;
+		this.feePerKb = feePerKb;
+		this.laterFeePerKb = laterFeePerKb;
+	}
+
+	public void addTransaction(ConsolidateTx tx) {
+		transactions.add(tx);
+	}
+
+	public Boolean isDryRun() {
+		return dryRun;
+	}
+
+	public Long getThreshold() {
+		return threshold;
+	}
+
+	public Long getFeePerKb() {
+		return feePerKb;
+	}
+
+	public Long getLaterFeePerKb() {
+		return laterFeePerKb;
+	}
+
+	public List<ConsolidateTx> getTransactions() {
+		return transactions;
+	}
+
+	public long getInputs() {
+		long inputs = 0;
+		for (ConsolidateTx tx : transactions) {
+			inputs += tx.getInputs();
+		}
+		return inputs;
+	}
+
+	public long getFee() {
+		long fee = 0;
+		for (ConsolidateTx tx : transactions) {
+			fee += tx.getFee();
+		}
+		return fee;
+	}
+
+	public long getBytesSaved() {
+		long bytes = 0;
+		for (ConsolidateTx tx : transactions) {
+			bytes += tx.getBytesSaved();
+		}
+		return bytes;
+	}
+
+	public long getSavings() {
+		long savings = 0;
+		for (ConsolidateTx tx : transactions) {
+			savings += tx.getSavings();
+		}
+		return savings;
+	}
+}
@@ -0,0 +1,21 @@
+package bitmark.com.json;
+
+public class ErrorJsonResponse {
+	private String error;
+	private Boolean passwordRequired;
+
+	public ErrorJsonResponse(String error, boolean passwordRequired) {
+		this.error = error;
+		if (passwordRequired) {
+			this.passwordRequired = true;
+		}
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public boolean isPasswordRequired() {
+		return passwordRequired != null && passwordRequired;
+	}
+}
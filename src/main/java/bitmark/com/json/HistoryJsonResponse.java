@@ -0,0 +1,117 @@
+package bitmark.com.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistoryJsonResponse {
+
+	public static class HistoryOutput {
+		private String address;
+		private Long value;
+		private Boolean mine;
+
+		public HistoryOutput(String address, Long value, Boolean mine) {
+			this.address = address;
+			this.value = value;
+			this.mine = mine;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public Long getValue() {
+			return value;
+		}
+
+		public Boolean isMine() {
+			return mine;
+		}
+	}
+
+	public static class HistoryTx {
+		private String txId;
+		private String payId;
+		private Integer height;
+		private Integer depth;
+		private Long time;
+		private String confidence;
+		private Long value;
+		private Long fee;
+		private List<HistoryOutput> outputs = new ArrayList<HistoryOutput>();
+
+		public HistoryTx(String txId, Integer height, Integer depth, Long time, String confidence, Long value,
+				Long fee) {
+			this.txId = txId;
+			this.height = height;
+			this.depth = depth;
+			this.time = time;
+			this.confidence = confidence;
+			this.value = value;
+			this.fee = fee;
+		}
+
+		public void setPayId(String payId) {
+			this.payId = payId;
+		}
+
+		public void addOutput(HistoryOutput output) {
+			outputs.add(output);
+		}
+
+		public String getTxId() {
+			return txId;
+		}
+
+		public String getPayId() {
+			return payId;
+		}
+
+		public Integer getHeight() {
+			return height;
+		}
+
+		public Integer getDepth() {
+			return depth;
+		}
+
+		public Long getTime() {
+			return time;
+		}
+
+		public String getConfidence() {
+			return confidence;
+		}
+
+		public Long getValue() {
+			return value;
+		}
+
+		public Long getFee() {
+			return fee;
+		}
+
+		public List<HistoryOutput> getOutputs() {
+			return outputs;
+		}
+	}
+
+	private List<HistoryTx> transactions = new ArrayList<HistoryTx>();
+	private String next;
+
+	public void addTransaction(HistoryTx tx) {
+		transactions.add(tx);
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+	public List<HistoryTx> getTransactions() {
+		return transactions;
+	}
+
+	public String getNext() {
+		return next;
+	}
+}
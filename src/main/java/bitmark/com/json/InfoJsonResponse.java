@@ -5,10 +5,50 @@ import bitmark.com.json.BalanceJsonResponse;
 public class InfoJsonResponse {
 	private BalanceJsonResponse balance;
 	private String address;
+	private Integer lastBlockHeight;
+	private Long lastBlockTime;
+	private Boolean offline;
+	private Long snapshotTime;
 
 	public InfoJsonResponse(Long estimated, Long available, String address) {
 		this.balance = new BalanceJsonResponse(estimated, available);
 		this.address = address;
 	}
 
+	public void setLastBlock(Integer height, Long time, boolean offline) {
+		this.lastBlockHeight = height;
+		this.lastBlockTime = time;
+		if (offline) {
+			this.offline = true;
+		}
+	}
+
+	public void setSnapshotTime(Long snapshotTime) {
+		this.snapshotTime = snapshotTime;
+	}
+
+	public Long getSnapshotTime() {
+		return snapshotTime;
+	}
+
+	public Integer getLastBlockHeight() {
+		return lastBlockHeight;
+	}
+
+	public Long getLastBlockTime() {
+		return lastBlockTime;
+	}
+
+	public boolean isOffline() {
+		return offline != null && offline;
+	}
+
+	public BalanceJsonResponse getBalance() {
+		return balance;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
 }
@@ -0,0 +1,39 @@
+package bitmark.com.json;
+
+import java.util.List;
+
+public class PayJsonRequest {
+	private String payId;
+	private List<Output> outputs;
+
+	public static class Output {
+		private String address;
+		private Long amount;
+
+		public Output(String address, Long amount) {
+			this.address = address;
+			this.amount = amount;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public Long getAmount() {
+			return amount;
+		}
+	}
+
+	public PayJsonRequest(String payId, List<Output> outputs) {
+		this.payId = payId;
+		this.outputs = outputs;
+	}
+
+	public String getPayId() {
+		return payId;
+	}
+
+	public List<Output> getOutputs() {
+		return outputs;
+	}
+}
@@ -0,0 +1,26 @@
+package bitmark.com.json;
+
+public class PayResultJsonResponse extends TxIdJsonResponse {
+	private Integer record;
+	private String payId;
+	private String error;
+
+	public PayResultJsonResponse(Integer record, String payId, String txId, Long feePerKb, Long fee, String error) {
+		super(txId, feePerKb, fee);
+		this.record = record;
+		this.payId = payId;
+		this.error = error;
+	}
+
+	public Integer getRecord() {
+		return record;
+	}
+
+	public String getPayId() {
+		return payId;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
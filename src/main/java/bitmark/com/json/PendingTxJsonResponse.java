@@ -0,0 +1,15 @@
+package bitmark.com.json;
+
+import java.util.List;
+
+public class PendingTxJsonResponse {
+	private List<String> pending;
+
+	public PendingTxJsonResponse(List<String> pending) {
+		this.pending = pending;
+	}
+
+	public List<String> getPending() {
+		return pending;
+	}
+}
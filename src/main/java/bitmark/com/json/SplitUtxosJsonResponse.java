@@ -0,0 +1,26 @@
+package bitmark.com.json;
+
+public class SplitUtxosJsonResponse extends TxIdJsonResponse {
+	private Integer outputs;
+	private Long amount;
+	private Integer poolSize;
+
+	public SplitUtxosJsonResponse(String txId, Long feePerKb, Long fee, Integer outputs, Long amount, Integer poolSize) {
+		super(txId, feePerKb, fee);
+		this.outputs = outputs;
+		this.amount = amount;
+		this.poolSize = poolSize;
+	}
+
+	public Integer getOutputs() {
+		return outputs;
+	}
+
+	public Long getAmount() {
+		return amount;
+	}
+
+	public Integer getPoolSize() {
+		return poolSize;
+	}
+}
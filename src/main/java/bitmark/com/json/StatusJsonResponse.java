@@ -0,0 +1,259 @@
+package bitmark.com.json;
+
+import java.util.List;
+import java.util.Map;
+
+public class StatusJsonResponse {
+
+	public static class PeerStatus {
+		private String address;
+		private Long pingMsec;
+		private Long lastPingMsec;
+		private Long bestHeight;
+		private String userAgent;
+
+		public PeerStatus(String address, Long pingMsec, Long lastPingMsec, Long bestHeight, String userAgent) {
+			this.address = address;
+			this.pingMsec = pingMsec;
+			this.lastPingMsec = lastPingMsec;
+			this.bestHeight = bestHeight;
+			this.userAgent = userAgent;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public Long getPingMsec() {
+			return pingMsec;
+		}
+
+		public Long getLastPingMsec() {
+			return lastPingMsec;
+		}
+
+		public Long getBestHeight() {
+			return bestHeight;
+		}
+
+		public String getUserAgent() {
+			return userAgent;
+		}
+	}
+
+	private String state;
+	private Long uptimeSeconds;
+
+	// startup phases, milliseconds after the kit was started
+	private Long walletLoadedMsec;
+	private Long firstPeerMsec;
+	private Long syncedMsec;
+
+	private Integer chainHeight;
+	private Integer peersHeight;
+	private Integer headersRemaining;
+	private Long blocksDownloaded;
+	private Double blocksPerSecond;
+
+	private List<PeerStatus> peers;
+	private Map<String, Long> filterRecalculations;
+	private Long filterRecalculationsMerged;
+
+	private Double filterFalsePositiveRate;
+	private Double filterFalsePositiveEstimate;
+	private Long filterTransactions;
+	private Long filterMatched;
+	private Long filterFalsePositives;
+
+	private Long broadcasts;
+	private Long broadcastsAcknowledged;
+	private Long broadcastsFailed;
+	private Long lastAcknowledgeMsec;
+	private Integer outbox;
+
+	private Long walletSaves;
+	private Long walletSavesMerged;
+	private Long walletSavesFailed;
+	private Long lastWalletSaveMsec;
+	private Long maxWalletSaveMsec;
+	private Long walletFileBytes;
+
+	public void setState(String state, Long uptimeSeconds) {
+		this.state = state;
+		this.uptimeSeconds = uptimeSeconds;
+	}
+
+	public void setStartup(Long walletLoadedMsec, Long firstPeerMsec, Long syncedMsec) {
+		this.walletLoadedMsec = walletLoadedMsec;
+		this.firstPeerMsec = firstPeerMsec;
+		this.syncedMsec = syncedMsec;
+	}
+
+	public void setSync(Integer chainHeight, Integer peersHeight, Integer headersRemaining,
+			    Long blocksDownloaded, Double blocksPerSecond) {
+		this.chainHeight = chainHeight;
+		this.peersHeight = peersHeight;
+		this.headersRemaining = headersRemaining;
+		this.blocksDownloaded = blocksDownloaded;
+		this.blocksPerSecond = blocksPerSecond;
+	}
+
+	public void setPeers(List<PeerStatus> peers) {
+		this.peers = peers;
+	}
+
+	public void setFilterRecalculations(Map<String, Long> filterRecalculations) {
+		this.filterRecalculations = filterRecalculations;
+	}
+
+	public void setFilterRecalculationsMerged(Long filterRecalculationsMerged) {
+		this.filterRecalculationsMerged = filterRecalculationsMerged;
+	}
+
+	public void setFilter(Double filterFalsePositiveRate, Double filterFalsePositiveEstimate, Long filterTransactions,
+			      Long filterMatched, Long filterFalsePositives) {
+		this.filterFalsePositiveRate = filterFalsePositiveRate;
+		this.filterFalsePositiveEstimate = filterFalsePositiveEstimate;
+		this.filterTransactions = filterTransactions;
+		this.filterMatched = filterMatched;
+		this.filterFalsePositives = filterFalsePositives;
+	}
+
+	public void setBroadcasts(Long broadcasts, Long broadcastsAcknowledged, Long broadcastsFailed,
+				  Long lastAcknowledgeMsec) {
+		this.broadcasts = broadcasts;
+		this.broadcastsAcknowledged = broadcastsAcknowledged;
+		this.broadcastsFailed = broadcastsFailed;
+		this.lastAcknowledgeMsec = lastAcknowledgeMsec;
+	}
+
+	public void setOutbox(Integer outbox) {
+		this.outbox = outbox;
+	}
+
+	public void setWalletSaves(Long walletSaves, Long walletSavesMerged, Long walletSavesFailed,
+				   Long lastWalletSaveMsec, Long maxWalletSaveMsec, Long walletFileBytes) {
+		this.walletSaves = walletSaves;
+		this.walletSavesMerged = walletSavesMerged;
+		this.walletSavesFailed = walletSavesFailed;
+		this.lastWalletSaveMsec = lastWalletSaveMsec;
+		this.maxWalletSaveMsec = maxWalletSaveMsec;
+		this.walletFileBytes = walletFileBytes;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public Long getUptimeSeconds() {
+		return uptimeSeconds;
+	}
+
+	public Long getWalletLoadedMsec() {
+		return walletLoadedMsec;
+	}
+
+	public Long getFirstPeerMsec() {
+		return firstPeerMsec;
+	}
+
+	public Long getSyncedMsec() {
+		return syncedMsec;
+	}
+
+	public Integer getChainHeight() {
+		return chainHeight;
+	}
+
+	public Integer getPeersHeight() {
+		return peersHeight;
+	}
+
+	public Integer getHeadersRemaining() {
+		return headersRemaining;
+	}
+
+	public Long getBlocksDownloaded() {
+		return blocksDownloaded;
+	}
+
+	public Double getBlocksPerSecond() {
+		return blocksPerSecond;
+	}
+
+	public List<PeerStatus> getPeers() {
+		return peers;
+	}
+
+	public Map<String, Long> getFilterRecalculations() {
+		return filterRecalculations;
+	}
+
+	public Long getFilterRecalculationsMerged() {
+		return filterRecalculationsMerged;
+	}
+
+	public Double getFilterFalsePositiveRate() {
+		return filterFalsePositiveRate;
+	}
+
+	public Double getFilterFalsePositiveEstimate() {
+		return filterFalsePositiveEstimate;
+	}
+
+	public Long getFilterTransactions() {
+		return filterTransactions;
+	}
+
+	public Long getFilterMatched() {
+		return filterMatched;
+	}
+
+	public Long getFilterFalsePositives() {
+		return filterFalsePositives;
+	}
+
+	public Long getBroadcasts() {
+		return broadcasts;
+	}
+
+	public Long getBroadcastsAcknowledged() {
+		return broadcastsAcknowledged;
+	}
+
+	public Long getBroadcastsFailed() {
+		return broadcastsFailed;
+	}
+
+	public Long getLastAcknowledgeMsec() {
+		return lastAcknowledgeMsec;
+	}
+
+	public Integer getOutbox() {
+		return outbox;
+	}
+
+	public Long getWalletSaves() {
+		return walletSaves;
+	}
+
+	public Long getWalletSavesMerged() {
+		return walletSavesMerged;
+	}
+
+	public Long getWalletSavesFailed() {
+		return walletSavesFailed;
+	}
+
+	public Long getLastWalletSaveMsec() {
+		return lastWalletSaveMsec;
+	}
+
+	public Long getMaxWalletSaveMsec() {
+		return maxWalletSaveMsec;
+	}
+
+	public Long getWalletFileBytes() {
+		return walletFileBytes;
+	}
+}
@@ -2,9 +2,46 @@ package bitmark.com.json;
 
 public class TxIdJsonResponse {
 	private String txId;
+	private Long feePerKb;
+	private Long fee;
+
+	// the payId was paid before by txId, whose confidence is status
+	private Boolean duplicate;
+	private String status;
 
 	public TxIdJsonResponse(String txId) {
 		this.txId = txId;
 	}
 
+	public TxIdJsonResponse(String txId, Long feePerKb, Long fee) {
+		this.txId = txId;
+		this.feePerKb = feePerKb;
+		this.fee = fee;
+	}
+
+	public void setPaid(String status) {
+		this.duplicate = true;
+		this.status = status;
+	}
+
+	public String getTxId() {
+		return txId;
+	}
+
+	public Long getFeePerKb() {
+		return feePerKb;
+	}
+
+	public Long getFee() {
+		return fee;
+	}
+
+	public Boolean getDuplicate() {
+		return duplicate;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
 }
@@ -0,0 +1,43 @@
+package bitmark.com.json;
+
+public class WaitJsonResponse {
+	private String txId;
+	private String status;
+	private Integer height;
+	private Integer depth;
+	private String conflictTxId;
+
+	public WaitJsonResponse(String txId, String status) {
+		this.txId = txId;
+		this.status = status;
+	}
+
+	public void setBlock(Integer height, Integer depth) {
+		this.height = height;
+		this.depth = depth;
+	}
+
+	public void setConflictTxId(String conflictTxId) {
+		this.conflictTxId = conflictTxId;
+	}
+
+	public String getTxId() {
+		return txId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public Integer getHeight() {
+		return height;
+	}
+
+	public Integer getDepth() {
+		return depth;
+	}
+
+	public String getConflictTxId() {
+		return conflictTxId;
+	}
+}
@@ -0,0 +1,64 @@
+package bitmark.com.json;
+
+public class WatchEventJsonResponse {
+	private String event;
+	private String txId;
+	private String payId;
+	private Long time;
+	private Integer peers;
+	private Integer height;
+	private Integer depth;
+	private String conflictTxId;
+
+	public WatchEventJsonResponse(String event, String txId, String payId, Long time) {
+		this.event = event;
+		this.txId = txId;
+		this.payId = payId;
+		this.time = time;
+	}
+
+	public void setPeers(Integer peers) {
+		this.peers = peers;
+	}
+
+	public void setBlock(Integer height, Integer depth) {
+		this.height = height;
+		this.depth = depth;
+	}
+
+	public void setConflictTxId(String conflictTxId) {
+		this.conflictTxId = conflictTxId;
+	}
+
+	public String getEvent() {
+		return event;
+	}
+
+	public String getTxId() {
+		return txId;
+	}
+
+	public String getPayId() {
+		return payId;
+	}
+
+	public Long getTime() {
+		return time;
+	}
+
+	public Integer getPeers() {
+		return peers;
+	}
+
+	public Integer getHeight() {
+		return height;
+	}
+
+	public Integer getDepth() {
+		return depth;
+	}
+
+	public String getConflictTxId() {
+		return conflictTxId;
+	}
+}
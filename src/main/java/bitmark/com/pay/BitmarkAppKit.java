@@ -0,0 +1,549 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AddressMessage;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * <p>
+ * WalletAppKit with the Bitmark hooks: a BitmarkPeerGroup, the
+ * WalletMetrics following the startup and chain download, and the block
+ * store chosen by setBlockStore().
+ * </p>
+ * <p>
+ * The peers given to setPeers() are probed in parallel on start. The
+ * fastest are connected, up to the connection limit, and the rest kept as
+ * fallbacks. Broadcasts wait for no more peers than answered the probe.
+ * </p>
+ * <p>
+ * The PeerCache remembers the peers we connected to and the addresses they
+ * sent us. Cached peers are probed with the configured ones, or with no
+ * configured peers are tried before peer discovery.
+ * </p>
+ * <p>
+ * The transactions of every filtered block are counted as matched by the
+ * bloom filter and, of those, the ones not for the wallet, so the false
+ * positive rate set by setBloomFilter() can be checked against the
+ * traffic it costs.
+ * </p>
+ * <p>
+ * The wallet file is saved by a WalletSaver, which merges the changes of
+ * setAutosaveDelay() msec into one write, rather than by bitcoinj on
+ * every payment.
+ * </p>
+ * <p>
+ * The wallets set by setHostedWallets() are loaded beside the kit wallet
+ * and added to the same block chain and peer group, so several wallets of
+ * one network share the peer connections, the bloom filter and the block
+ * store. Each is saved by its own WalletSaver.
+ * </p>
+ */
+public class BitmarkAppKit extends WalletAppKit {
+
+	/**
+	 * <p>
+	 * msec from a wallet change to its save, the bitcoinj autosave delay
+	 * </p>
+	 */
+	public static final int DEFAULT_AUTOSAVE_DELAY = 5000;
+
+	private final WalletMetrics metrics;
+
+	private BlockStoreType storeType = BlockStoreType.SPV;
+	private int storeCapacity = HeaderFileStore.DEFAULT_CAPACITY;
+	private boolean storePreallocate = false;
+
+	private List<InetSocketAddress> peers = null;
+	private int maxConnections = 0;
+	private int connectTimeout = PeerGroup.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int broadcastConnections = 0;
+
+	// set on start from the probe
+	private List<PeerAddress> fallbackPeers = null;
+	private int answeredPeers = 0;
+
+	private PeerCache peerCache = null;
+
+	private double falsePositiveRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+	private int recalculateDelay = 0;
+
+	private int autosaveDelay = DEFAULT_AUTOSAVE_DELAY;
+	private WalletSaver saver = null;
+
+	// wallet files hosted beside the kit wallet by name, and once running
+	// their wallets and savers
+	private Map<String, File> hostedFiles = Collections.emptyMap();
+	private final Map<String, Wallet> hostedWallets = new ConcurrentHashMap<String, Wallet>();
+	private final List<WalletSaver> hostedSavers = new ArrayList<WalletSaver>();
+
+	public BitmarkAppKit(NetworkParameters params, File directory, String filePrefix, WalletMetrics metrics) {
+		super(params, directory, filePrefix);
+		this.metrics = metrics;
+		setDownloadListener(metrics);
+	}
+
+	/**
+	 * <p>
+	 * Choose the block store. Must be called before the kit starts.
+	 * </p>
+	 *
+	 * @param type
+	 *            where the headers are kept
+	 * @param capacity
+	 *            headers in a new SPV file, the initial size of a FULL one
+	 * @param preallocate
+	 *            true to write the whole file when it is created or grown
+	 */
+	public void setBlockStore(BlockStoreType type, int capacity, boolean preallocate) {
+		if (type != BlockStoreType.MEMORY && capacity < HeaderFileStore.MIN_CAPACITY) {
+			throw new IllegalArgumentException("block store capacity: " + capacity + " is below: "
+					+ HeaderFileStore.MIN_CAPACITY);
+		}
+		storeType = type;
+		storeCapacity = capacity;
+		storePreallocate = preallocate;
+	}
+
+	public BlockStoreType getBlockStoreType() {
+		return storeType;
+	}
+
+	/**
+	 * <p>
+	 * Connect only to these peers. Must be called before the kit starts.
+	 * </p>
+	 *
+	 * @param peers
+	 *            addresses, host names are resolved on start
+	 * @param maxConnections
+	 *            peers to connect to, 0 for all
+	 * @param connectTimeout
+	 *            msec to wait for a peer to answer
+	 * @param broadcastConnections
+	 *            connected peers a broadcast waits for, 0 for the bitcoinj
+	 *            default of 80% of the connections
+	 */
+	public void setPeers(List<InetSocketAddress> peers, int maxConnections, int connectTimeout,
+			int broadcastConnections) {
+		this.peers = peers;
+		this.maxConnections = maxConnections;
+		this.connectTimeout = connectTimeout;
+		this.broadcastConnections = broadcastConnections;
+	}
+
+	/**
+	 * <p>
+	 * Remember peers in the cache and use them on start. Must be called
+	 * before the kit starts.
+	 * </p>
+	 *
+	 * @param cache
+	 *            the read peer cache
+	 */
+	public void setPeerCache(PeerCache cache) {
+		this.peerCache = cache;
+	}
+
+	/**
+	 * <p>
+	 * Tune the bloom filter. Must be called before the kit starts.
+	 * </p>
+	 *
+	 * @param falsePositiveRate
+	 *            rate the filter is built for
+	 * @param recalculateDelay
+	 *            msec to merge filter recalculations over, 0 for none
+	 */
+	public void setBloomFilter(double falsePositiveRate, int recalculateDelay) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1 || recalculateDelay < 0) {
+			throw new IllegalArgumentException("bloom filter false positive rate: " + falsePositiveRate
+					+ " recalculate delay: " + recalculateDelay + " out of range");
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		this.recalculateDelay = recalculateDelay;
+	}
+
+	/**
+	 * <p>
+	 * Load these wallet files into the kit too, a missing one is created.
+	 * Must be called before the kit starts.
+	 * </p>
+	 *
+	 * @param files
+	 *            wallet file by wallet name
+	 */
+	public void setHostedWallets(Map<String, File> files) {
+		this.hostedFiles = new LinkedHashMap<String, File>(files);
+	}
+
+	/**
+	 * @return the hosted wallet of that name, null if there is none or the
+	 *         kit is not running
+	 */
+	public Wallet hostedWallet(String name) {
+		return hostedWallets.get(name);
+	}
+
+	// on the shared chain and peers, so the sync covers them all. A wallet
+	// behind the chain is refused: the chain would roll the shared store
+	// back to it, or it would miss the blocks in between
+	private void loadHostedWallets() throws IOException, UnreadableWalletException {
+		StoredBlock head = vChain.getChainHead();
+		for (Map.Entry<String, File> entry : hostedFiles.entrySet()) {
+			long start = System.currentTimeMillis();
+			File file = entry.getValue();
+			Wallet wallet;
+			if (file.exists()) {
+				wallet = Wallet.loadFromFile(file);
+				if (wallet.getLastBlockSeenHeight() < head.getHeight()) {
+					throw new IOException(String.format(
+						"hosted wallet: %s is at height %d behind the chain at %d,"
+						+ " catch it up with a block chain of its own or remove it from the hosted names",
+						entry.getKey(), wallet.getLastBlockSeenHeight(), head.getHeight()));
+				}
+			} else {
+				// nothing to find in the blocks before it existed
+				wallet = new Wallet(params);
+				wallet.setLastBlockSeenHash(head.getHeader().getHash());
+				wallet.setLastBlockSeenHeight(head.getHeight());
+				wallet.setLastBlockSeenTimeSecs(head.getHeader().getTimeSeconds());
+				wallet.saveToFile(file);
+			}
+			vChain.addWallet(wallet);
+			vPeerGroup.addWallet(wallet);
+			WalletSaver hostedSaver = new WalletSaver(wallet, file, autosaveDelay, metrics);
+			hostedSaver.start();
+			vChain.addNewBestBlockListener(Threading.SAME_THREAD, hostedSaver);
+			hostedSavers.add(hostedSaver);
+			hostedWallets.put(entry.getKey(), wallet);
+			log.info("hosted wallet: {} file: {} loaded in {}msec", entry.getKey(), file,
+				 System.currentTimeMillis() - start);
+		}
+	}
+
+	@Override
+	protected void startUp() throws Exception {
+		// the kit would keep using a file the memory store ignores, and on
+		// restore it would replace the file by a plain SPVBlockStore
+		File chainFile = new File(directory, filePrefix + ".spvchain");
+		if (chainFile.exists() && (storeType == BlockStoreType.MEMORY || restoreFromSeed != null)) {
+			log.info("deleting block chain file: {}", chainFile);
+			if (!chainFile.delete()) {
+				throw new IOException("Failed to delete block chain file: " + chainFile);
+			}
+		}
+		if (peers != null && !peers.isEmpty()) {
+			rankPeers();
+		}
+		super.startUp();
+	}
+
+	// the fastest answering peers become the peer nodes of the kit
+	private void rankPeers() throws IOException {
+		List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>(peers);
+		if (peerCache != null) {
+			for (PeerCache.Entry entry : peerCache.getPeers()) {
+				if (!isConfigured(entry.getHost(), entry.getPort())) {
+					candidates.add(entry.toSocketAddress());
+				}
+			}
+		}
+		int max = maxConnections == 0 ? peers.size() : Math.min(maxConnections, candidates.size());
+		List<PeerAddress> connect = new ArrayList<PeerAddress>();
+		fallbackPeers = new ArrayList<PeerAddress>();
+		answeredPeers = 0;
+		for (PeerProbe.Result result : PeerProbe.rank(candidates, connectTimeout, max)) {
+			if (peerCache != null && result.isResponsive()) {
+				peerCache.succeeded(result.getConfigured().getHostString(), result.getConfigured().getPort(),
+						    result.getConnectMsec());
+			} else if (peerCache != null && result.isFailed()) {
+				// a probe not waited for says nothing about the peer
+				peerCache.failed(result.getConfigured().getHostString(), result.getConfigured().getPort());
+			}
+			if (result.getAddress() == null) {
+				continue;
+			}
+			if (connect.size() < max) {
+				connect.add(result.getAddress());
+				if (result.isResponsive()) {
+					answeredPeers += 1;
+				}
+			} else {
+				fallbackPeers.add(result.getAddress());
+			}
+		}
+		// with no peer nodes the kit would fall back to DNS discovery
+		if (connect.isEmpty()) {
+			throw new IOException("None of the configured peers resolves");
+		}
+		peerAddresses = connect.toArray(new PeerAddress[connect.size()]);
+	}
+
+	private boolean isConfigured(String host, int port) {
+		for (InetSocketAddress peer : peers) {
+			if (peer.getPort() == port && peer.getHostString().equals(host)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// with no configured peers the cached ones go before discovery
+	private void addCachedPeers() {
+		int max = vPeerGroup.getMaxConnections();
+		int added = 0;
+		for (PeerCache.Entry entry : peerCache.getPeers()) {
+			if (added >= max) {
+				break;
+			}
+			if (InetAddresses.isInetAddress(entry.getHost())) {
+				vPeerGroup.addAddress(new PeerAddress(InetAddresses.forString(entry.getHost()), entry.getPort()));
+				added += 1;
+			}
+		}
+		// addAddress raises the limit by one each time
+		vPeerGroup.setMaxConnections(max);
+		log.info("added: {} cached peers", added);
+	}
+
+	// remember the peer and ask it for more
+	private final PeerConnectedEventListener peerCacheListener = new PeerConnectedEventListener() {
+		@Override
+		public void onPeerConnected(Peer peer, int peerCount) {
+			PeerAddress address = peer.getAddress();
+			peerCache.succeeded(address.getAddr().getHostAddress(), address.getPort(), -1);
+			Futures.addCallback(peer.getAddr(), new FutureCallback<AddressMessage>() {
+				@Override
+				public void onSuccess(AddressMessage message) {
+					for (PeerAddress gossip : message.getAddresses()) {
+						if (gossip.getAddr() != null) {
+							peerCache.gossiped(gossip.getAddr().getHostAddress(), gossip.getPort(), gossip.getTime());
+						}
+					}
+					writePeerCache();
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					log.info("getaddr from: {} failed: {}", peer, t.getMessage());
+				}
+			}, MoreExecutors.directExecutor());
+			writePeerCache();
+		}
+	};
+
+	/**
+	 * <p>
+	 * Record the ping time of the connected peers and write the peer
+	 * cache. Called before the peers are stopped.
+	 * </p>
+	 */
+	public void updatePeerCache() {
+		if (peerCache == null || vPeerGroup == null) {
+			return;
+		}
+		for (Peer peer : vPeerGroup.getConnectedPeers()) {
+			long ping = peer.getPingTime();
+			PeerAddress address = peer.getAddress();
+			peerCache.succeeded(address.getAddr().getHostAddress(), address.getPort(),
+					    ping == Long.MAX_VALUE ? -1 : ping);
+		}
+		writePeerCache();
+	}
+
+	private void writePeerCache() {
+		try {
+			peerCache.write();
+		} catch (IOException e) {
+			log.warn("write peer cache: {} failed: {}", peerCache.getFile(), e);
+		}
+	}
+
+	@Override
+	protected BlockStore provideBlockStore(File file) throws BlockStoreException {
+		long start = System.currentTimeMillis();
+		if (storeType == BlockStoreType.MEMORY) {
+			BlockStore store = new MemoryBlockStore(params);
+			log.info("block store: memory opened in {}msec", System.currentTimeMillis() - start);
+			return store;
+		}
+		HeaderFileStore store = new HeaderFileStore(params, file, storeCapacity, storeType == BlockStoreType.FULL,
+				storePreallocate);
+		log.info("block store: {} opened in {}msec, {} of {} headers, {} bytes", store,
+			 System.currentTimeMillis() - start, store.size(), store.getCapacity(), store.getFileSize());
+		return store;
+	}
+
+	@Override
+	protected PeerGroup createPeerGroup() throws TimeoutException {
+		if (useTor) {
+			return super.createPeerGroup();
+		}
+		return new BitmarkPeerGroup(params, vChain, metrics, fallbackPeers);
+	}
+
+	@Override
+	protected void onSetupCompleted() {
+		vPeerGroup.setConnectTimeoutMillis(connectTimeout);
+		if (peerCache != null) {
+			if (peers == null) {
+				addCachedPeers();
+			}
+			vPeerGroup.addConnectedEventListener(peerCacheListener);
+		}
+		int broadcast = broadcastConnections > 0 ? broadcastConnections : vPeerGroup.getMinBroadcastConnections();
+		if (fallbackPeers != null) {
+			// a peer that did not answer must not hold up a broadcast
+			broadcast = Math.max(1, Math.min(broadcast, answeredPeers));
+		}
+		vPeerGroup.setMinBroadcastConnections(broadcast);
+		log.info("peers: {} max, connect timeout: {}msec, broadcast waits for: {}", vPeerGroup.getMaxConnections(),
+			 connectTimeout, broadcast);
+		vPeerGroup.setBloomFilterFalsePositiveRate(falsePositiveRate);
+		if (vPeerGroup instanceof BitmarkPeerGroup) {
+			((BitmarkPeerGroup) vPeerGroup).setFilterRecalculateDelay(recalculateDelay);
+		}
+		metrics.setFilterFalsePositiveRate(falsePositiveRate);
+		vPeerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, filterListener);
+		log.info("bloom filter false positive rate: {} recalculate delay: {}msec", falsePositiveRate,
+			 recalculateDelay);
+		if (saver != null) {
+			vChain.addNewBestBlockListener(Threading.SAME_THREAD, saver);
+		}
+		try {
+			loadHostedWallets();
+		} catch (IOException | UnreadableWalletException e) {
+			throw new IllegalStateException("hosted wallet load failed: " + e.getMessage(), e);
+		}
+		metrics.setupCompleted(vPeerGroup, vChain);
+	}
+
+	// count what the filter let through against what the wallet wanted
+	private final BlocksDownloadedEventListener filterListener = new BlocksDownloadedEventListener() {
+		@Override
+		public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+			if (filteredBlock == null) {
+				return;
+			}
+			List<Sha256Hash> matched = filteredBlock.getTransactionHashes();
+			int falsePositives = 0;
+			for (Sha256Hash hash : matched) {
+				if (!isWalletTransaction(hash)) {
+					falsePositives += 1;
+				}
+			}
+			metrics.filteredBlock(filteredBlock.getTransactionCount(), matched.size(), falsePositives);
+		}
+	};
+
+	private boolean isWalletTransaction(Sha256Hash hash) {
+		if (vWallet.getTransaction(hash) != null) {
+			return true;
+		}
+		for (Wallet wallet : hostedWallets.values()) {
+			if (wallet.getTransaction(hash) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>
+	 * Save the wallet file that long after it changes. Must be called
+	 * before the kit starts.
+	 * </p>
+	 *
+	 * @param msec
+	 *            changes within it are saved together, 0 to save at once
+	 */
+	public void setAutosaveDelay(int msec) {
+		if (msec < 0) {
+			throw new IllegalArgumentException("wallet autosave delay: " + msec + " is negative");
+		}
+		this.autosaveDelay = msec;
+	}
+
+	// in place of the bitcoinj autosave, the wallet then only saves when
+	// the saver asks it to
+	@Override
+	protected void setupAutoSave(Wallet wallet) {
+		saver = new WalletSaver(wallet, vWalletFile, autosaveDelay, metrics);
+		saver.start();
+	}
+
+	@Override
+	protected void shutDown() throws Exception {
+		// as WalletAppKit, but the peers may already be stopped so the
+		// last snapshot could be written
+		Context.propagate(context);
+		if (vPeerGroup.isRunning()) {
+			vPeerGroup.stop();
+		}
+		if (saver != null) {
+			saver.stop();
+			saver = null;
+		} else {
+			vWallet.saveToFile(vWalletFile);
+		}
+		for (WalletSaver hostedSaver : hostedSavers) {
+			hostedSaver.stop();
+		}
+		hostedSavers.clear();
+		hostedWallets.clear();
+		long start = System.currentTimeMillis();
+		try {
+			vStore.close();
+		} catch (BlockStoreException e) {
+			throw new IOException(e);
+		}
+		log.info("block store closed in {}msec", System.currentTimeMillis() - start);
+
+		vPeerGroup = null;
+		vWallet = null;
+		vStore = null;
+		vChain = null;
+	}
+
+	public WalletMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -0,0 +1,232 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.DefaultCoinSelector;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * <p>
+ * Coin selection for many payments in a row: as few inputs as possible,
+ * confirmed outputs first and no more than a limit of unconfirmed
+ * ancestors.
+ * </p>
+ * <p>
+ * The candidates are indexed by value, confirmed and unconfirmed apart,
+ * deepest first for equal values. Unconfirmed outputs are only used when
+ * the confirmed ones are not enough. The smallest single output covering
+ * the target is taken; if there is none the largest are added until the
+ * target is met, and the last of them is swapped for the smallest output
+ * still covering the rest.
+ * </p>
+ * <p>
+ * The unconfirmed ancestors of the new transaction are the pending
+ * transactions of its inputs and all their pending parents. bitcoinj's
+ * selector spends the change of the previous payment each time, so a
+ * burst of payments makes a chain that peers reject past their ancestor
+ * limit; outputs that would take the new transaction over
+ * maxUnconfirmedAncestors are skipped.
+ * </p>
+ */
+public class BitmarkCoinSelector implements CoinSelector {
+
+	/**
+	 * <p>
+	 * default unconfirmed ancestors, well within the 25 of bitcoind
+	 * </p>
+	 */
+	public static final int DEFAULT_MAX_UNCONFIRMED_ANCESTORS = 10;
+
+	// value ascending, then deepest first
+	private static final Comparator<TransactionOutput> BY_VALUE = new Comparator<TransactionOutput>() {
+		@Override
+		public int compare(TransactionOutput a, TransactionOutput b) {
+			int c = Long.compare(a.getValue().value, b.getValue().value);
+			if (c != 0) {
+				return c;
+			}
+			return Integer.compare(b.getParentTransactionDepthInBlocks(), a.getParentTransactionDepthInBlocks());
+		}
+	};
+
+	private final Wallet wallet;
+	private final int maxUnconfirmedAncestors;
+
+	// pending transaction hash to it and its pending parents, for one select
+	private final Map<Sha256Hash, Set<Sha256Hash>> ancestors = new HashMap<Sha256Hash, Set<Sha256Hash>>();
+
+	/**
+	 * @param wallet
+	 *            the paying wallet, to find the parents of pending outputs
+	 * @param maxUnconfirmedAncestors
+	 *            pending transactions the new one may depend on, 0 to spend
+	 *            only confirmed outputs
+	 */
+	public BitmarkCoinSelector(Wallet wallet, int maxUnconfirmedAncestors) {
+		this.wallet = wallet;
+		this.maxUnconfirmedAncestors = maxUnconfirmedAncestors;
+	}
+
+	@Override
+	public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+		ancestors.clear();
+		List<TransactionOutput> confirmed = new ArrayList<TransactionOutput>();
+		List<TransactionOutput> unconfirmed = new ArrayList<TransactionOutput>();
+		for (TransactionOutput output : candidates) {
+			Transaction tx = output.getParentTransaction();
+			if (tx == null || tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+				confirmed.add(output);
+			} else if (DefaultCoinSelector.isSelectable(tx) && ancestorsOf(tx).size() <= maxUnconfirmedAncestors) {
+				unconfirmed.add(output);
+			}
+		}
+
+		// everything, as when the wallet is emptied
+		if (target.equals(NetworkParameters.MAX_MONEY)) {
+			List<TransactionOutput> all = new ArrayList<TransactionOutput>(confirmed);
+			all.addAll(withinLimit(sortedDescending(unconfirmed), new HashSet<Sha256Hash>()));
+			return selection(all);
+		}
+
+		Collections.sort(confirmed, BY_VALUE);
+		List<TransactionOutput> selected = cover(target.value, confirmed);
+		if (selected != null) {
+			return selection(selected);
+		}
+
+		// add the pending outputs, largest first while the ancestors fit;
+		// any part of them stays within the limit
+		List<TransactionOutput> all = withinLimit(sortedDescending(unconfirmed), new HashSet<Sha256Hash>());
+		all.addAll(confirmed);
+		Collections.sort(all, BY_VALUE);
+		selected = cover(target.value, all);
+		// not enough: return what there is, the wallet reports the shortfall
+		return selection(selected != null ? selected : all);
+	}
+
+	/**
+	 * <p>
+	 * Fewest outputs from the list covering the value.
+	 * </p>
+	 *
+	 * @param outputs
+	 *            sorted by BY_VALUE
+	 * @return the outputs or null if all of them are not enough
+	 */
+	static List<TransactionOutput> cover(long value, List<TransactionOutput> outputs) {
+		List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+		if (value <= 0) {
+			return selected;
+		}
+		int single = ceiling(outputs, value, outputs.size());
+		if (single < outputs.size()) {
+			selected.add(outputs.get(single));
+			return selected;
+		}
+		long sum = 0;
+		for (int i = outputs.size() - 1; i >= 0; i--) {
+			long next = outputs.get(i).getValue().value;
+			if (sum + next >= value) {
+				// the smallest output that still covers the rest
+				selected.add(outputs.get(ceiling(outputs, value - sum, i)));
+				return selected;
+			}
+			sum += next;
+			selected.add(outputs.get(i));
+		}
+		return null;
+	}
+
+	// index of the first of outputs[0, end) worth at least value, end if none
+	private static int ceiling(List<TransactionOutput> outputs, long value, int end) {
+		int low = 0;
+		int high = end;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (outputs.get(mid).getValue().value < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// the outputs whose ancestors together stay within the limit, in order
+	private List<TransactionOutput> withinLimit(List<TransactionOutput> outputs, Set<Sha256Hash> pending) {
+		List<TransactionOutput> usable = new ArrayList<TransactionOutput>();
+		for (TransactionOutput output : outputs) {
+			Set<Sha256Hash> more = ancestorsOf(output.getParentTransaction());
+			if (pending.containsAll(more)) {
+				usable.add(output);
+				continue;
+			}
+			Set<Sha256Hash> union = new HashSet<Sha256Hash>(pending);
+			union.addAll(more);
+			if (union.size() <= maxUnconfirmedAncestors) {
+				pending.addAll(more);
+				usable.add(output);
+			}
+		}
+		return usable;
+	}
+
+	// the pending transaction and its pending parents, cut off past the limit
+	private Set<Sha256Hash> ancestorsOf(Transaction tx) {
+		Set<Sha256Hash> set = ancestors.get(tx.getHash());
+		if (set != null) {
+			return set;
+		}
+		set = new HashSet<Sha256Hash>();
+		set.add(tx.getHash());
+		for (TransactionInput input : tx.getInputs()) {
+			if (set.size() > maxUnconfirmedAncestors) {
+				break;
+			}
+			Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+			if (parent != null && parent.getConfidence().getConfidenceType() == ConfidenceType.PENDING) {
+				set.addAll(ancestorsOf(parent));
+			}
+		}
+		ancestors.put(tx.getHash(), set);
+		return set;
+	}
+
+	private static List<TransactionOutput> sortedDescending(List<TransactionOutput> outputs) {
+		List<TransactionOutput> sorted = new ArrayList<TransactionOutput>(outputs);
+		Collections.sort(sorted, Collections.reverseOrder(BY_VALUE));
+		return sorted;
+	}
+
+	private static long total(List<TransactionOutput> outputs) {
+		long total = 0;
+		for (TransactionOutput output : outputs) {
+			total += output.getValue().value;
+		}
+		return total;
+	}
+
+	private static CoinSelection selection(List<TransactionOutput> outputs) {
+		return new CoinSelection(Coin.valueOf(total(outputs)), outputs);
+	}
+}
@@ -4,9 +4,16 @@
 
 package bitmark.com.pay;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -27,23 +34,34 @@ import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.apache.logging.log4j.core.lookup.MainMapLookup;
 import org.apache.logging.log4j.core.layout.PatternLayout;
-import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.wallet.DeterministicSeed;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.bitcoinj.kits.WalletAppKit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 
 import bitmark.com.config.BitmarkConfigReader;
 import bitmark.com.json.TxIdJsonResponse;
 import bitmark.com.json.AddressJsonResponse;
+import bitmark.com.json.ArchiveJsonResponse;
+import bitmark.com.json.ArchivedJsonResponse;
 import bitmark.com.json.BalanceJsonResponse;
+import bitmark.com.json.CommandJsonRequest;
+import bitmark.com.json.ConsolidateJsonResponse;
+import bitmark.com.json.ErrorJsonResponse;
+import bitmark.com.json.HistoryJsonResponse;
 import bitmark.com.json.InfoJsonResponse;
+import bitmark.com.json.PendingTxJsonResponse;
+import bitmark.com.json.SplitUtxosJsonResponse;
+import bitmark.com.json.StatusJsonResponse;
+import bitmark.com.json.WaitJsonResponse;
+import bitmark.com.json.WatchEventJsonResponse;
 
 /**
  * <p>
@@ -55,6 +73,11 @@ import bitmark.com.json.InfoJsonResponse;
  */
 public class BitmarkPayService {
 
+	// exit codes of wait besides 0 for confirmed
+	private static final int EXIT_ERROR = 1;
+	private static final int EXIT_TIMEOUT = 2;
+	private static final int EXIT_DEAD = 3;
+
 	// initialise later after we have determined the directory location
 	// but cannot delay too long or some other process will start logging
 	// and weird log file names will be generated
@@ -73,10 +96,61 @@ public class BitmarkPayService {
 		// create the Options
 		Options options = new Options();
 		options.addOption("h", "help", false, "print this message");
-		options.addOption("s", "stdin", false, "send password through stdin for encrypt, decrypt, pay");
+		options.addOption("s", "stdin", false, "send password through stdin for encrypt, decrypt, pay, split-utxos, consolidate");
 		options.addOption("j", "json", false, "json output");
+		options.addOption(Option.builder().longOpt("no-daemon")
+				  .desc("do not send the command to a running daemon")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("offline")
+				  .desc("balance, address, info, pending-tx: answer from the wallet file without connecting to peers (default)")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("online")
+				  .desc("balance, address, info, pending-tx: connect to peers and sync first")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("from-snapshot")
+				  .desc("balance, address, info, pending-tx: answer from the snapshot file written by a running kit")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("async")
+				  .desc("pay, split-utxos: return once the transaction is committed, it is broadcast in the background")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("window")
+				  .desc("pay-batch: number of broadcasts left running while signing the next records")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("dry-run")
+				  .desc("consolidate: show the transactions and savings without sending them")
+				  .hasArg(false).build());
+		options.addOption(Option.builder().longOpt("max-inputs")
+				  .desc("consolidate: most outputs merged by one transaction (default " + CommandProcessor.DEFAULT_CONSOLIDATE_INPUTS + ")")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("max-fee-per-kb")
+				  .desc("consolidate: do nothing while the fee per kB is above this")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("later-fee-per-kb")
+				  .desc("consolidate: fee per kB of later payments the savings are counted at (default " + KitDefaults.DEFAULT_TX_FEE + ")")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("older-than-depth")
+				  .desc("archive: move the spent transactions at least this many blocks deep (at least " + WalletArchive.MIN_DEPTH + ")")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("since-height")
+				  .desc("history: leave out the transactions confirmed below this height")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("limit")
+				  .desc("history: print one page of this many transactions and the cursor of the next")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("cursor")
+				  .desc("history: start after the page that returned this cursor")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("depth")
+				  .desc("watch, wait: follow each payment until this many blocks deep (default " + PaymentWatcher.DEFAULT_DEPTH + ")")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("timeout")
+				  .desc("wait: give up after this many seconds, exit code " + EXIT_TIMEOUT + " (default never)")
+				  .hasArg(true).build());
+		options.addOption(Option.builder().longOpt("wallet")
+				  .desc("run the command on this wallet hosted beside the network wallet, see <wallet><hosted><name> in the configuration")
+				  .hasArg(true).build());
 		options.addOption(Option.builder().longOpt("password")
-				  .desc("give password for encrypt, decrypt, pay")
+				  .desc("give password for encrypt, decrypt, pay, split-utxos, consolidate")
 				  .hasArg(true).build());
 		options.addOption(Option.builder().longOpt("network").required(true)
 				  .desc("*the net type the wallet is going to link: bitmark|testing|local_bitcoin_testnet|local_bitcoin_reg")
@@ -87,6 +161,7 @@ public class BitmarkPayService {
 
 		boolean enableStdin = false;
 		boolean enableJson = false;
+		boolean noDaemon = false;
 
 		String network = "";
 		String configDirectory = "";
@@ -110,9 +185,15 @@ public class BitmarkPayService {
 				if (line.hasOption("json")) {
 					enableJson = true;
 				}
+				if (line.hasOption("no-daemon")) {
+					noDaemon = true;
+				}
 				if (line.getArgs().length > 0) {
-					cmd = Commands.valueOf(line.getArgs()[0].toUpperCase());
+					cmd = Commands.fromString(line.getArgs()[0]);
 					line.getArgList().remove(0);
+				} else {
+					printHelpMessage(options);
+					return;
 				}
 			}
 		} catch (org.apache.commons.cli.ParseException e) {
@@ -121,6 +202,24 @@ public class BitmarkPayService {
 		} catch (java.lang.IndexOutOfBoundsException e) {
 			printHelpMessage(options);
 			return;
+		} catch (IllegalArgumentException e) {
+			// unknown command
+			printHelpMessage(options);
+			return;
+		}
+
+		int window = PayBatch.DEFAULT_WINDOW;
+		if (line.hasOption("window")) {
+			try {
+				window = Integer.parseInt(line.getOptionValue("window"));
+			} catch (NumberFormatException e) {
+				window = 0;
+			}
+			if (window < 1) {
+				System.err.printf("Invalid window: %s, must be a positive integer\n", line.getOptionValue("window"));
+				printHelpMessage(options);
+				return;
+			}
 		}
 
 		// configure logger first or it will fail as read configs dependencies will start it
@@ -134,6 +233,25 @@ public class BitmarkPayService {
 		// start log
 		log.info("start logging..");
 
+		// answer from the snapshot before anything touches bitcoinj
+		if (line.hasOption("from-snapshot")) {
+			String walletFileName = BitmarkWalletKit.WALLET_FILE_PREFIX + "-" + NetType.valueOf(network.toUpperCase());
+			if (line.hasOption("wallet")) {
+				// a hosted wallet has a snapshot of its own
+				String name = line.getOptionValue("wallet");
+				if (!KitDefaults.isHostedName(name)) {
+					System.err.printf("Unknown wallet: %s\n", name);
+					exitOnWaitError(cmd);
+					return;
+				}
+				walletFileName += "-" + name;
+			}
+			File snapshotFile = new File(configDirectory + "/wallet", walletFileName + ".snapshot");
+			answerFromSnapshot(snapshotFile, cmd, enableJson);
+			log.info("stop logging..");
+			return;
+		}
+
 		// read the network configuration file
 		String configFile = configDirectory + "/" + network + ".xml";
 
@@ -165,7 +283,166 @@ public class BitmarkPayService {
 			return;
 		}
 
+		// the wallet the command is for, the network wallet or a hosted one
+		bitmarkWalletKit.setHostedWallets(configs.getHostedWallets());
+		BitmarkWalletKit target = bitmarkWalletKit;
+		if (line.hasOption("wallet")) {
+			target = bitmarkWalletKit.getHosted(line.getOptionValue("wallet"));
+			if (target == null) {
+				System.err.printf("Unknown wallet: %s\n", line.getOptionValue("wallet"));
+				exitOnWaitError(cmd);
+				return;
+			}
+		}
+
+		// the archive file is only appended to, a running daemon does not matter
+		if (cmd == Commands.ARCHIVED) {
+			if (line.getArgs().length != 1) {
+				System.err.println("Please give a txid or payId");
+				return;
+			}
+			ArchivedJsonResponse archived = new ArchivedJsonResponse();
+			try {
+				for (WalletArchive.Entry entry : target.getWalletArchive().find(line.getArgs()[0])) {
+					archived.addTransaction(new ArchivedJsonResponse.ArchivedTx(entry.getTxId(), entry.getPayId(),
+												     entry.getHeight(), entry.getTime(), entry.getTx()));
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return;
+			}
+			printResponse(cmd, archived, enableJson);
+			log.info("stop logging..");
+			return;
+		}
+
+		boolean offline = CommandProcessor.isReadOnly(cmd) && !line.hasOption("online");
+
+		// a running daemon already has the kit started, let it answer
+		if ((CommandProcessor.isServed(cmd) || cmd == Commands.WATCH) && !noDaemon && !line.hasOption("offline")) {
+			PayDaemonClient client = PayDaemonClient.connect(bitmarkWalletKit.getDaemonPortFile());
+			if (client != null) {
+				log.info("sending command: {} to daemon", cmd);
+				try {
+					runClient(client, cmd, line, enableStdin, enableJson);
+				} finally {
+					client.close();
+				}
+				log.info("stop logging..");
+				return;
+			}
+		} else if (!offline && PayDaemonClient.isRunning(bitmarkWalletKit.getDaemonPortFile())) {
+			// reading the file the daemon saves is safe, opening it read-write is not
+			System.err.println("Wallet is in use by a running daemon");
+			return;
+		}
+
+		// read-only commands just need the wallet file
+		if (offline) {
+			if (target.loadWalletOffline()) {
+				try {
+					if (cmd == Commands.HISTORY) {
+						streamHistory(line, null, new CommandProcessor(bitmarkWalletKit));
+					} else {
+						Object response = new CommandProcessor(bitmarkWalletKit).process(cmd, line.getArgs(), commandOptions(line), null);
+						printResponse(cmd, response, enableJson);
+					}
+				} catch (CommandException e) {
+					System.err.println(e.getMessage());
+					return;
+				}
+				if (!target.walletIsEncrypted() && !enableJson && cmd != Commands.HISTORY) {
+					System.out.println("NOTE: Please run encrypt to protect your wallet");
+				}
+				log.info("stop logging..");
+				return;
+			} else if (line.hasOption("offline")) {
+				System.err.printf("No wallet file: %s\n", target.getWalletFile());
+				return;
+			} else if (PayDaemonClient.isRunning(bitmarkWalletKit.getDaemonPortFile())) {
+				System.err.println("Wallet is in use by a running daemon");
+				return;
+			}
+			log.info("no wallet file yet, starting the kit");
+		}
+
+		// a new block store starts from the checkpoints instead of genesis
+		String checkpoints = configs.getCheckpoints();
+		if (checkpoints == null) {
+			checkpoints = network + ".checkpoints";
+		}
+		File checkpointsFile = new File(checkpoints);
+		if (!checkpointsFile.isAbsolute()) {
+			checkpointsFile = new File(configDirectory, checkpoints);
+		}
+		bitmarkWalletKit.setCheckpointsFile(checkpointsFile);
+		bitmarkWalletKit.setMetricsInterval(configs.getMetricsInterval());
+		bitmarkWalletKit.setPeerConnections(configs.getMaxConnections(), configs.getConnectTimeout(),
+						    configs.getBroadcastConnections());
+		bitmarkWalletKit.setBloomFilter(configs.getFalsePositiveRate(), configs.getRecalculateDelay());
+		bitmarkWalletKit.setAutosaveDelay(configs.getAutosaveDelay());
+		bitmarkWalletKit.setArchiveDepth(configs.getArchiveDepth());
+		Coin feePerKb = Coin.valueOf(configs.getFeePerKb());
+		FeePolicy feePolicy = configs.getFeePolicy().equals("estimate")
+			? new EstimatingFeePolicy(feePerKb, configs.getFeeTargetBlocks())
+			: new StaticFeePolicy(feePerKb);
+		bitmarkWalletKit.setFeePolicy(feePolicy, Coin.valueOf(configs.getMinFeePerKb()),
+					      configs.getMaxFeePerKb() == 0 ? null : Coin.valueOf(configs.getMaxFeePerKb()));
+		bitmarkWalletKit.setMaxUnconfirmedAncestors(configs.getMaxUnconfirmedAncestors());
+		bitmarkWalletKit.setUtxoPool(configs.getUtxoPoolCount(), Coin.valueOf(configs.getUtxoPoolAmount()));
+		try {
+			bitmarkWalletKit.setBlockStore(BlockStoreType.valueOf(configs.getBlockStoreType().toUpperCase()),
+						       configs.getBlockStoreCapacity(), configs.getBlockStorePreallocate());
+		} catch (IllegalArgumentException e) {
+			log.error("block store configuration: {}", e.getMessage());
+			System.err.printf("block store configuration in: '%s' failed: %s\n", configFile, e.getMessage());
+			System.exit(1);
+		}
+
+		// only needs the block store, not the peers
+		if (cmd == Commands.CHECKPOINTS) {
+			try {
+				int added = bitmarkWalletKit.writeCheckpoints();
+				System.out.printf("Added %d checkpoints, %d in: %s\n", added,
+						  bitmarkWalletKit.getCheckpointFile().getCheckpoints().size(), checkpointsFile);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			log.info("stop logging..");
+			return;
+		}
+
+		// rewrites the wallet file, the kit must not have it open
+		if (cmd == Commands.ARCHIVE) {
+			int depth;
+			try {
+				depth = Integer.parseInt(line.getOptionValue("older-than-depth", ""));
+			} catch (NumberFormatException e) {
+				System.err.println("Please give --older-than-depth");
+				return;
+			}
+			if (depth < WalletArchive.MIN_DEPTH) {
+				System.err.printf("Depth must be at least %d\n", WalletArchive.MIN_DEPTH);
+				return;
+			}
+			int archived;
+			try {
+				archived = target.archive(depth);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return;
+			}
+			printResponse(cmd, new ArchiveJsonResponse(depth, archived, target.getArchiveFile().toString()),
+				      enableJson);
+			log.info("stop logging..");
+			return;
+		}
+
 		if (cmd == Commands.RESTORE) {
+			if (target != bitmarkWalletKit) {
+				System.err.println("Only the network wallet can be restored");
+				return;
+			}
 			if (line.getArgs().length == 1) {
 				targets = line.getArgs();
 			} else {
@@ -177,17 +454,24 @@ public class BitmarkPayService {
 			kit.restoreWalletFromSeed(new DeterministicSeed(seedStr.getBytes(), seedStr, Utils.currentTimeSeconds()));
 		}
 
+		final PayDaemon daemon;
+		if (cmd == Commands.DAEMON) {
+			daemon = new PayDaemon(new CommandProcessor(bitmarkWalletKit),
+					       bitmarkWalletKit.getDaemonPortFile(), configs.getDaemonPort());
+		} else {
+			daemon = null;
+		}
+
 		kit.setAutoStop(false);
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
 				try {
 					log.info("state before stop: {}", kit.state());
-					log.info("kit stopping...store block to: {}", bitmarkWalletKit.getWalletFile().getAbsolutePath());
-					kit.peerGroup().stop();
-					kit.wallet().saveToFile(bitmarkWalletKit.getWalletFile());
-					kit.store().close();
-					log.info("kit stopped");
+					if (daemon != null) {
+						daemon.stop();
+					}
+					bitmarkWalletKit.stop();
 				} catch (Exception e) {
 					log.info("in runtime exeption: {}", e);
 					e.printStackTrace();
@@ -196,8 +480,7 @@ public class BitmarkPayService {
 		});
 
 		// startup and wait for bitcoin network connection
-		kit.startAsync();
-		kit.awaitRunning();
+		bitmarkWalletKit.start();
 
 		log.info("state: " + kit.state());
 		log.info("{} balance: {}", bitmarkWalletKit.getBitmarkWalletFileName(),
@@ -206,14 +489,11 @@ public class BitmarkPayService {
 		String consoleMsg;
 		String passwordFromCmd;
 		String password = null;
-		Long estimated = 0L;
-		Long available = 0L;
-		String address = null;
 
 		// deal with command after kit start
 		switch (cmd) {
 		case ENCRYPT:
-			if (bitmarkWalletKit.walletIsEncrypted()) {
+			if (target.walletIsEncrypted()) {
 				System.err.println("Wallet is encrypted");
 				return;
 			}
@@ -241,10 +521,10 @@ public class BitmarkPayService {
 				return;
 			}
 
-			kit.wallet().encrypt(password);
+			target.wallet().encrypt(password);
 			break;
 		case DECRYPT:
-			if (!bitmarkWalletKit.walletIsEncrypted()) {
+			if (!target.walletIsEncrypted()) {
 				System.err.println("Wallet is not encrypted");
 				return;
 			}
@@ -257,133 +537,492 @@ public class BitmarkPayService {
 				password = BitmarkWalletKit.getPassword(consoleMsg, passwordFromCmd);
 			}
 
-			if (!kit.wallet().checkPassword(password)) {
+			if (!target.wallet().checkPassword(password)) {
 				System.err.println("Wrong password");
 				return;
 			}
 
-			kit.wallet().decrypt(password);
+			target.wallet().decrypt(password);
 			break;
 		case PAY:
-			if (line.getArgs().length >= 3 && 1 == (line.getArgs().length % 2)) {
-				targets = line.getArgs();
-			} else {
-				System.err.println("Please give txid address amount {address amount}...");
-				return;
+		case BALANCE:
+		case ADDRESS:
+		case PENDING_TX:
+		case INFO:
+		case STATUS:
+		case SPLIT_UTXOS:
+		case CONSOLIDATE:
+		case HISTORY:
+		case WAIT:
+			// get password if paying from an encrypted wallet
+			if ((cmd == Commands.PAY || cmd == Commands.SPLIT_UTXOS
+			     || (cmd == Commands.CONSOLIDATE && !line.hasOption("dry-run")))
+			    && target.walletIsEncrypted()) {
+				password = readPassword(line, enableStdin);
 			}
 
-			// get password if wallet is encrypted and check it
-			if (bitmarkWalletKit.walletIsEncrypted()) {
-				if (enableStdin) {
-					password = BitmarkWalletKit.getStdinPassword();
+			try {
+				if (cmd == Commands.HISTORY) {
+					streamHistory(line, null, new CommandProcessor(bitmarkWalletKit));
 				} else {
-					consoleMsg = "Password:";
-					passwordFromCmd = line.getOptionValue("password");
-					password = BitmarkWalletKit.getPassword(consoleMsg, passwordFromCmd);
+					Object response = new CommandProcessor(bitmarkWalletKit).process(cmd, line.getArgs(), commandOptions(line), password);
+					printResponse(cmd, response, enableJson);
+					exitForWait(cmd, response);
+				}
+			} catch (CommandException e) {
+				System.err.println(e.getMessage());
+				exitOnWaitError(cmd);
+				return;
+			}
+			break;
+		case PAY_BATCH:
+			KeyParameter aesKey;
+			if (target.walletIsEncrypted()) {
+				password = readPassword(line, enableStdin);
+			}
+			try {
+				aesKey = new CommandProcessor(target).checkPassword(password);
+			} catch (CommandException e) {
+				System.err.println(e.getMessage());
+				System.exit(EXIT_ERROR);
+				return;
+			}
+
+			PayBatch batch = new PayBatch(target, window);
+
+			// records from the file argument or from stdin
+			int failed;
+			if (line.getArgs().length > 0 && !line.getArgs()[0].equals("-")) {
+				try (BufferedReader in = Files.newBufferedReader(Paths.get(line.getArgs()[0]), StandardCharsets.UTF_8)) {
+					failed = batch.run(in, System.out, aesKey);
 				}
+			} else {
+				failed = batch.run(BitmarkWalletKit.getStdinReader(), System.out, aesKey);
+			}
+			log.info("stop logging..");
+			if (failed > 0) {
+				// the shutdown hook still stops the kit
+				System.exit(EXIT_ERROR);
+			}
+			return;
+		case WATCH:
+			try {
+				new CommandProcessor(bitmarkWalletKit).watch(line.getArgs(), commandOptions(line), new PaymentWatcher.Listener() {
+					@Override
+					public void onEvent(WatchEventJsonResponse event) {
+						System.out.println(new Gson().toJson(event));
+						System.out.flush();
+					}
+				});
+			} catch (CommandException e) {
+				System.err.println(e.getMessage());
+				return;
+			}
+			// returns after the shutdown hook stops the kit
+			kit.awaitTerminated();
+			log.info("stop logging..");
+			return;
+		case DAEMON:
+			// returns after the shutdown hook stops the daemon
+			daemon.run();
+			log.info("stop logging..");
+			return;
+		case RESTORE:
+			log.info("wallet restore complete.");
+			break;
+		default:
+			printHelpMessage(options);
+			return;
+		}
+
+		if (!target.walletIsEncrypted() && !enableJson) {
+			System.out.println("NOTE: Please run encrypt to protect your wallet");
+		}
+
+		log.debug("Balance: " + target.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE));
+		log.info("stop logging..");
+	}
 
-				if (!kit.wallet().checkPassword(password)) {
-					System.err.println("Wrong password");
+	/**
+	 * <p>
+	 * Send the command to a running daemon and print its answer.
+	 * </p>
+	 */
+	private static void runClient(PayDaemonClient client, Commands cmd, CommandLine line,
+				      boolean enableStdin, boolean enableJson) throws IOException {
+		if (cmd == Commands.HISTORY) {
+			try {
+				streamHistory(line, client, null);
+			} catch (CommandException e) {
+				System.err.println(e.getMessage());
+			}
+			return;
+		}
+		if (cmd == Commands.WATCH) {
+			// event lines until the daemon stops or this process is killed
+			String response = client.send(new CommandJsonRequest(cmd.toString(), line.getArgList(), commandOptions(line), null));
+			ErrorJsonResponse error = parseError(new Gson(), response);
+			while (response != null) {
+				if (error != null) {
+					System.err.println(error.getError());
 					return;
 				}
+				System.out.println(response);
+				System.out.flush();
+				response = client.receive();
 			}
+			return;
+		}
 
-			String payId = targets[0];
-			if (!bitmarkWalletKit.checkHex(payId)) {
-				System.err.println("First parameter is not hex");
-				return;
+		String password = null;
+		if (enableStdin || line.hasOption("password")) {
+			password = readPassword(line, enableStdin);
+		}
+
+		Gson gson = new Gson();
+		String response = client.send(new CommandJsonRequest(cmd.toString(), line.getArgList(), commandOptions(line), password));
+		ErrorJsonResponse error = parseError(gson, response);
+		if (error != null && error.isPasswordRequired() && password == null) {
+			password = readPassword(line, false);
+			response = client.send(new CommandJsonRequest(cmd.toString(), line.getArgList(), commandOptions(line), password));
+			error = parseError(gson, response);
+		}
+		if (error != null) {
+			System.err.println(error.getError());
+			exitOnWaitError(cmd);
+			return;
+		}
+
+		Object parsed = gson.fromJson(response, responseClass(cmd));
+		if (enableJson) {
+			System.out.println(response);
+		} else {
+			printResponse(cmd, parsed, false);
+		}
+		exitForWait(cmd, parsed);
+	}
+
+	/**
+	 * <p>
+	 * Exit with the code of a wait that did not confirm, the shutdown hook
+	 * still stops the kit.
+	 * </p>
+	 */
+	private static void exitForWait(Commands cmd, Object response) {
+		if (cmd != Commands.WAIT) {
+			return;
+		}
+		if (response == null) {
+			System.err.println("No answer to wait");
+			System.exit(EXIT_ERROR);
+		}
+		String status = ((WaitJsonResponse) response).getStatus();
+		if (CommandProcessor.WAIT_TIMEOUT.equals(status)) {
+			System.exit(EXIT_TIMEOUT);
+		} else if (CommandProcessor.WAIT_DEAD.equals(status)) {
+			System.exit(EXIT_DEAD);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Exit with the error code if a wait could not be made, so a script
+	 * does not take it for a confirmation.
+	 * </p>
+	 */
+	private static void exitOnWaitError(Commands cmd) {
+		if (cmd == Commands.WAIT) {
+			System.exit(EXIT_ERROR);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Options given to the command by long name, "true" for flags. The
+	 * password is never included.
+	 * </p>
+	 */
+	private static Map<String, String> commandOptions(CommandLine line) {
+		Map<String, String> result = new HashMap<String, String>();
+		for (Option option : line.getOptions()) {
+			String name = option.getLongOpt() != null ? option.getLongOpt() : option.getOpt();
+			if (name.equals("password")) {
+				continue;
 			}
+			result.put(name, option.hasArg() ? option.getValue() : "true");
+		}
+		return result;
+	}
 
-			List<Payment> payments = new ArrayList<Payment>();
-			Coin needSatoshi = Coin.valueOf(0);
-			for (int i = 1; i < targets.length; i += 2) {
-				Address paymentAddress = Address.fromBase58(kit.params(), targets[i]);
-				Coin amountSatoshi = Coin.valueOf(Long.parseLong(targets[i+1]));
-				//payments.add(BitmarkWalletKit.Payment(amountSatoshi, paymentAddress));
-				Payment p = new Payment(paymentAddress, amountSatoshi);
-				payments.add(p);
-				needSatoshi.add(amountSatoshi); // accumulate the total
-			}
-			String txId = bitmarkWalletKit.sendCoins(payId, payments, null, password);
-			if (null == txId) {
-				needSatoshi.add(Transaction.DEFAULT_TX_FEE);
-				System.err.printf("Payment failed, you need at least %d satoshi and wallet balance is %d\n",
-						  needSatoshi.value,
-						  kit.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE).value);
-				System.err.printf("Failed payment for:\npayId: %s\n", payId);
-				return;
+	/**
+	 * <p>
+	 * Print the history as one json line per transaction, page by page so
+	 * only one page is held at a time. With --limit only that page is
+	 * printed, followed by a {"next": cursor} line if there are more.
+	 * </p>
+	 *
+	 * @param client
+	 *            the daemon to ask, or null
+	 * @param processor
+	 *            to ask when there is no daemon
+	 */
+	private static void streamHistory(CommandLine line, PayDaemonClient client, CommandProcessor processor)
+			throws IOException, CommandException {
+		Gson gson = new Gson();
+		String cursor = line.getOptionValue("cursor");
+		boolean onePage = line.hasOption("limit");
+		while (true) {
+			Map<String, String> options = commandOptions(line);
+			if (cursor != null) {
+				options.put("cursor", cursor);
 			}
-			if (enableJson) {
-				Gson gson = new Gson();
-				TxIdJsonResponse response = new TxIdJsonResponse(txId);
-				System.out.println(gson.toJson(response));
+			HistoryJsonResponse page;
+			if (client != null) {
+				String response = client.send(new CommandJsonRequest(Commands.HISTORY.toString(), line.getArgList(),
+										  options, null));
+				ErrorJsonResponse error = parseError(gson, response);
+				if (error != null) {
+					throw new CommandException(error.getError());
+				}
+				page = gson.fromJson(response, HistoryJsonResponse.class);
 			} else {
-				System.out.printf("success: txid: %s\n", txId);
+				page = (HistoryJsonResponse) processor.process(Commands.HISTORY, line.getArgs(), options, null);
 			}
-			break;
+			for (HistoryJsonResponse.HistoryTx tx : page.getTransactions()) {
+				System.out.println(gson.toJson(tx));
+			}
+			cursor = page.getNext();
+			if (cursor == null) {
+				break;
+			}
+			if (onePage) {
+				JsonObject next = new JsonObject();
+				next.addProperty("next", cursor);
+				System.out.println(gson.toJson(next));
+				break;
+			}
+		}
+		System.out.flush();
+	}
+
+	private static ErrorJsonResponse parseError(Gson gson, String response) {
+		JsonObject object = gson.fromJson(response, JsonObject.class);
+		if (object == null || !object.has("error")) {
+			return null;
+		}
+		return gson.fromJson(object, ErrorJsonResponse.class);
+	}
+
+	private static Class<?> responseClass(Commands cmd) {
+		switch (cmd) {
+		case PAY:
+			return TxIdJsonResponse.class;
 		case BALANCE:
-			estimated = kit.wallet().getBalance(BalanceType.ESTIMATED_SPENDABLE).value;
-			available = kit.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE).value;
-			if (enableJson) {
-				Gson gson = new Gson();
-				BalanceJsonResponse response = new BalanceJsonResponse(estimated, available);
-				System.out.println(gson.toJson(response));
-			} else {
-				System.out.println("Wallet estimated satoshi: " + estimated);
-				System.out.println("Wallet available satoshi: " + available);
+			return BalanceJsonResponse.class;
+		case ADDRESS:
+			return AddressJsonResponse.class;
+		case PENDING_TX:
+			return PendingTxJsonResponse.class;
+		case INFO:
+			return InfoJsonResponse.class;
+		case STATUS:
+			return StatusJsonResponse.class;
+		case SPLIT_UTXOS:
+			return SplitUtxosJsonResponse.class;
+		case CONSOLIDATE:
+			return ConsolidateJsonResponse.class;
+		case HISTORY:
+			return HistoryJsonResponse.class;
+		case WAIT:
+			return WaitJsonResponse.class;
+		default:
+			throw new IllegalArgumentException("no response for: " + cmd);
+		}
+	}
+
+	private static String readPassword(CommandLine line, boolean enableStdin) {
+		if (enableStdin) {
+			return BitmarkWalletKit.getStdinPassword();
+		}
+		return BitmarkWalletKit.getPassword("Password:", line.getOptionValue("password"));
+	}
+
+	/**
+	 * <p>
+	 * Print the response of a command either as json or as text.
+	 * </p>
+	 */
+	private static void printResponse(Commands cmd, Object response, boolean enableJson) {
+		if (enableJson) {
+			Gson gson = new Gson();
+			System.out.println(gson.toJson(response));
+			return;
+		}
+
+		switch (cmd) {
+		case PAY:
+			TxIdJsonResponse paid = (TxIdJsonResponse) response;
+			if (paid.getDuplicate() != null) {
+				System.out.printf("already paid: txid: %s status: %s\n", paid.getTxId(), paid.getStatus());
+				break;
 			}
+			System.out.printf("success: txid: %s fee: %s satoshi per kB: %s\n", paid.getTxId(), paid.getFee(),
+					  paid.getFeePerKb());
 			break;
-		case ADDRESS:
-			address = bitmarkWalletKit.getAddress().toString();
-			if (enableJson) {
-				Gson gson = new Gson();
-				AddressJsonResponse response = new AddressJsonResponse(address);
-				System.out.println(gson.toJson(response));
-			} else {
-				System.out.println("Wallet watched address: " + bitmarkWalletKit.getAddress());
+		case SPLIT_UTXOS:
+			SplitUtxosJsonResponse split = (SplitUtxosJsonResponse) response;
+			System.out.printf("success: txid: %s outputs: %d of: %d fee: %s satoshi per kB: %s pool: %d\n",
+					  split.getTxId(), split.getOutputs(), split.getAmount(), split.getFee(),
+					  split.getFeePerKb(), split.getPoolSize());
+			break;
+		case CONSOLIDATE:
+			printConsolidate((ConsolidateJsonResponse) response);
+			break;
+		case WAIT:
+			WaitJsonResponse waited = (WaitJsonResponse) response;
+			System.out.printf("%s: txid: %s height: %s depth: %s\n", waited.getStatus(), waited.getTxId(),
+					  waited.getHeight(), waited.getDepth());
+			if (waited.getConflictTxId() != null) {
+				System.out.printf("double-spent by: %s\n", waited.getConflictTxId());
 			}
-
+			break;
+		case ARCHIVE:
+			ArchiveJsonResponse archive = (ArchiveJsonResponse) response;
+			System.out.printf("Archived %d transactions at least %d deep to: %s\n", archive.getArchived(),
+					  archive.getDepth(), archive.getArchiveFile());
+			break;
+		case ARCHIVED:
+			List<ArchivedJsonResponse.ArchivedTx> archived = ((ArchivedJsonResponse) response).getTransactions();
+			if (archived.size() == 0) {
+				System.out.println("Not in the archive");
+				return;
+			}
+			for (ArchivedJsonResponse.ArchivedTx tx : archived) {
+				System.out.printf("txid: %s payId: %s height: %s time: %s\n", tx.getTxId(), tx.getPayId(),
+						  tx.getHeight(), tx.getTime() == null ? null : Instant.ofEpochSecond(tx.getTime()));
+			}
+			break;
+		case BALANCE:
+			BalanceJsonResponse balance = (BalanceJsonResponse) response;
+			System.out.println("Wallet estimated satoshi: " + balance.getEstimated());
+			System.out.println("Wallet available satoshi: " + balance.getAvailable());
+			printLastBlock(balance.getLastBlockHeight(), balance.getLastBlockTime(), balance.isOffline());
+			break;
+		case ADDRESS:
+			System.out.println("Wallet watched address: " + ((AddressJsonResponse) response).getAddress());
 			break;
 		case PENDING_TX:
-			if (kit.wallet().getPendingTransactions().size() == 0) {
+			List<String> pending = ((PendingTxJsonResponse) response).getPending();
+			if (pending.size() == 0) {
 				System.out.println("No pending transactions");
 				return;
 			}
-			for (Transaction tx : kit.wallet().getPendingTransactions()) {
-				System.out.println(tx.getHashAsString());
+			for (String txId : pending) {
+				System.out.println(txId);
 			}
 			break;
 		case INFO:
-			estimated = kit.wallet().getBalance(BalanceType.ESTIMATED_SPENDABLE).value;
-			available = kit.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE).value;
-			address = bitmarkWalletKit.getAddress().toString();
-			if (enableJson) {
-				Gson gson = new Gson();
-				InfoJsonResponse response = new InfoJsonResponse(estimated, available, address);
-				System.out.println(gson.toJson(response));
-			} else {
-				System.out.println(
-						"Wallet estimated satoshi: " + kit.wallet().getBalance(BalanceType.ESTIMATED_SPENDABLE));
-				System.out.println(
-						"Wallet available satoshi: " + kit.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE));
-				System.out.println("Wallet watched address: " + bitmarkWalletKit.getAddress());
-			}
+			InfoJsonResponse info = (InfoJsonResponse) response;
+			System.out.println("Wallet estimated satoshi: " + info.getBalance().getEstimated());
+			System.out.println("Wallet available satoshi: " + info.getBalance().getAvailable());
+			System.out.println("Wallet watched address: " + info.getAddress());
+			printLastBlock(info.getLastBlockHeight(), info.getLastBlockTime(), info.isOffline());
+			break;
+		case STATUS:
+			printStatus((StatusJsonResponse) response);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Print a read-only command from the snapshot file.
+	 * </p>
+	 */
+	private static void answerFromSnapshot(File snapshotFile, Commands cmd, boolean enableJson) throws IOException {
+		WalletSnapshot snapshot = WalletSnapshot.read(snapshotFile);
+		if (snapshot == null) {
+			System.err.printf("No snapshot file: %s\n", snapshotFile);
+			return;
+		}
 
+		Object response;
+		switch (cmd) {
+		case BALANCE:
+			BalanceJsonResponse balance = new BalanceJsonResponse(snapshot.getEstimated(), snapshot.getAvailable());
+			balance.setLastBlock(snapshot.getLastBlockHeight(), snapshot.getLastBlockTime(), true);
+			balance.setSnapshotTime(snapshot.getTimestamp());
+			response = balance;
 			break;
-		case RESTORE:
-			log.info("wallet restore complete.");
+		case ADDRESS:
+			response = new AddressJsonResponse(snapshot.getAddress());
+			break;
+		case PENDING_TX:
+			response = new PendingTxJsonResponse(snapshot.getPending());
+			break;
+		case INFO:
+			InfoJsonResponse info = new InfoJsonResponse(snapshot.getEstimated(), snapshot.getAvailable(), snapshot.getAddress());
+			info.setLastBlock(snapshot.getLastBlockHeight(), snapshot.getLastBlockTime(), true);
+			info.setSnapshotTime(snapshot.getTimestamp());
+			response = info;
 			break;
 		default:
-			printHelpMessage(options);
+			System.err.printf("Command: %s cannot be answered from a snapshot\n", cmd);
+			exitOnWaitError(cmd);
 			return;
 		}
+		printResponse(cmd, response, enableJson);
+	}
 
-		if (!bitmarkWalletKit.walletIsEncrypted() && !enableJson) {
-			System.out.println("NOTE: Please run encrypt to protect your wallet");
+	private static void printConsolidate(ConsolidateJsonResponse consolidated) {
+		if (consolidated.getTransactions().isEmpty()) {
+			System.out.printf("Nothing to consolidate below: %d satoshi\n", consolidated.getThreshold());
+			return;
+		}
+		for (ConsolidateJsonResponse.ConsolidateTx tx : consolidated.getTransactions()) {
+			System.out.printf("%s inputs: %d value: %d size: %d fee: %d saves: %d bytes, break even at %d satoshi per kB\n",
+					  consolidated.isDryRun() ? "dry run:" : "txid: " + tx.getTxId(), tx.getInputs(), tx.getValue(),
+					  tx.getEstimatedSize(), tx.getFee(), tx.getBytesSaved(), tx.getBreakEvenFeePerKb());
 		}
+		System.out.printf("Total inputs: %d fee: %d at %d satoshi per kB, saves: %d bytes, %d satoshi at %d satoshi per kB\n",
+				  consolidated.getInputs(), consolidated.getFee(), consolidated.getFeePerKb(),
+				  consolidated.getBytesSaved(), consolidated.getSavings(), consolidated.getLaterFeePerKb());
+	}
 
-		log.debug("Balance: " + kit.wallet().getBalance(BalanceType.AVAILABLE_SPENDABLE));
-		log.info("stop logging..");
+	private static void printStatus(StatusJsonResponse status) {
+		System.out.printf("State: %s up %ds\n", status.getState(), status.getUptimeSeconds());
+		System.out.printf("Startup: wallet loaded %s first peer %s synced %s (msec)\n",
+				  status.getWalletLoadedMsec(), status.getFirstPeerMsec(), status.getSyncedMsec());
+		Double rate = status.getBlocksPerSecond();
+		System.out.printf("Chain height: %s peers height: %s headers remaining: %s blocks/s: %s\n",
+				  status.getChainHeight(), status.getPeersHeight(), status.getHeadersRemaining(),
+				  rate == null ? null : String.format("%.1f", rate));
+		System.out.printf("Peers: %d\n", status.getPeers().size());
+		for (StatusJsonResponse.PeerStatus peer : status.getPeers()) {
+			System.out.printf("  %s ping: %smsec height: %d %s\n", peer.getAddress(), peer.getPingMsec(),
+					  peer.getBestHeight(), peer.getUserAgent());
+		}
+		System.out.printf("Filter recalculations: %s merged: %d\n", status.getFilterRecalculations(),
+				  status.getFilterRecalculationsMerged());
+		System.out.printf("Filter rate: %s estimated: %s transactions: %d matched: %d false positives: %d\n",
+				  status.getFilterFalsePositiveRate(), status.getFilterFalsePositiveEstimate(),
+				  status.getFilterTransactions(), status.getFilterMatched(), status.getFilterFalsePositives());
+		System.out.printf("Broadcasts: %d acknowledged: %d failed: %d last ack: %smsec outbox: %s\n",
+				  status.getBroadcasts(), status.getBroadcastsAcknowledged(), status.getBroadcastsFailed(),
+				  status.getLastAcknowledgeMsec(), status.getOutbox());
+		System.out.printf("Wallet saves: %d merged: %d failed: %d last: %smsec max: %smsec size: %s bytes\n",
+				  status.getWalletSaves(), status.getWalletSavesMerged(), status.getWalletSavesFailed(),
+				  status.getLastWalletSaveMsec(), status.getMaxWalletSaveMsec(), status.getWalletFileBytes());
+	}
+
+	private static void printLastBlock(Integer height, Long time, boolean offline) {
+		if (height == null || time == null) {
+			return;
+		}
+		System.out.printf("Wallet last block: %d at %s%s\n", height,
+				  Instant.ofEpochSecond(time), offline ? " (offline)" : "");
 	}
 
 	private static void printHelpMessage(Options options) {
@@ -396,6 +1035,19 @@ public class BitmarkPayService {
 		System.out.println(" address                   get wallet address");
 		System.out.println(" pending-tx                get pending transactions");
 		System.out.println(" info                      get wallet balance and address");
+		System.out.println(" pay-batch [file|-]         pay csv/json records, one per line, from file or stdin,");
+		System.out.println("                            exit code " + EXIT_ERROR + " if any record failed");
+		System.out.println(" status                    sync progress, peers and broadcast counters");
+		System.out.println(" split-utxos <count> <amount>  pay count outputs of amount to the wallet for parallel payments");
+		System.out.println(" consolidate <threshold>   merge the outputs worth less than threshold satoshi");
+		System.out.println(" archive --older-than-depth <n>  move old spent transactions out of the wallet file");
+		System.out.println(" archived <txid|payId>     look up a transaction in the archive");
+		System.out.println(" history                   transactions oldest first, one json line each");
+		System.out.println("                            archived transactions are not listed, see archived");
+		System.out.println(" watch [txid|payId]...     json line per confidence event of the payments until stopped");
+		System.out.println(" wait <txid>               block until the transaction is --depth deep (exit 0), --timeout (2) or dead (3), 1 on error");
+		System.out.println(" checkpoints               add the synced block chain to the checkpoints file of the network");
+		System.out.println(" daemon                    keep the wallet running and serve the above commands locally");
 
 		formatter.printHelp(" ", options, false);
 
@@ -0,0 +1,167 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * <p>
+ * PeerGroup reporting its bloom filter recalculations and broadcasts to
+ * the WalletMetrics.
+ * </p>
+ * <p>
+ * The configured peers beyond the connection limit are kept as fallbacks,
+ * best first: each time a peer dies the next one is offered, so it is
+ * tried before the dead peer comes out of its backoff.
+ * </p>
+ * <p>
+ * With a recalculate delay the SEND_IF_CHANGED recalculations the wallet
+ * asks for on every transaction are held back that long and merged, so a
+ * burst of payments rebuilds and sends the filter once.
+ * </p>
+ */
+public class BitmarkPeerGroup extends PeerGroup {
+	private static final Logger log = LoggerFactory.getLogger(BitmarkPeerGroup.class);
+
+	private final WalletMetrics metrics;
+
+	private final LinkedList<PeerAddress> fallbacks = new LinkedList<PeerAddress>();
+
+	private volatile long recalculateDelay = 0;
+
+	// the delayed recalculation the next requests are merged into
+	private final Object pendingLock = new Object();
+	private SettableFuture<BloomFilter> pending = null;
+
+	public BitmarkPeerGroup(NetworkParameters params, AbstractBlockChain chain, WalletMetrics metrics,
+			List<PeerAddress> fallbacks) {
+		super(params, chain);
+		this.metrics = metrics;
+		if (fallbacks != null) {
+			this.fallbacks.addAll(fallbacks);
+		}
+	}
+
+	@Override
+	protected void handlePeerDeath(Peer peer, Throwable exception) {
+		super.handlePeerDeath(peer, exception);
+		if (!isRunning()) {
+			return;
+		}
+		PeerAddress next;
+		synchronized (fallbacks) {
+			next = fallbacks.poll();
+		}
+		if (next != null) {
+			log.info("peer: {} died, adding fallback: {}", peer.getAddress(), next);
+			// addAddress raises the limit by one, keep it
+			int max = getMaxConnections();
+			addAddress(next);
+			setMaxConnections(max);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Hold back SEND_IF_CHANGED filter recalculations and merge them.
+	 * </p>
+	 *
+	 * @param msec
+	 *            delay, 0 to recalculate at once
+	 */
+	public void setFilterRecalculateDelay(long msec) {
+		this.recalculateDelay = msec;
+	}
+
+	public long getFilterRecalculateDelay() {
+		return recalculateDelay;
+	}
+
+	@Override
+	public ListenableFuture<BloomFilter> recalculateFastCatchupAndFilter(FilterRecalculateMode mode) {
+		if (recalculateDelay <= 0 || mode != FilterRecalculateMode.SEND_IF_CHANGED) {
+			return recalculate(mode);
+		}
+		final SettableFuture<BloomFilter> future;
+		synchronized (pendingLock) {
+			if (pending != null) {
+				if (metrics != null) {
+					metrics.filterRecalculationMerged();
+				}
+				return pending;
+			}
+			future = SettableFuture.create();
+			pending = future;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (pendingLock) {
+						pending = null;
+					}
+					complete(future, recalculate(FilterRecalculateMode.SEND_IF_CHANGED));
+				}
+			}, recalculateDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down, nothing to merge with any more
+			synchronized (pendingLock) {
+				pending = null;
+			}
+			complete(future, recalculate(mode));
+		}
+		return future;
+	}
+
+	private static void complete(final SettableFuture<BloomFilter> future, ListenableFuture<BloomFilter> from) {
+		Futures.addCallback(from, new FutureCallback<BloomFilter>() {
+			@Override
+			public void onSuccess(BloomFilter result) {
+				future.set(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				future.setException(t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private ListenableFuture<BloomFilter> recalculate(FilterRecalculateMode mode) {
+		if (metrics != null) {
+			metrics.filterRecalculated(mode);
+		}
+		return super.recalculateFastCatchupAndFilter(mode);
+	}
+
+	@Override
+	public TransactionBroadcast broadcastTransaction(Transaction tx, int minConnections) {
+		TransactionBroadcast broadcast = super.broadcastTransaction(tx, minConnections);
+		if (metrics != null) {
+			metrics.broadcastStarted(tx, broadcast);
+		}
+		return broadcast;
+	}
+}
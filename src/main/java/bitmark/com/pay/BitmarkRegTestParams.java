@@ -5,6 +5,7 @@
 package bitmark.com.pay;
 
 import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.params.TestNet2Params;
@@ -14,6 +15,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -27,6 +33,22 @@ public class BitmarkRegTestParams extends TestNet2Params {
 	private static final BigInteger MAX_TARGET = new BigInteger(
 			"7fffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff", 16);
 
+	// number of blocks remembered by the difficulty check
+	private static final int DEEP_BLOCKS_SIZE = 4096;
+
+	// blocks loaded from a checkpoints file, the store has nothing below them
+	private final Set<Sha256Hash> checkpoints = ConcurrentHashMap.newKeySet();
+
+	// recent blocks already known to have enough ancestors, least recently
+	// used first
+	private final Map<Sha256Hash, Boolean> deepBlocks = Collections.synchronizedMap(
+		new LinkedHashMap<Sha256Hash, Boolean>(DEEP_BLOCKS_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+				return size() > DEEP_BLOCKS_SIZE;
+			}
+		});
+
 	public BitmarkRegTestParams() {
 		super();
 		maxTarget = MAX_TARGET;
@@ -72,28 +94,61 @@ public class BitmarkRegTestParams extends TestNet2Params {
 	}
 
 	/**
-	 * Override the checkDifficulty for bitmark reg test
+	 * <p>
+	 * Trust a checkpoint block, so that the traversal below stops there
+	 * instead of looking for its ancestors.
+	 * </p>
+	 *
+	 * @param hash
+	 *            hash of the checkpoint block
+	 */
+	public void addCheckpoint(Sha256Hash hash) {
+		checkpoints.add(hash);
+	}
+
+	/**
+	 * <p>
+	 * Override the checkDifficulty for bitmark reg test, which only checks
+	 * that the previous block has getInterval() - 1 ancestors in the store,
+	 * or leads back to genesis or a checkpoint before that.
+	 * </p>
+	 * <p>
+	 * A block that passed has enough ancestors for good, so it is
+	 * remembered and the check of its children stops there. While syncing
+	 * each block is then checked in constant time instead of walking
+	 * through the store.
+	 * </p>
 	 */
 	@Override
 	public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
 			final BlockStore blockStore) throws VerificationException, BlockStoreException {
-		Block prev = storedPrev.getHeader();
-
-		long now = System.currentTimeMillis();
-		StoredBlock cursor = blockStore.get(prev.getHash());
-		for (int i = 0; i < this.getInterval() - 1; i++) {
-			if (cursor == null) {
-				// This should never happen. If it does, it means we are
-				// following an incorrect or busted chain.
-				throw new VerificationException(
-						"Difficulty transition point but we did not find a way back to the genesis block.");
+		Sha256Hash prevHash = storedPrev.getHeader().getHash();
+
+		if (!isDeep(prevHash)) {
+			long now = System.currentTimeMillis();
+			StoredBlock cursor = storedPrev;
+			for (int i = 0; i < this.getInterval() - 1; i++) {
+				if (cursor == null) {
+					// This should never happen. If it does, it means we are
+					// following an incorrect or busted chain.
+					throw new VerificationException(
+							"Difficulty transition point but we did not find a way back to the genesis block.");
+				}
+				if (cursor.getHeight() == 0 || (i > 0 && isDeep(cursor.getHeader().getHash()))) {
+					break;
+				}
+				cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
 			}
-			cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+			long elapsed = System.currentTimeMillis() - now;
+			if (elapsed > 50)
+				log.info("Difficulty transition traversal took {}msec", elapsed);
+			deepBlocks.put(prevHash, Boolean.TRUE);
 		}
-		long elapsed = System.currentTimeMillis() - now;
-		if (elapsed > 50)
-			log.info("Difficulty transition traversal took {}msec", elapsed);
+		deepBlocks.put(nextBlock.getHash(), Boolean.TRUE);
+	}
 
+	private boolean isDeep(Sha256Hash hash) {
+		return deepBlocks.get(hash) != null || checkpoints.contains(hash);
 	}
 
 }
@@ -4,38 +4,66 @@
 
 package bitmark.com.pay;
 
+import java.io.BufferedReader;
 import java.io.Console;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Iterator;
-import java.util.Scanner;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.NetworkParameters;
-import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
 import org.bitcoinj.wallet.DeterministicSeed;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
 import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
 import org.bitcoinj.crypto.KeyCrypterException;
 import org.bitcoinj.kits.WalletAppKit;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.RegTestParams;
 import org.bitcoinj.params.TestNet3Params;
-import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
 
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+
+import bitmark.com.json.StatusJsonResponse;
 
 /**
  * <p>
@@ -79,19 +107,114 @@ public class BitmarkWalletKit {
 
 	/**
 	 * <p>
-	 * from org.bitcoinj.core.Transaction as of 2017-03-01
-	 * to override the current value which is yet to be updated
+	 * the fee per kB when none is configured, see KitDefaults
+	 * <p>
+	 */
+	public static final Coin DEFAULT_TX_FEE = Coin.valueOf(KitDefaults.DEFAULT_TX_FEE);
+
+	/**
+	 * <p>
+	 * prefix of the wallet, block chain and other files, followed by
+	 * "-" and the net type
+	 * </p>
+	 */
+	public static final String WALLET_FILE_PREFIX = "bitmarkWallet";
+
+	/**
 	 * <p>
+	 * most outputs of one split transaction, about 34kB
+	 * </p>
 	 */
-	public static final Coin DEFAULT_TX_FEE = Coin.valueOf(100000); // 1 mBTC
+	public static final int MAX_SPLIT_OUTPUTS = 1000;
+
+	/**
+	 * <p>
+	 * most inputs of one consolidation transaction, about 89kB
+	 * </p>
+	 */
+	public static final int MAX_CONSOLIDATE_INPUTS = 600;
+
+	/**
+	 * <p>
+	 * signed pay to address input: outpoint, sequence and a signature
+	 * script of about SCRIPT_SIG_BYTES
+	 * </p>
+	 */
+	public static final int INPUT_BYTES = 148;
+	public static final int SCRIPT_SIG_BYTES = 107;
 
 	private String bitmarkWalletFileName;
 	private String walletFolder;
-	private Pattern hexPattern;
 
-	private static Scanner scanner;
+	private static BufferedReader stdin;
+
+	private BitmarkAppKit walletAppkit = null;
+
+	private BroadcastOutbox outbox = null;
+
+	private SnapshotWriter snapshotWriter = null;
+
+	private CheckpointFile checkpointFile = null;
+
+	private final WalletMetrics metrics;
+
+	// the wallets hosted by this kit by name, each a kit sharing its peers
+	private final Map<String, BitmarkWalletKit> hosted = new LinkedHashMap<String, BitmarkWalletKit>();
 
-	private WalletAppKit walletAppkit = null;
+	// name of a hosted wallet, null for the kit wallet
+	private String hostedName = null;
+
+	// seconds between metrics log lines, 0 for none
+	private int metricsInterval = 0;
+
+	// archive the spent transactions this deep on start, 0 for never
+	private int archiveDepth = 0;
+
+	private PeerCache peerCache = null;
+
+	private PayIdIndex payIdIndex = null;
+
+	// configured peers, null to use the network default
+	private List<InetSocketAddress> peerAddresses = null;
+
+	/**
+	 * <p>
+	 * One transaction of consolidate(), not committed for a dry run.
+	 * </p>
+	 */
+	public static class ConsolidateResult extends PaySendResult {
+		public int inputs;
+		public Coin value;
+		public int estimatedSize;
+	}
+
+	// wallet read from disk without starting the kit
+	private Wallet offlineWallet = null;
+
+	private FeePolicy feePolicy = new StaticFeePolicy(DEFAULT_TX_FEE);
+	private Coin minFeePerKb = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+	private Coin maxFeePerKb = null;
+
+	private int maxUnconfirmedAncestors = BitmarkCoinSelector.DEFAULT_MAX_UNCONFIRMED_ANCESTORS;
+
+	// outputs of poolAmount kept for parallel payments, 0 for none
+	private int poolCount = 0;
+	private Coin poolAmount = null;
+	private ExecutorService poolExecutor = null;
+	private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+	/**
+	 * <p>
+	 * The result of sendCoinsAsync() with the fee per kB it was made with.
+	 * </p>
+	 */
+	public static class PaySendResult extends Wallet.SendResult {
+		public Coin feePerKb;
+
+		// set when the payId was paid before and nothing was sent
+		public String paidTxId;
+		public String paidStatus;
+	}
 
 	/**
 	 * <p>
@@ -102,13 +225,12 @@ public class BitmarkWalletKit {
 	 *            specify the net for the walletAppKit. @see NetType
 	 * @throws IOException
 	 */
-	public BitmarkWalletKit(NetType net, String walletFolder, List<PeerAddress> peerAddresses) throws IOException {
+	public BitmarkWalletKit(NetType net, String walletFolder, List<InetSocketAddress> peerAddresses) throws IOException {
 		NetworkParameters netParams;
 		this.walletFolder = walletFolder;
+		this.metrics = new WalletMetrics();
 
-		String filePrefix = "bitmarkWallet";
-
-		bitmarkWalletFileName = filePrefix + "-" + net;
+		bitmarkWalletFileName = WALLET_FILE_PREFIX + "-" + net;
 
 		switch (net) {
 		case BITMARK:
@@ -133,22 +255,528 @@ public class BitmarkWalletKit {
 			throw new IOException("Invalid net: " + net);
 		}
 
-		walletAppkit = new WalletAppKit(netParams, new File(walletFolder), bitmarkWalletFileName);
+		walletAppkit = new BitmarkAppKit(netParams, new File(walletFolder), bitmarkWalletFileName, metrics);
 		if (net.equals(NetType.LOCAL_BITCOIN_REG)) {
 			walletAppkit.connectToLocalHost();
 		}
 
+		peerCache = new PeerCache(getPeerCacheFile());
+		peerCache.read();
+		walletAppkit.setPeerCache(peerCache);
+
 		if (peerAddresses != null) { // peerAddress is specified
-			PeerAddress[] arrayPeerAddr = new PeerAddress[peerAddresses.size()];
-			peerAddresses.toArray(arrayPeerAddr);
-			walletAppkit.setPeerNodes(arrayPeerAddr);
+			walletAppkit.setPeers(peerAddresses, 0, PeerGroup.DEFAULT_CONNECT_TIMEOUT_MILLIS, 0);
+			this.peerAddresses = peerAddresses;
 		}
 	}
 
+	// a wallet hosted by the kit of host, its files named after it
+	private BitmarkWalletKit(BitmarkWalletKit host, String name) {
+		this.walletFolder = host.walletFolder;
+		this.bitmarkWalletFileName = host.bitmarkWalletFileName + "-" + name;
+		this.walletAppkit = host.walletAppkit;
+		this.metrics = host.metrics;
+		this.hostedName = name;
+	}
+
 	public WalletAppKit getWalletAppkit() {
 		return walletAppkit;
 	}
 
+	/**
+	 * <p>
+	 * Host more wallets of the network in this kit. They share its peer
+	 * connections and block store, and get files of their own named after
+	 * them: the wallet file is the kit wallet file name with "-" and the
+	 * wallet name added. Must be called before start().
+	 * </p>
+	 *
+	 * @param names
+	 *            letters, digits, '_' and '-'
+	 */
+	public void setHostedWallets(List<String> names) {
+		if (hostedName != null) {
+			throw new IllegalStateException("hosted wallet: " + hostedName + " cannot host wallets");
+		}
+		hosted.clear();
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for (String name : names) {
+			if (!KitDefaults.isHostedName(name)) {
+				throw new IllegalArgumentException("invalid hosted wallet name: '" + name + "'");
+			}
+			BitmarkWalletKit kit = new BitmarkWalletKit(this, name);
+			hosted.put(name, kit);
+			files.put(name, kit.getWalletFile());
+		}
+		walletAppkit.setHostedWallets(files);
+	}
+
+	/**
+	 * <p>
+	 * The kit of a hosted wallet, to run commands on it. It is started and
+	 * stopped with this kit.
+	 * </p>
+	 *
+	 * @return the kit or null if no wallet of that name is hosted
+	 */
+	public BitmarkWalletKit getHosted(String name) {
+		return hosted.get(name);
+	}
+
+	public List<String> getHostedNames() {
+		return new ArrayList<String>(hosted.keySet());
+	}
+
+	/**
+	 * <p>
+	 * The wallet of the started kit, or the one read by loadWalletOffline().
+	 * </p>
+	 *
+	 * @return the wallet
+	 */
+	public Wallet wallet() {
+		if (offlineWallet != null) {
+			return offlineWallet;
+		}
+		if (hostedName != null) {
+			return walletAppkit.hostedWallet(hostedName);
+		}
+		return walletAppkit.wallet();
+	}
+
+	/**
+	 * <p>
+	 * Read the wallet file without starting the kit, so no peers are
+	 * contacted and no block store is opened. The wallet is only as recent
+	 * as its last seen block and must not be changed.
+	 * </p>
+	 *
+	 * @return false if there is no wallet file yet
+	 * @throws IOException
+	 *             if the wallet file could not be read
+	 */
+	public boolean loadWalletOffline() throws IOException {
+		File file = getWalletFile();
+		if (!file.exists()) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		try (FileInputStream walletStream = new FileInputStream(file)) {
+			Protos.Wallet proto = WalletProtobufSerializer.parseToProto(walletStream);
+			offlineWallet = new WalletProtobufSerializer().readWallet(walletAppkit.params(), null, proto);
+		} catch (UnreadableWalletException e) {
+			throw new IOException("Unreadable wallet: " + file, e);
+		}
+		log.info("loaded offline wallet: {} in {}msec", file, System.currentTimeMillis() - now);
+		return true;
+	}
+
+	/**
+	 * @return true if the wallet was read by loadWalletOffline()
+	 */
+	public boolean isOffline() {
+		return offlineWallet != null;
+	}
+
+	/**
+	 * <p>
+	 * Use the checkpoints in file when a new block store is created, that
+	 * is on the first start and on restore. Must be called before start().
+	 * </p>
+	 *
+	 * @param file
+	 *            checkpoints file for the network, need not exist
+	 * @throws IOException
+	 *             if the file is unreadable
+	 */
+	public void setCheckpointsFile(File file) throws IOException {
+		checkpointFile = new CheckpointFile(walletAppkit.params(), file);
+		if (!checkpointFile.read() || checkpointFile.getCheckpoints().isEmpty()) {
+			log.info("no checkpoints in: {}", file);
+			return;
+		}
+		walletAppkit.setCheckpoints(checkpointFile.openStream());
+
+		// the bitmark difficulty check must not look below a checkpoint
+		NetworkParameters params = walletAppkit.params();
+		if (params instanceof BitmarkRegTestParams) {
+			for (StoredBlock block : checkpointFile.getCheckpoints()) {
+				((BitmarkRegTestParams) params).addCheckpoint(block.getHeader().getHash());
+			}
+		}
+		log.info("using: {} checkpoints from: {}", checkpointFile.getCheckpoints().size(), file);
+	}
+
+	/**
+	 * <p>
+	 * Add the checkpoints of the local block store to the checkpoints file.
+	 * The kit must not be running as the store is opened directly.
+	 * </p>
+	 *
+	 * @return number of new checkpoints
+	 * @throws IOException
+	 *             if there is no block store or the file cannot be written
+	 * @throws BlockStoreException
+	 */
+	public int writeCheckpoints() throws IOException, BlockStoreException {
+		if (checkpointFile == null) {
+			throw new IOException("No checkpoints file set");
+		}
+		File chainFile = getChainFile();
+		if (!chainFile.exists()) {
+			throw new IOException("No block chain file: " + chainFile + " the wallet must be synced first");
+		}
+		BlockStore store = new HeaderFileStore(walletAppkit.params(), chainFile, HeaderFileStore.DEFAULT_CAPACITY,
+				false, false);
+		int added;
+		try {
+			added = checkpointFile.addFromStore(store);
+		} finally {
+			store.close();
+		}
+		if (added > 0) {
+			checkpointFile.write();
+		}
+		log.info("added: {} checkpoints to: {}", added, checkpointFile.getFile());
+		return added;
+	}
+
+	/**
+	 * <p>
+	 * Limit the connections to the configured peers. Must be called before
+	 * start(), does nothing without configured peers.
+	 * </p>
+	 *
+	 * @param maxConnections
+	 *            peers to connect to, 0 for all
+	 * @param connectTimeout
+	 *            msec to wait for a peer to answer
+	 * @param broadcastConnections
+	 *            connected peers a broadcast waits for, 0 for the default
+	 */
+	public void setPeerConnections(int maxConnections, int connectTimeout, int broadcastConnections) {
+		if (peerAddresses == null) {
+			return;
+		}
+		walletAppkit.setPeers(peerAddresses, maxConnections, connectTimeout, broadcastConnections);
+	}
+
+	/**
+	 * <p>
+	 * Tune the bloom filter sent to the peers. Must be called before
+	 * start().
+	 * </p>
+	 *
+	 * @param falsePositiveRate
+	 *            rate the filter is built for
+	 * @param recalculateDelay
+	 *            msec to merge filter recalculations over, 0 for none
+	 */
+	public void setBloomFilter(double falsePositiveRate, int recalculateDelay) {
+		walletAppkit.setBloomFilter(falsePositiveRate, recalculateDelay);
+	}
+
+	/**
+	 * <p>
+	 * Save the wallet file that long after it changes. Must be called
+	 * before the kit starts.
+	 * </p>
+	 *
+	 * @param msec
+	 *            changes within it are saved together, 0 to save at once
+	 */
+	public void setAutosaveDelay(int msec) {
+		walletAppkit.setAutosaveDelay(msec);
+	}
+
+	/**
+	 * <p>
+	 * Choose how the fee of each payment is set.
+	 * </p>
+	 *
+	 * @param policy
+	 *            chooses the fee per kB of each payment
+	 * @param min
+	 *            lowest fee per kB paid
+	 * @param max
+	 *            highest fee per kB paid, null for no limit
+	 */
+	public void setFeePolicy(FeePolicy policy, Coin min, Coin max) {
+		if (max != null && min.isGreaterThan(max)) {
+			throw new IllegalArgumentException("fee per kB min: " + min.value + " is above max: " + max.value);
+		}
+		this.feePolicy = policy;
+		this.minFeePerKb = min;
+		this.maxFeePerKb = max;
+		log.info("fee policy: {} min: {} max: {}", policy, min.value, max == null ? null : max.value);
+	}
+
+	/**
+	 * <p>
+	 * Limit the chain of unconfirmed payments.
+	 * </p>
+	 *
+	 * @param maxUnconfirmedAncestors
+	 *            pending transactions a payment may depend on, 0 to spend
+	 *            only confirmed outputs
+	 */
+	public void setMaxUnconfirmedAncestors(int maxUnconfirmedAncestors) {
+		if (maxUnconfirmedAncestors < 0) {
+			throw new IllegalArgumentException("max unconfirmed ancestors: " + maxUnconfirmedAncestors + " is negative");
+		}
+		this.maxUnconfirmedAncestors = maxUnconfirmedAncestors;
+	}
+
+	/**
+	 * <p>
+	 * Keep a pool of outputs of one amount, so payments in a row each
+	 * spend a confirmed output of their own instead of the change of the
+	 * one before. When a payment leaves half of them or fewer the pool is
+	 * split up again in the background, with the key of that payment.
+	 * </p>
+	 *
+	 * @param count
+	 *            outputs in the pool, 0 for no pool
+	 * @param amount
+	 *            value of each, a bit above a usual payment and its fee
+	 */
+	public synchronized void setUtxoPool(int count, Coin amount) {
+		if (count < 0 || count > MAX_SPLIT_OUTPUTS || (count > 0 && amount.isLessThan(Transaction.MIN_NONDUST_OUTPUT))) {
+			throw new IllegalArgumentException("utxo pool count: " + count + " amount: " + amount + " out of range");
+		}
+		this.poolCount = count;
+		this.poolAmount = amount;
+		if (count > 0 && poolExecutor == null) {
+			poolExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "utxo pool");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		log.info("utxo pool: {} outputs of: {}", count, count > 0 ? amount.value : null);
+	}
+
+	/**
+	 * @return spendable outputs worth exactly amount, confirmed or our own
+	 *         pending ones
+	 */
+	public int poolSize(Coin amount) {
+		int size = 0;
+		for (TransactionOutput output : wallet().calculateAllSpendCandidates(true, false)) {
+			if (!output.getValue().equals(amount)) {
+				continue;
+			}
+			Transaction tx = output.getParentTransaction();
+			if (tx == null || tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING
+					|| (tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING
+					    && tx.getConfidence().getSource() == TransactionConfidence.Source.SELF)) {
+				size += 1;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the fee per kB the next payment would pay
+	 */
+	public Coin feePerKb() {
+		Coin rate = feePolicy.feePerKb(wallet(), walletAppkit.isRunning() ? walletAppkit.store() : null);
+		if (rate.isLessThan(minFeePerKb)) {
+			rate = minFeePerKb;
+		}
+		if (maxFeePerKb != null && rate.isGreaterThan(maxFeePerKb)) {
+			rate = maxFeePerKb;
+		}
+		return rate;
+	}
+
+	/**
+	 * <p>
+	 * Choose where the block headers are kept. Must be called before
+	 * start().
+	 * </p>
+	 *
+	 * @param type
+	 *            SPV ring, FULL history or MEMORY
+	 * @param capacity
+	 *            headers in a new block chain file
+	 * @param preallocate
+	 *            true to write the whole file when it is created or grown
+	 */
+	public void setBlockStore(BlockStoreType type, int capacity, boolean preallocate) {
+		walletAppkit.setBlockStore(type, capacity, preallocate);
+		log.info("block store: {} capacity: {} preallocate: {}", type, capacity, preallocate);
+	}
+
+	/**
+	 * <p>
+	 * Log the metrics line every interval while the kit runs. Must be
+	 * called before start().
+	 * </p>
+	 *
+	 * @param seconds
+	 *            seconds between lines, 0 for none
+	 */
+	public void setMetricsInterval(int seconds) {
+		metricsInterval = seconds;
+	}
+
+	/**
+	 * <p>
+	 * Archive the spent transactions at least depth deep each time before
+	 * the kit starts, see archive(). Must be called before start().
+	 * </p>
+	 *
+	 * @param depth
+	 *            at least WalletArchive.MIN_DEPTH, 0 for never
+	 */
+	public void setArchiveDepth(int depth) {
+		if (depth != 0 && depth < WalletArchive.MIN_DEPTH) {
+			throw new IllegalArgumentException("archive depth: " + depth + " is below: " + WalletArchive.MIN_DEPTH);
+		}
+		archiveDepth = depth;
+	}
+
+	/**
+	 * <p>
+	 * Move the spent transactions at least depth deep out of the wallet
+	 * file into the archive file. The kit must not be running.
+	 * </p>
+	 *
+	 * @return the number of transactions archived
+	 * @throws IOException
+	 *             if the wallet is unreadable or a file could not be
+	 *             written
+	 */
+	public int archive(int depth) throws IOException {
+		if (walletAppkit.isRunning()) {
+			throw new IllegalStateException("cannot archive the wallet of a running kit");
+		}
+		return getWalletArchive().archive(depth);
+	}
+
+	public WalletArchive getWalletArchive() {
+		return new WalletArchive(walletAppkit.params(), getWalletFile(), getArchiveFile());
+	}
+
+	/**
+	 * <p>
+	 * Startup, sync, peer and broadcast counters of the kit.
+	 * </p>
+	 *
+	 * @return the status command response
+	 */
+	public StatusJsonResponse getStatus() {
+		StatusJsonResponse status = metrics.status();
+		if (outbox != null) {
+			status.setOutbox(outbox.size());
+		}
+		return status;
+	}
+
+	/**
+	 * @return the checkpoints set by setCheckpointsFile() or null
+	 */
+	public CheckpointFile getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * <p>
+	 * Start the kit and wait for the bitcoin network connection.
+	 * </p>
+	 */
+	public void start() throws IOException {
+		if (hostedName != null) {
+			throw new IllegalStateException("hosted wallet: " + hostedName + " starts with its host");
+		}
+		for (BitmarkWalletKit kit : hosted.values()) {
+			kit.feePolicy = feePolicy;
+			kit.minFeePerKb = minFeePerKb;
+			kit.maxFeePerKb = maxFeePerKb;
+			kit.maxUnconfirmedAncestors = maxUnconfirmedAncestors;
+			if (poolCount > 0) {
+				kit.setUtxoPool(poolCount, poolAmount);
+			}
+		}
+		if (archiveDepth > 0) {
+			archive(archiveDepth);
+			for (BitmarkWalletKit kit : hosted.values()) {
+				kit.archive(archiveDepth);
+			}
+		}
+		metrics.start(walletAppkit, metricsInterval);
+		walletAppkit.startAsync();
+		walletAppkit.awaitRunning();
+
+		open();
+		for (BitmarkWalletKit kit : hosted.values()) {
+			kit.open();
+		}
+	}
+
+	// the outbox, payId index and snapshot of the wallet of a running kit
+	private void open() throws IOException {
+		outbox = new BroadcastOutbox(getOutboxFile());
+		outbox.start(wallet(), walletAppkit.peerGroup());
+
+		snapshotWriter = new SnapshotWriter(getSnapshotFile());
+		snapshotWriter.start(wallet(), walletAppkit.chain());
+
+		PayIdIndex index = new PayIdIndex(getPayIdFile());
+		index.open(wallet(), getWalletArchive());
+		payIdIndex = index;
+	}
+
+	/**
+	 * <p>
+	 * Stop the peers, then stop the kit which saves the wallet and closes
+	 * the block store. Does nothing if the kit was never started.
+	 * </p>
+	 *
+	 * @throws IOException
+	 * @throws BlockStoreException
+	 */
+	public void stop() throws IOException, BlockStoreException {
+		if (hostedName != null) {
+			throw new IllegalStateException("hosted wallet: " + hostedName + " stops with its host");
+		}
+		metrics.stop();
+		if (walletAppkit.state() != Service.State.RUNNING) {
+			return;
+		}
+		log.info("kit stopping...store block to: {}", getWalletFile().getAbsolutePath());
+		List<BitmarkWalletKit> kits = new ArrayList<BitmarkWalletKit>(hosted.values());
+		kits.add(this);
+		for (BitmarkWalletKit kit : kits) {
+			if (kit.outbox != null) {
+				kit.outbox.stop();
+			}
+		}
+		walletAppkit.updatePeerCache();
+		walletAppkit.peerGroup().stop();
+		for (BitmarkWalletKit kit : kits) {
+			if (kit.snapshotWriter != null) {
+				kit.snapshotWriter.stop();
+			}
+			if (kit.payIdIndex != null) {
+				kit.payIdIndex.close();
+			}
+			synchronized (kit) {
+				if (kit.poolExecutor != null) {
+					kit.poolExecutor.shutdownNow();
+					kit.poolExecutor = null;
+				}
+			}
+		}
+		walletAppkit.stopAsync();
+		walletAppkit.awaitTerminated();
+		log.info("kit stopped");
+	}
+
 	/**
 	 * <p>
 	 * Set wallet listener.
@@ -157,7 +785,7 @@ public class BitmarkWalletKit {
 	 * @param wallet
 	 */
 	public void setWalletListener() {
-		Wallet wallet = walletAppkit.wallet();
+		Wallet wallet = wallet();
 		wallet.addCoinsSentEventListener(new WalletCoinsSentEventListener() {
 
 			@Override
@@ -181,7 +809,7 @@ public class BitmarkWalletKit {
 	 */
 
 	public Address getAddress() throws IOException {
-		Wallet wallet = walletAppkit.wallet();
+		Wallet wallet = wallet();
 		NetworkParameters netParams = walletAppkit.params();
 		Address address;
 		if (wallet.getIssuedReceiveAddresses().size() < 1) {
@@ -214,19 +842,101 @@ public class BitmarkWalletKit {
 	 */
         //public boolean sendCoins(String payId, Address forwardingAddress, Address changeAddress, Long amountSatoshi, String password) {
 	public String sendCoins(String payId, List<Payment>payments, Address changeAddress, String password) {
+		KeyParameter aesKey = null;
+		if (password != null) {
+			try {
+				aesKey = deriveKey(password);
+			} catch (KeyCrypterException e) {
+				log.error("Send for: {}  error: {}", payId, e);
+				return null;
+			}
+		}
+		return sendCoins(payId, payments, changeAddress, aesKey);
+	}
+
+	/**
+	 * <p>
+	 * Send coins as above using an already derived wallet key.
+	 * </p>
+	 *
+	 * @param aesKey
+	 *            from deriveKey(), required if the wallet is encrypted
+	 * @return txid after the payment has been broadcasted successfully
+	 */
+	public String sendCoins(String payId, List<Payment>payments, Address changeAddress, KeyParameter aesKey) {
+		Wallet.SendResult sendResult;
+		try {
+			sendResult = sendCoinsAsync(payId, payments, changeAddress, aesKey);
+		} catch (CommandException e) {
+			return null;
+		}
+		return waitForBroadcast(payId, sendResult);
+	}
+
+	/**
+	 * <p>
+	 * Sign the payment and commit it to the wallet, then start the broadcast
+	 * without waiting for it.
+	 * </p>
+	 * <p>
+	 * A payId already paid is not paid again unless its transaction is
+	 * dead: the result then only has paidTxId and paidStatus, and tx if
+	 * that transaction is still in the wallet.
+	 * </p>
+	 *
+	 * @param aesKey
+	 *            from deriveKey(), required if the wallet is encrypted
+	 * @return the result whose broadcastComplete finishes when peers have
+	 *         the transaction
+	 * @throws CommandException
+	 *             with the reason the payment could not be made, e.g.
+	 *             insufficient funds, a locked wallet or a dust amount
+	 */
+	public PaySendResult sendCoinsAsync(String payId, List<Payment>payments, Address changeAddress, KeyParameter aesKey)
+			throws CommandException {
 
 		if (null == payments || payments.size() < 1) {
 			log.error("Need at least one payment address/amount item");
-			return null;
+			throw new CommandException("Need at least one payment address/amount item");
 		}
 		Iterator<Payment> paymentIterator = payments.iterator();
 
-                Wallet wallet = walletAppkit.wallet();
+		byte[] payIdScript;
 		try {
-			if (!paymentIterator.hasNext()) {
-				log.error("Need at least one payment address/amount item");
-				return null;
+			payIdScript = PayIdCodec.encodeScript(payId);
+		} catch (IllegalArgumentException e) {
+			log.error("Send for: {}  error: {}", payId, e.getMessage());
+			throw new CommandException("payId is not hex of at most " + PayIdCodec.MAX_PAY_ID_BYTES + " bytes");
+		}
+
+                Wallet wallet = wallet();
+		PayIdIndex index = payIdIndex;
+		if (index != null) {
+			String paidTxId;
+			try {
+				paidTxId = index.reserve(payId);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.error("Send for: {}  interrupted", payId);
+				throw new CommandException("Payment interrupted");
 			}
+			if (paidTxId != null) {
+				Transaction paid = wallet.getTransaction(Sha256Hash.wrap(paidTxId));
+				if (paid == null || paid.getConfidence().getConfidenceType() != ConfidenceType.DEAD) {
+					index.release(payId);
+					PaySendResult sendResult = new PaySendResult();
+					sendResult.paidTxId = paidTxId;
+					// not in the wallet once archived
+					sendResult.paidStatus = paid == null ? "UNKNOWN" : paid.getConfidence().getConfidenceType().toString();
+					sendResult.tx = paid;
+					log.warn("Send for: {}  already paid by TxId: {} status: {}", payId, paidTxId, sendResult.paidStatus);
+					return sendResult;
+				}
+				log.info("Send for: {}  earlier TxId: {} is dead, paying again", payId, paidTxId);
+			}
+		}
+		String txId = null;
+		try {
 			Payment item = paymentIterator.next();
 
 			log.info("Sending {} satoshis to {}", item.amountSatoshi, item.paymentAddress);
@@ -239,70 +949,291 @@ public class BitmarkWalletKit {
                         }
 
                         // Create the OP_Return
-                        sendRequest.tx.addOutput(Coin.valueOf(0), generateBitmarkScript(payId));
+                        sendRequest.tx.addOutput(new TransactionOutput(walletAppkit.params(), sendRequest.tx, Coin.ZERO, payIdScript));
 
-                        // Set the default fee
-			sendRequest.feePerKb = Transaction.DEFAULT_TX_FEE;
-			if (sendRequest.feePerKb.getValue() < DEFAULT_TX_FEE.getValue()) {
-				sendRequest.feePerKb = DEFAULT_TX_FEE;
-			}
-			log.info("Set fee per kB {}", sendRequest.feePerKb);
+			sendRequest.feePerKb = feePerKb();
+			log.info("Send for: {}  fee policy: {} fee per kB: {}", payId, feePolicy, sendRequest.feePerKb.value);
 
 			if (changeAddress != null) {
 				sendRequest.changeAddress = changeAddress;
 			}
 
-			if (password != null) {
-				sendRequest.aesKey = wallet.getKeyCrypter().deriveKey(password);
-			}
+			sendRequest.coinSelector = new BitmarkCoinSelector(wallet, maxUnconfirmedAncestors);
 
-                        // Perform the transfer
-			Wallet.SendResult sendResult = wallet.sendCoins(sendRequest);
-
-			sendResult.broadcastComplete.addListener(new Runnable() {
-				public void run() {
-					log.info("Send for: {}  success: TxId: {}",
-						 payId,
-						 sendResult.tx.getHashAsString());
-					log.info("Change address: " + sendRequest.changeAddress);
-					log.info("Wallet balance (estimated satoshi): {}",
-						 wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
-					log.info("Wallet balance (available satoshi): {}",
-						 wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+			sendRequest.aesKey = aesKey;
+
+			PaySendResult sendResult = commit(payId, sendRequest, wallet, new PaySendResult());
+			txId = sendResult.tx.getHashAsString();
+			refillPool(aesKey);
+			return sendResult;
+		} catch (InsufficientMoneyException e) {
+			log.error("Send for: {}  error: {}", payId, e);
+			throw new CommandException("Payment failed: insufficient funds"
+						   + (e.missing == null ? "" : ", " + e.missing.value + " satoshi more needed"));
+		} catch (KeyCrypterException e) {
+			log.error("Send for: {}  error: {}", payId, e);
+			throw new CommandException("Payment failed: the wallet is locked, check the password");
+		} catch (Wallet.DustySendRequested e) {
+			log.error("Send for: {}  error: {}", payId, e);
+			throw new CommandException("Payment rejected: an amount is below the dust limit of "
+						   + Transaction.MIN_NONDUST_OUTPUT.value + " satoshi");
+		} catch (Wallet.CompletionException e) {
+			log.error("Send for: {}  error: {}", payId, e);
+			throw new CommandException("Payment rejected: " + e.getClass().getSimpleName());
+		} catch (IllegalArgumentException e) {
+			log.error("Send for: {}  error: {}", payId, e);
+			throw new CommandException("Payment rejected: " + e.getMessage());
+		} finally {
+			if (index != null) {
+				if (txId != null) {
+					index.complete(payId, txId);
+				} else {
+					index.release(payId);
 				}
-			}, MoreExecutors.directExecutor());
+			}
+		}
+	}
 
-			// Make the thread wait until the tx broadcast has completed
-			try {
-				sendResult.broadcastComplete.get();
-			} catch (InterruptedException | ExecutionException e) {
-				log.error("Broadcast {} to peers failed and tx has been commit to wallet. Please try to re-broadcast the tx: {}",
-					  sendResult.tx.getHashAsString());
-				return null;
+	/**
+	 * <p>
+	 * Pay count outputs of amount to a new address of the wallet, so as
+	 * many payments can each spend one once they confirm. Outputs of
+	 * amount are not spent for it.
+	 * </p>
+	 *
+	 * @param aesKey
+	 *            from deriveKey(), required if the wallet is encrypted
+	 * @return as sendCoinsAsync(), null if the split could not be made
+	 */
+	public PaySendResult splitCoinsAsync(int count, final Coin amount, KeyParameter aesKey) {
+		if (count < 1 || count > MAX_SPLIT_OUTPUTS || amount.isLessThan(Transaction.MIN_NONDUST_OUTPUT)) {
+			log.error("Split of: {} outputs of: {} out of range", count, amount);
+			return null;
+		}
+		Wallet wallet = wallet();
+		Address address = wallet.freshReceiveAddress();
+		SendRequest sendRequest = SendRequest.to(address, amount);
+		for (int i = 1; i < count; i++) {
+			sendRequest.tx.addOutput(amount, address);
+		}
+		sendRequest.feePerKb = feePerKb();
+		final BitmarkCoinSelector selector = new BitmarkCoinSelector(wallet, maxUnconfirmedAncestors);
+		sendRequest.coinSelector = new CoinSelector() {
+			@Override
+			public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+				List<TransactionOutput> others = new ArrayList<TransactionOutput>();
+				for (TransactionOutput output : candidates) {
+					if (!output.getValue().equals(amount)) {
+						others.add(output);
+					}
+				}
+				return selector.select(target, others);
 			}
-			return sendResult.tx.getHashAsString();
+		};
+		sendRequest.aesKey = aesKey;
+		log.info("Split into: {} outputs of: {} to: {} fee per kB: {}", count, amount.value, address,
+			 sendRequest.feePerKb.value);
+		try {
+			return commit("split", sendRequest, wallet, new PaySendResult());
 		} catch (KeyCrypterException | InsufficientMoneyException e) {
-			log.error("Send for: {}  error: {}", payId, e);
+			log.error("Split into: {} outputs error: {}", count, e);
 			return null;
 		}
 	}
 
-	private Script generateBitmarkScript(String payId) {
-		if (!checkHex(payId)) {
-			log.error("PayId is not hex string: {}", payId);
-			return null;
+	/**
+	 * <p>
+	 * Merge the confirmed outputs worth less than threshold, smallest
+	 * first, into one output per maxInputs of them. Pool outputs are left
+	 * alone.
+	 * </p>
+	 *
+	 * @param feePerKb
+	 *            fee per kB of the transactions
+	 * @param dryRun
+	 *            complete the transactions without signing or committing
+	 *            them, their size is estimated
+	 * @param aesKey
+	 *            from deriveKey(), required if the wallet is encrypted and
+	 *            not a dry run
+	 * @return one result per transaction, those made before an error
+	 */
+	public List<ConsolidateResult> consolidate(Coin threshold, int maxInputs, Coin feePerKb, boolean dryRun,
+			KeyParameter aesKey) {
+		if (maxInputs < 2 || maxInputs > MAX_CONSOLIDATE_INPUTS) {
+			throw new IllegalArgumentException("max inputs: " + maxInputs + " is not from 2 to " + MAX_CONSOLIDATE_INPUTS);
+		}
+		Wallet wallet = wallet();
+		List<TransactionOutput> small = new ArrayList<TransactionOutput>();
+		for (TransactionOutput output : wallet.calculateAllSpendCandidates(true, true)) {
+			Transaction tx = output.getParentTransaction();
+			if (!output.getValue().isLessThan(threshold)
+					|| (tx != null && tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+					|| (poolCount > 0 && output.getValue().equals(poolAmount))) {
+				continue;
+			}
+			small.add(output);
+		}
+		Collections.sort(small, new Comparator<TransactionOutput>() {
+			@Override
+			public int compare(TransactionOutput a, TransactionOutput b) {
+				return a.getValue().compareTo(b.getValue());
+			}
+		});
+		log.info("Consolidate: {} outputs below: {} at most: {} per tx fee per kB: {}{}", small.size(),
+			 threshold.value, maxInputs, feePerKb.value, dryRun ? " dry run" : "");
+
+		List<ConsolidateResult> results = new ArrayList<ConsolidateResult>();
+		for (int from = 0; from + 1 < small.size(); from += maxInputs) {
+			final List<TransactionOutput> group = small.subList(from, Math.min(from + maxInputs, small.size()));
+			final Coin value = total(group);
+			SendRequest sendRequest = SendRequest.emptyWallet(dryRun ? wallet.currentReceiveAddress()
+								 : wallet.freshReceiveAddress());
+			sendRequest.coinSelector = new CoinSelector() {
+				@Override
+				public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+					return new CoinSelection(value, group);
+				}
+			};
+			sendRequest.feePerKb = feePerKb;
+			sendRequest.aesKey = aesKey;
+			sendRequest.signInputs = !dryRun;
+			ConsolidateResult result = new ConsolidateResult();
+			result.inputs = group.size();
+			result.value = value;
+			try {
+				if (dryRun) {
+					wallet.completeTx(sendRequest);
+					result.feePerKb = feePerKb;
+					result.tx = sendRequest.tx;
+					result.estimatedSize = sendRequest.tx.unsafeBitcoinSerialize().length
+						+ group.size() * SCRIPT_SIG_BYTES;
+				} else {
+					commit("consolidate", sendRequest, wallet, result);
+					result.estimatedSize = result.tx.unsafeBitcoinSerialize().length;
+				}
+			} catch (KeyCrypterException | InsufficientMoneyException | Wallet.CompletionException e) {
+				log.error("Consolidate of: {} outputs worth: {} error: {}", group.size(), value, e.toString());
+				break;
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	private static Coin total(List<TransactionOutput> outputs) {
+		Coin total = Coin.ZERO;
+		for (TransactionOutput output : outputs) {
+			total = total.add(output.getValue());
+		}
+		return total;
+	}
+
+	// top the pool up once half of it or less is left
+	private synchronized void refillPool(final KeyParameter aesKey) {
+		if (poolCount == 0 || !refilling.compareAndSet(false, true)) {
+			return;
+		}
+		final int count = poolCount;
+		final Coin amount = poolAmount;
+		poolExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Wallet wallet = wallet();
+					Context.propagate(wallet.getContext());
+					int size = poolSize(amount);
+					if (size > count / 2) {
+						return;
+					}
+					Coin needed = amount.multiply(count - size);
+					if (wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).isLessThan(needed)) {
+						log.info("utxo pool: {} of {} left, balance too low to refill", size, count);
+						return;
+					}
+					log.info("utxo pool: {} of {} left, refilling", size, count);
+					splitCoinsAsync(count - size, amount, aesKey);
+				} finally {
+					refilling.set(false);
+				}
+			}
+		});
+	}
+
+	// Perform the transfer: commit to the wallet so the spent coins won't
+	// be reused, record it in the outbox then broadcast
+	private <T extends PaySendResult> T commit(final String payId, final SendRequest sendRequest, final Wallet wallet,
+			final T sendResult) throws InsufficientMoneyException {
+		sendResult.feePerKb = sendRequest.feePerKb;
+		sendResult.tx = wallet.sendCoinsOffline(sendRequest);
+		if (outbox != null) {
+			try {
+				outbox.add(payId, sendResult.tx);
+			} catch (IOException e) {
+				log.error("Send for: {}  outbox write failed: {}", payId, e);
+			}
 		}
-		int countPayId = payId.length() / 2;
-		String scriptStr = "6a" + Integer.toHexString(countPayId) + payId;
-		byte[] bytes = new BigInteger(scriptStr, 16).toByteArray();
-		return new Script(bytes);
+		sendResult.broadcast = walletAppkit.peerGroup().broadcastTransaction(sendResult.tx);
+		sendResult.broadcastComplete = sendResult.broadcast.future();
+
+		sendResult.broadcastComplete.addListener(new Runnable() {
+			public void run() {
+				if (outbox != null) {
+					outbox.remove(sendResult.tx.getHashAsString());
+				}
+				log.info("Send for: {}  success: TxId: {}",
+					 payId,
+					 sendResult.tx.getHashAsString());
+				log.info("Change address: " + sendRequest.changeAddress);
+				log.info("Wallet balance (estimated satoshi): {}",
+					 wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+				log.info("Wallet balance (available satoshi): {}",
+					 wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+			}
+		}, MoreExecutors.directExecutor());
+
+		return sendResult;
 	}
 
-	public boolean checkHex(String str) {
-		if (hexPattern == null) {
-			hexPattern = Pattern.compile("[0-9a-fA-F]+");
+	/**
+	 * <p>
+	 * Make the thread wait until the tx broadcast has completed.
+	 * </p>
+	 *
+	 * @param payId
+	 *            only used for logging
+	 * @param sendResult
+	 *            from sendCoinsAsync()
+	 * @return txid or null if the broadcast failed
+	 */
+	public String waitForBroadcast(String payId, Wallet.SendResult sendResult) {
+		if (sendResult instanceof PaySendResult && ((PaySendResult) sendResult).paidTxId != null) {
+			return ((PaySendResult) sendResult).paidTxId;
 		}
-		return hexPattern.matcher(str).matches();
+		try {
+			sendResult.broadcastComplete.get();
+		} catch (InterruptedException | ExecutionException e) {
+			log.error("Broadcast for: {} to peers failed and tx has been commit to wallet, the outbox will re-broadcast the tx: {}",
+				  payId,
+				  sendResult.tx.getHashAsString());
+			return null;
+		}
+		return sendResult.tx.getHashAsString();
+	}
+
+	/**
+	 * <p>
+	 * Derive the key of an encrypted wallet. This is slow by design so
+	 * callers making many payments should do it once.
+	 * </p>
+	 *
+	 * @param password
+	 *            wallet password
+	 * @return the key for sendCoins()
+	 * @throws KeyCrypterException
+	 */
+	public KeyParameter deriveKey(String password) throws KeyCrypterException {
+		return wallet().getKeyCrypter().deriveKey(password);
 	}
 
 	/**
@@ -325,13 +1256,90 @@ public class BitmarkWalletKit {
 	 * @return true if encrypted
 	 */
 	public boolean walletIsEncrypted() {
-		return walletAppkit.wallet().isEncrypted();
+		return wallet().isEncrypted();
 	}
 
 	public File getWalletFile() {
 		return new File(walletFolder, bitmarkWalletFileName + ".wallet");
 	}
 
+	/**
+	 * <p>
+	 * The block chain file of the SPV and FULL block stores.
+	 * </p>
+	 *
+	 * @return the block chain file
+	 */
+	public File getChainFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".spvchain");
+	}
+
+	/**
+	 * <p>
+	 * File holding the committed transactions not yet announced by peers.
+	 * </p>
+	 *
+	 * @return the outbox file
+	 */
+	public File getOutboxFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".outbox");
+	}
+
+	/**
+	 * <p>
+	 * File holding the PeerCache.
+	 * </p>
+	 *
+	 * @return the peer cache file
+	 */
+	public File getPeerCacheFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".peers");
+	}
+
+	/**
+	 * <p>
+	 * File holding the WalletSnapshot.
+	 * </p>
+	 *
+	 * @return the snapshot file
+	 */
+	public File getSnapshotFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".snapshot");
+	}
+
+	/**
+	 * <p>
+	 * File holding the WalletArchive.
+	 * </p>
+	 *
+	 * @return the archive file
+	 */
+	public File getArchiveFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".archive");
+	}
+
+	/**
+	 * <p>
+	 * File holding the PayIdIndex.
+	 * </p>
+	 *
+	 * @return the payId index file
+	 */
+	public File getPayIdFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".payids");
+	}
+
+	/**
+	 * <p>
+	 * File holding the local port of a running daemon for this wallet.
+	 * </p>
+	 *
+	 * @return the port file
+	 */
+	public File getDaemonPortFile() {
+		return new File(walletFolder, bitmarkWalletFileName + ".daemon");
+	}
+
 	/**
 	 * <p>
 	 * Create a system console to let the user type password.
@@ -359,9 +1367,30 @@ public class BitmarkWalletKit {
 	}
 
 	public static String getStdinPassword() {
-		if (scanner == null) {
-			scanner = new Scanner(System.in);
+		String line;
+		try {
+			line = getStdinReader().readLine();
+		} catch (IOException e) {
+			throw new NoSuchElementException("read stdin failed: " + e);
+		}
+		if (line == null) {
+			throw new NoSuchElementException("No line found");
+		}
+		return line;
+	}
+
+	/**
+	 * <p>
+	 * The shared reader for stdin, anything else read from stdin must use
+	 * it too as it buffers ahead of the password.
+	 * </p>
+	 *
+	 * @return the reader
+	 */
+	public static synchronized BufferedReader getStdinReader() {
+		if (stdin == null) {
+			stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
 		}
-		return scanner.nextLine();
+		return stdin;
 	}
 }
@@ -0,0 +1,31 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+/**
+ * <p>
+ * Where the kit keeps the block headers.
+ * </p>
+ */
+public enum BlockStoreType {
+	/**
+	 * <p>
+	 * memory mapped ring of the most recent headers
+	 * </p>
+	 */
+	SPV,
+	/**
+	 * <p>
+	 * memory mapped file of every header since the first checkpoint
+	 * </p>
+	 */
+	FULL,
+	/**
+	 * <p>
+	 * in memory only, the chain is downloaded again on every start
+	 * </p>
+	 */
+	MEMORY
+}
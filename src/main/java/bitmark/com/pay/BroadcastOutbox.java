@@ -0,0 +1,278 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * <p>
+ * Durable list of transactions that are committed to the wallet but not
+ * yet announced by the peers.
+ * </p>
+ * <p>
+ * An entry is written to the outbox file before the first broadcast and
+ * removed once the broadcast completes or a peer announces the
+ * transaction. Until then it is broadcast again with an increasing delay,
+ * also after a restart, so a crash never loses track of a payment.
+ * </p>
+ */
+public class BroadcastOutbox {
+	private static final Logger log = LoggerFactory.getLogger(BroadcastOutbox.class);
+
+	private static final long INITIAL_RETRY_SECONDS = 10;
+	private static final long MAX_RETRY_SECONDS = 600;
+
+	// one line of the outbox file
+	private static class Entry {
+		String txId;
+		String payId;
+		String tx;
+		transient long retrySeconds = INITIAL_RETRY_SECONDS;
+		transient ScheduledFuture<?> retry;
+	}
+
+	private final File file;
+	private final Gson gson = new Gson();
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	private Wallet wallet;
+	private PeerGroup peerGroup;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param file
+	 *            the outbox file, created when the first entry is added
+	 */
+	public BroadcastOutbox(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * <p>
+	 * Load the entries left by a previous run and start the rebroadcast
+	 * schedule.
+	 * </p>
+	 *
+	 * @param wallet
+	 *            the wallet of a started kit
+	 * @param peerGroup
+	 *            the peers of that kit
+	 * @throws IOException
+	 */
+	public synchronized void start(Wallet wallet, PeerGroup peerGroup) throws IOException {
+		this.wallet = wallet;
+		this.peerGroup = peerGroup;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "broadcast outbox");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				Entry entry;
+				try {
+					entry = gson.fromJson(line, Entry.class);
+				} catch (JsonParseException e) {
+					log.error("outbox: skip unreadable entry: {}", line);
+					continue;
+				}
+				Transaction tx = wallet.getTransaction(Sha256Hash.wrap(entry.txId));
+				if (tx == null) {
+					// the wallet was not saved after the commit
+					tx = new Transaction(wallet.getParams(), Utils.HEX.decode(entry.tx));
+					wallet.maybeCommitTx(tx);
+					log.warn("outbox: recommitted tx: {} for payId: {}", entry.txId, entry.payId);
+				}
+				if (isAnnounced(tx)) {
+					continue;
+				}
+				entry.retrySeconds = 0;
+				entries.put(entry.txId, entry);
+			}
+		}
+		log.info("outbox: {} transactions to broadcast", entries.size());
+		save();
+		for (Entry entry : entries.values()) {
+			schedule(entry);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Stop the rebroadcast schedule, entries stay in the file for the next
+	 * start.
+	 * </p>
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Record a transaction that was just committed to the wallet, must be
+	 * called before broadcasting it.
+	 * </p>
+	 *
+	 * @param payId
+	 *            kept for the logs
+	 * @param tx
+	 *            the committed transaction
+	 * @throws IOException
+	 *             if the outbox could not be written
+	 */
+	public synchronized void add(String payId, Transaction tx) throws IOException {
+		Entry entry = new Entry();
+		entry.txId = tx.getHashAsString();
+		entry.payId = payId;
+		entry.tx = Utils.HEX.encode(tx.unsafeBitcoinSerialize());
+		entries.put(entry.txId, entry);
+		save();
+		schedule(entry);
+	}
+
+	/**
+	 * <p>
+	 * The transaction has been broadcast, forget it.
+	 * </p>
+	 *
+	 * @param txId
+	 *            transaction hash
+	 */
+	public synchronized void remove(String txId) {
+		Entry entry = entries.remove(txId);
+		if (entry == null) {
+			return;
+		}
+		if (entry.retry != null) {
+			entry.retry.cancel(false);
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			log.error("outbox: save failed: {}", e);
+		}
+	}
+
+	/**
+	 * @return number of transactions waiting for the peers
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void schedule(final Entry entry) {
+		if (scheduler == null) {
+			return;
+		}
+		entry.retry = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				rebroadcast(entry.txId);
+			}
+		}, entry.retrySeconds, TimeUnit.SECONDS);
+	}
+
+	private void rebroadcast(final String txId) {
+		Transaction tx;
+		synchronized (this) {
+			Entry entry = entries.get(txId);
+			if (entry == null || scheduler == null) {
+				return;
+			}
+			tx = wallet.getTransaction(Sha256Hash.wrap(txId));
+			if (tx == null || isAnnounced(tx)) {
+				remove(txId);
+				return;
+			}
+			log.info("outbox: broadcast tx: {} for payId: {}", txId, entry.payId);
+
+			// keep trying until the peers have it
+			entry.retrySeconds = Math.min(Math.max(entry.retrySeconds * 2, INITIAL_RETRY_SECONDS), MAX_RETRY_SECONDS);
+			schedule(entry);
+		}
+
+		// outside the lock as peer threads complete the broadcast
+		TransactionBroadcast broadcast = peerGroup.broadcastTransaction(tx);
+		broadcast.future().addListener(new Runnable() {
+			@Override
+			public void run() {
+				log.info("outbox: broadcast complete for tx: {}", txId);
+				remove(txId);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private static boolean isAnnounced(Transaction tx) {
+		TransactionConfidence confidence = tx.getConfidence();
+		switch (confidence.getConfidenceType()) {
+		case BUILDING:
+		case DEAD:
+			return true;
+		default:
+			return confidence.numBroadcastPeers() > 0;
+		}
+	}
+
+	// rewrite the whole file, it only holds the few unannounced transactions
+	private void save() throws IOException {
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temp);
+		     Writer w = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+			for (Entry entry : list) {
+				w.write(gson.toJson(entry));
+				w.write('\n');
+			}
+			w.flush();
+			stream.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
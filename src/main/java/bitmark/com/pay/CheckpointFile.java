@@ -0,0 +1,188 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * <p>
+ * Checkpoints of one network in the bitcoinj textual format, as read by
+ * org.bitcoinj.core.CheckpointManager.
+ * </p>
+ * <p>
+ * A new block store starts from the last checkpoint a week before the
+ * wallet creation time instead of downloading every header from genesis.
+ * Checkpoints are only taken at difficulty transitions, so the difficulty
+ * check of the following blocks can find the previous transition.
+ * </p>
+ */
+public class CheckpointFile {
+
+	private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
+	private static final BaseEncoding BASE64 = BaseEncoding.base64().omitPadding();
+
+	/**
+	 * <p>
+	 * blocks closer than this to the chain head could still be reorganised
+	 * and are never made checkpoints
+	 * </p>
+	 */
+	public static final int MIN_DEPTH = 100;
+
+	private final NetworkParameters params;
+	private final File file;
+
+	// by height
+	private final TreeMap<Integer, StoredBlock> checkpoints = new TreeMap<Integer, StoredBlock>();
+
+	/**
+	 * @param params
+	 *            network of the checkpoints
+	 * @param file
+	 *            the checkpoints file, need not exist
+	 */
+	public CheckpointFile(NetworkParameters params, File file) {
+		this.params = params;
+		this.file = file;
+	}
+
+	/**
+	 * <p>
+	 * Read the checkpoints in the file, if there is one.
+	 * </p>
+	 *
+	 * @return false if there is no file
+	 * @throws IOException
+	 *             if the file is unreadable
+	 */
+	public boolean read() throws IOException {
+		if (!file.exists()) {
+			return false;
+		}
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+			String magic = in.readLine();
+			if (!TEXTUAL_MAGIC.equals(magic)) {
+				throw new IOException("Unexpected checkpoints magic: " + magic + " in: " + file);
+			}
+			int signatures = Integer.parseInt(in.readLine().trim());
+			for (int i = 0; i < signatures; i++) {
+				in.readLine();
+			}
+			int count = Integer.parseInt(in.readLine().trim());
+			ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+			for (int i = 0; i < count; i++) {
+				String line = in.readLine();
+				if (line == null) {
+					throw new IOException("Truncated checkpoints file: " + file);
+				}
+				buffer.clear();
+				buffer.put(BASE64.decode(line.trim()));
+				buffer.flip();
+				StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+				checkpoints.put(block.getHeight(), block);
+			}
+		} catch (IllegalArgumentException | NullPointerException | ProtocolException | BufferOverflowException e) {
+			throw new IOException("Unreadable checkpoints file: " + file, e);
+		}
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Add every difficulty transition block of the store that is at least
+	 * MIN_DEPTH below its chain head.
+	 * </p>
+	 *
+	 * @param store
+	 *            a synced block store, which only needs to hold the recent
+	 *            part of the chain
+	 * @return number of new checkpoints
+	 * @throws BlockStoreException
+	 */
+	public int addFromStore(BlockStore store) throws BlockStoreException {
+		StoredBlock head = store.getChainHead();
+		int added = 0;
+		StoredBlock cursor = head;
+		while (cursor != null && cursor.getHeight() > 0) {
+			int height = cursor.getHeight();
+			if (height <= head.getHeight() - MIN_DEPTH && height % params.getInterval() == 0) {
+				if (checkpoints.put(height, cursor) == null) {
+					added += 1;
+				}
+			}
+			cursor = cursor.getPrev(store);
+		}
+		return added;
+	}
+
+	/**
+	 * <p>
+	 * Write all checkpoints to a temporary file and rename it into place.
+	 * </p>
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer w = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.US_ASCII)) {
+			w.write(format());
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the checkpoints as a stream for WalletAppKit.setCheckpoints()
+	 */
+	public InputStream openStream() {
+		return new ByteArrayInputStream(format().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return the checkpoints, lowest first
+	 */
+	public List<StoredBlock> getCheckpoints() {
+		return new ArrayList<StoredBlock>(checkpoints.values());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private String format() {
+		StringBuilder text = new StringBuilder();
+		text.append(TEXTUAL_MAGIC).append('\n');
+		text.append("0\n"); // no signatures
+		text.append(checkpoints.size()).append('\n');
+		ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+		for (StoredBlock block : checkpoints.values()) {
+			buffer.clear();
+			block.serializeCompact(buffer);
+			text.append(BASE64.encode(buffer.array())).append('\n');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,38 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+/**
+ * <p>
+ * A command could not be completed, the message is suitable for the user.
+ * </p>
+ */
+public class CommandException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean passwordRequired;
+
+	public CommandException(String message) {
+		this(message, false);
+	}
+
+	public CommandException(String message, boolean passwordRequired) {
+		super(message);
+		this.passwordRequired = passwordRequired;
+	}
+
+	/**
+	 * <p>
+	 * The command failed only because the wallet is encrypted and no
+	 * password was given, so it can be retried with one.
+	 * </p>
+	 *
+	 * @return true if a password is needed
+	 */
+	public boolean isPasswordRequired() {
+		return passwordRequired;
+	}
+}
@@ -0,0 +1,598 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import bitmark.com.json.AddressJsonResponse;
+import bitmark.com.json.BalanceJsonResponse;
+import bitmark.com.json.ConsolidateJsonResponse;
+import bitmark.com.json.HistoryJsonResponse;
+import bitmark.com.json.InfoJsonResponse;
+import bitmark.com.json.PendingTxJsonResponse;
+import bitmark.com.json.SplitUtxosJsonResponse;
+import bitmark.com.json.TxIdJsonResponse;
+import bitmark.com.json.WaitJsonResponse;
+
+/**
+ * <p>
+ * Run the wallet commands against a started BitmarkWalletKit and build
+ * their json responses. Shared by the command line and the daemon so both
+ * give the same answers.
+ * </p>
+ */
+public class CommandProcessor {
+	private static final Logger log = LoggerFactory.getLogger(CommandProcessor.class);
+
+	/**
+	 * <p>
+	 * inputs per consolidation transaction without max-inputs
+	 * </p>
+	 */
+	public static final int DEFAULT_CONSOLIDATE_INPUTS = 200;
+
+	// status of wait
+	public static final String WAIT_CONFIRMED = "confirmed";
+	public static final String WAIT_TIMEOUT = "timeout";
+	public static final String WAIT_DEAD = "dead";
+
+	private final BitmarkWalletKit bitmarkWalletKit;
+
+	public CommandProcessor(BitmarkWalletKit bitmarkWalletKit) {
+		this.bitmarkWalletKit = bitmarkWalletKit;
+	}
+
+	/**
+	 * <p>
+	 * Check if the command can be run by the processor, and so also by a
+	 * daemon.
+	 * </p>
+	 *
+	 * @param cmd
+	 *            the command
+	 * @return true if handled by process()
+	 */
+	public static boolean isServed(Commands cmd) {
+		if (cmd == null) {
+			return false;
+		}
+		switch (cmd) {
+		case PAY:
+		case BALANCE:
+		case ADDRESS:
+		case PENDING_TX:
+		case INFO:
+		case STATUS:
+		case SPLIT_UTXOS:
+		case CONSOLIDATE:
+		case HISTORY:
+		case WAIT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Check if the command only reads the wallet, so it can be answered
+	 * from the wallet file without starting the kit.
+	 * </p>
+	 *
+	 * @param cmd
+	 *            the command
+	 * @return true for read-only commands
+	 */
+	public static boolean isReadOnly(Commands cmd) {
+		if (cmd == null) {
+			return false;
+		}
+		switch (cmd) {
+		case BALANCE:
+		case ADDRESS:
+		case PENDING_TX:
+		case INFO:
+		case HISTORY:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Run one command.
+	 * </p>
+	 *
+	 * @param cmd
+	 *            the command
+	 * @param args
+	 *            arguments following the command
+	 * @param options
+	 *            command line options by long name, "true" for flags
+	 * @param password
+	 *            wallet password, only used by pay and split-utxos, may be
+	 *            null
+	 * @return one of the bitmark.com.json response objects
+	 * @throws CommandException
+	 *             if the command failed
+	 */
+	public Object process(Commands cmd, String[] args, Map<String, String> options, String password) throws CommandException {
+		if (options == null) {
+			options = Collections.emptyMap();
+		}
+		if (options.containsKey("wallet")) {
+			Map<String, String> rest = new HashMap<String, String>(options);
+			String name = rest.remove("wallet");
+			return forWallet(name).process(cmd, args, rest, password);
+		}
+		switch (cmd) {
+		case PAY:
+			return pay(args, options.containsKey("async"), password);
+		case BALANCE:
+			return balance();
+		case ADDRESS:
+			return new AddressJsonResponse(address());
+		case PENDING_TX:
+			return pendingTx();
+		case INFO:
+			return info();
+		case STATUS:
+			return bitmarkWalletKit.getStatus();
+		case SPLIT_UTXOS:
+			return splitUtxos(args, options.containsKey("async"), password);
+		case CONSOLIDATE:
+			return consolidate(args, options, password);
+		case HISTORY:
+			return history(options);
+		case WAIT:
+			return waitFor(args, options);
+		default:
+			throw new CommandException("Command not supported: " + cmd);
+		}
+	}
+
+	private TxIdJsonResponse pay(String[] targets, boolean async, String password) throws CommandException {
+		if (targets.length < 3 || 0 == (targets.length % 2)) {
+			throw new CommandException("Please give txid address amount {address amount}...");
+		}
+
+		Wallet wallet = bitmarkWalletKit.wallet();
+		KeyParameter aesKey = checkPassword(password);
+
+		String payId = targets[0];
+		if (!PayIdCodec.isValid(payId)) {
+			throw new CommandException("First parameter is not a hex payId of at most " + PayIdCodec.MAX_PAY_ID_BYTES + " bytes");
+		}
+
+		List<Payment> payments = new ArrayList<Payment>();
+		Coin needSatoshi = Coin.valueOf(0);
+		for (int i = 1; i < targets.length; i += 2) {
+			Payment p = parsePayment(targets[i], targets[i+1]);
+			payments.add(p);
+			needSatoshi = needSatoshi.add(p.amountSatoshi); // accumulate the total
+		}
+
+		String txId;
+		BitmarkWalletKit.PaySendResult sendResult;
+		try {
+			sendResult = bitmarkWalletKit.sendCoinsAsync(payId, payments, null, aesKey);
+		} catch (CommandException e) {
+			needSatoshi = needSatoshi.add(bitmarkWalletKit.feePerKb());
+			throw new CommandException(String.format(
+					"%s\nyou need at least %d satoshi and wallet balance is %d\nFailed payment for:\npayId: %s",
+					e.getMessage(),
+					needSatoshi.value,
+					wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).value,
+					payId));
+		}
+		if (sendResult.paidTxId != null) {
+			TxIdJsonResponse response = new TxIdJsonResponse(sendResult.paidTxId);
+			response.setPaid(sendResult.paidStatus);
+			return response;
+		}
+		if (async) {
+			// the outbox keeps broadcasting it after the response
+			txId = sendResult.tx.getHashAsString();
+		} else {
+			txId = bitmarkWalletKit.waitForBroadcast(payId, sendResult);
+		}
+		if (null == txId) {
+			throw new CommandException("Payment broadcast failed, TxId: " + sendResult.tx.getHashAsString()
+						   + " is in the wallet\nFailed payment for:\npayId: " + payId);
+		}
+		Coin fee = sendResult.tx.getFee();
+		return new TxIdJsonResponse(txId, sendResult.feePerKb.value, fee == null ? null : fee.value);
+	}
+
+	private SplitUtxosJsonResponse splitUtxos(String[] args, boolean async, String password) throws CommandException {
+		if (args.length != 2) {
+			throw new CommandException("Please give count amount");
+		}
+		int count;
+		Coin amount;
+		try {
+			count = Integer.parseInt(args[0]);
+			amount = Coin.valueOf(Long.parseLong(args[1]));
+		} catch (NumberFormatException e) {
+			throw new CommandException("Invalid count/amount: " + args[0] + " " + args[1]);
+		}
+		if (count < 1 || count > BitmarkWalletKit.MAX_SPLIT_OUTPUTS) {
+			throw new CommandException("Count must be from 1 to " + BitmarkWalletKit.MAX_SPLIT_OUTPUTS);
+		}
+		if (amount.isLessThan(Transaction.MIN_NONDUST_OUTPUT)) {
+			throw new CommandException("Amount must be at least " + Transaction.MIN_NONDUST_OUTPUT.value + " satoshi");
+		}
+
+		Wallet wallet = bitmarkWalletKit.wallet();
+		KeyParameter aesKey = checkPassword(password);
+
+		String txId = null;
+		BitmarkWalletKit.PaySendResult sendResult = bitmarkWalletKit.splitCoinsAsync(count, amount, aesKey);
+		if (sendResult != null) {
+			txId = async ? sendResult.tx.getHashAsString() : bitmarkWalletKit.waitForBroadcast("split", sendResult);
+		}
+		if (null == txId) {
+			throw new CommandException(String.format(
+					"Split failed, you need at least %d satoshi and fee, wallet balance is %d",
+					amount.multiply(count).value,
+					wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).value));
+		}
+		Coin fee = sendResult.tx.getFee();
+		return new SplitUtxosJsonResponse(txId, sendResult.feePerKb.value, fee == null ? null : fee.value, count,
+						  amount.value, bitmarkWalletKit.poolSize(amount));
+	}
+
+	/**
+	 * <p>
+	 * Merge the small outputs, or with dry-run only show the transactions,
+	 * their size and what they would save once payments pay
+	 * later-fee-per-kb again. Refused while the fee rate is above
+	 * max-fee-per-kb.
+	 * </p>
+	 */
+	private ConsolidateJsonResponse consolidate(String[] args, Map<String, String> options, String password)
+			throws CommandException {
+		if (args.length != 1) {
+			throw new CommandException("Please give threshold");
+		}
+		Coin threshold;
+		int maxInputs;
+		Coin maxFeePerKb;
+		Coin laterFeePerKb;
+		try {
+			threshold = Coin.valueOf(Long.parseLong(args[0]));
+			maxInputs = options.containsKey("max-inputs") ? Integer.parseInt(options.get("max-inputs"))
+				: DEFAULT_CONSOLIDATE_INPUTS;
+			maxFeePerKb = options.containsKey("max-fee-per-kb")
+				? Coin.valueOf(Long.parseLong(options.get("max-fee-per-kb"))) : null;
+			laterFeePerKb = options.containsKey("later-fee-per-kb")
+				? Coin.valueOf(Long.parseLong(options.get("later-fee-per-kb"))) : BitmarkWalletKit.DEFAULT_TX_FEE;
+		} catch (NumberFormatException e) {
+			throw new CommandException("Invalid threshold/max-inputs/max-fee-per-kb/later-fee-per-kb: " + e.getMessage());
+		}
+		if (maxInputs < 2 || maxInputs > BitmarkWalletKit.MAX_CONSOLIDATE_INPUTS) {
+			throw new CommandException("Max inputs must be from 2 to " + BitmarkWalletKit.MAX_CONSOLIDATE_INPUTS);
+		}
+		Coin feePerKb = bitmarkWalletKit.feePerKb();
+		if (maxFeePerKb != null && feePerKb.isGreaterThan(maxFeePerKb)) {
+			throw new CommandException(String.format("Fee per kB: %d is above max-fee-per-kb: %d, try again later",
+								 feePerKb.value, maxFeePerKb.value));
+		}
+		boolean dryRun = options.containsKey("dry-run");
+		KeyParameter aesKey = dryRun ? null : checkPassword(password);
+
+		ConsolidateJsonResponse response = new ConsolidateJsonResponse(dryRun, threshold.value, feePerKb.value,
+									       laterFeePerKb.value);
+		for (BitmarkWalletKit.ConsolidateResult result : bitmarkWalletKit.consolidate(threshold, maxInputs, feePerKb,
+											 dryRun, aesKey)) {
+			long fee = result.tx.getFee().value;
+			// spending the merged output later takes one input instead of these
+			long bytesSaved = (long) (result.inputs - 1) * BitmarkWalletKit.INPUT_BYTES;
+			response.addTransaction(new ConsolidateJsonResponse.ConsolidateTx(
+				dryRun ? null : result.tx.getHashAsString(), result.inputs, result.value.value,
+				result.estimatedSize, fee, bytesSaved, fee * 1000 / bytesSaved,
+				bytesSaved * laterFeePerKb.value / 1000 - fee));
+		}
+		return response;
+	}
+
+	/**
+	 * <p>
+	 * Check the password of an encrypted wallet and derive its key once.
+	 * </p>
+	 *
+	 * @param password
+	 *            may be null for a wallet that is not encrypted
+	 * @return the key or null if the wallet is not encrypted
+	 * @throws CommandException
+	 *             if the password is missing or wrong
+	 */
+	public KeyParameter checkPassword(String password) throws CommandException {
+		if (!bitmarkWalletKit.walletIsEncrypted()) {
+			return null;
+		}
+		if (password == null) {
+			throw new CommandException("Password required", true);
+		}
+		KeyParameter aesKey;
+		try {
+			aesKey = bitmarkWalletKit.deriveKey(password);
+		} catch (KeyCrypterException e) {
+			throw new CommandException("Wrong password");
+		}
+		if (!bitmarkWalletKit.wallet().checkAESKey(aesKey)) {
+			throw new CommandException("Wrong password");
+		}
+		return aesKey;
+	}
+
+	/**
+	 * <p>
+	 * Parse one address and satoshi amount of a payment.
+	 * </p>
+	 *
+	 * @throws CommandException
+	 *             if either is invalid
+	 */
+	public Payment parsePayment(String address, String amount) throws CommandException {
+		try {
+			Address paymentAddress = Address.fromBase58(bitmarkWalletKit.getWalletAppkit().params(), address);
+			Coin amountSatoshi = Coin.valueOf(Long.parseLong(amount));
+			return new Payment(paymentAddress, amountSatoshi);
+		} catch (AddressFormatException | NumberFormatException e) {
+			throw new CommandException("Invalid address/amount: " + address + " " + amount);
+		}
+	}
+
+	private BalanceJsonResponse balance() {
+		Wallet wallet = bitmarkWalletKit.wallet();
+		Long estimated = wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE).value;
+		Long available = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).value;
+		BalanceJsonResponse response = new BalanceJsonResponse(estimated, available);
+		response.setLastBlock(wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenTimeSecs(),
+				      bitmarkWalletKit.isOffline());
+		return response;
+	}
+
+	private String address() throws CommandException {
+		try {
+			return bitmarkWalletKit.getAddress().toString();
+		} catch (IOException e) {
+			log.error("get address failed: {}", e);
+			throw new CommandException("Get address failed: " + e.getMessage());
+		}
+	}
+
+	private PendingTxJsonResponse pendingTx() {
+		List<String> pending = new ArrayList<String>();
+		for (Transaction tx : bitmarkWalletKit.wallet().getPendingTransactions()) {
+			pending.add(tx.getHashAsString());
+		}
+		return new PendingTxJsonResponse(pending);
+	}
+
+	/**
+	 * <p>
+	 * One page of the transaction history, see TransactionHistory.
+	 * </p>
+	 */
+	private HistoryJsonResponse history(Map<String, String> options) throws CommandException {
+		Wallet wallet = bitmarkWalletKit.wallet();
+		TransactionHistory.Page page;
+		try {
+			int sinceHeight = options.containsKey("since-height") ? Integer.parseInt(options.get("since-height")) : 0;
+			int limit = options.containsKey("limit") ? Integer.parseInt(options.get("limit"))
+				: TransactionHistory.DEFAULT_LIMIT;
+			page = TransactionHistory.page(wallet, sinceHeight, options.get("cursor"), limit);
+		} catch (IllegalArgumentException e) {
+			throw new CommandException("Invalid since-height/limit/cursor: " + e.getMessage());
+		}
+
+		NetworkParameters params = wallet.getParams();
+		HistoryJsonResponse response = new HistoryJsonResponse();
+		for (Transaction tx : page.transactions) {
+			TransactionConfidence confidence = tx.getConfidence();
+			boolean building = confidence.getConfidenceType() == ConfidenceType.BUILDING;
+			String payId = null;
+			Coin fee = tx.getFee();
+			HistoryJsonResponse.HistoryTx item = new HistoryJsonResponse.HistoryTx(
+				tx.getHashAsString(),
+				building ? confidence.getAppearedAtChainHeight() : null,
+				building ? confidence.getDepthInBlocks() : null,
+				tx.getUpdateTime().getTime() / 1000,
+				confidence.getConfidenceType().toString(),
+				tx.getValue(wallet).value,
+				fee == null ? null : fee.value);
+			for (TransactionOutput output : tx.getOutputs()) {
+				if (payId == null) {
+					payId = PayIdCodec.decodeScript(output.getScriptBytes());
+				}
+				Address address = null;
+				try {
+					address = output.getScriptPubKey().getToAddress(params, true);
+				} catch (ScriptException e) {
+					// OP_RETURN or a script without an address
+				}
+				item.addOutput(new HistoryJsonResponse.HistoryOutput(address == null ? null : address.toString(),
+										 output.getValue().value, output.isMine(wallet)));
+			}
+			item.setPayId(payId);
+			response.addTransaction(item);
+		}
+		response.setNext(page.next);
+		return response;
+	}
+
+	/**
+	 * <p>
+	 * The processor of a wallet hosted by the kit, chosen by the wallet
+	 * option of a command.
+	 * </p>
+	 *
+	 * @throws CommandException
+	 *             if no wallet of that name is hosted
+	 */
+	public CommandProcessor forWallet(String name) throws CommandException {
+		BitmarkWalletKit kit = bitmarkWalletKit.getHosted(name);
+		if (kit == null) {
+			throw new CommandException("Unknown wallet: " + name);
+		}
+		return new CommandProcessor(kit);
+	}
+
+	/**
+	 * <p>
+	 * Block until the transaction is depth blocks deep, dead, or the
+	 * timeout in seconds passed, whichever is first. Uses the confidence
+	 * futures of the transaction, the wallet is not polled.
+	 * </p>
+	 */
+	private WaitJsonResponse waitFor(String[] args, Map<String, String> options) throws CommandException {
+		if (args.length != 1) {
+			throw new CommandException("Please give a txid");
+		}
+		int depth = PaymentWatcher.DEFAULT_DEPTH;
+		long timeout = 0;
+		try {
+			if (options.containsKey("depth")) {
+				depth = Integer.parseInt(options.get("depth"));
+			}
+			if (options.containsKey("timeout")) {
+				timeout = Long.parseLong(options.get("timeout"));
+			}
+		} catch (NumberFormatException e) {
+			throw new CommandException("Invalid depth/timeout: " + e.getMessage());
+		}
+		if (depth < 1 || timeout < 0) {
+			throw new CommandException("depth must be at least 1 and timeout not negative");
+		}
+
+		Transaction tx;
+		try {
+			tx = bitmarkWalletKit.wallet().getTransaction(Sha256Hash.wrap(args[0]));
+		} catch (IllegalArgumentException e) {
+			throw new CommandException("Invalid txid: " + args[0]);
+		}
+		if (tx == null) {
+			throw new CommandException("Transaction not in the wallet: " + args[0]);
+		}
+
+		// one listener for both ends, removed however the wait ends: the
+		// listener of getDepthFuture() would stay on the confidence until
+		// the depth is reached, which a dead transaction never does
+		final int wanted = depth;
+		final SettableFuture<String> done = SettableFuture.create();
+		TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+			@Override
+			public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+				if (confidence.getConfidenceType() == ConfidenceType.DEAD) {
+					done.set(WAIT_DEAD);
+				} else if (confidence.getDepthInBlocks() >= wanted) {
+					done.set(WAIT_CONFIRMED);
+				}
+			}
+		};
+		TransactionConfidence confidence = tx.getConfidence();
+		confidence.addEventListener(Threading.SAME_THREAD, listener);
+		// dead or deep enough before the listener was put on
+		listener.onConfidenceChanged(confidence, null);
+
+		String status;
+		try {
+			status = timeout > 0 ? done.get(timeout, TimeUnit.SECONDS) : done.get();
+		} catch (TimeoutException e) {
+			status = WAIT_TIMEOUT;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new CommandException("Wait interrupted");
+		} finally {
+			confidence.removeEventListener(listener);
+		}
+		log.info("wait for: {} depth: {} {}", tx.getHashAsString(), depth, status);
+
+		WaitJsonResponse response = new WaitJsonResponse(tx.getHashAsString(), status);
+		if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+			response.setBlock(confidence.getAppearedAtChainHeight(), confidence.getDepthInBlocks());
+		}
+		Transaction overriding = confidence.getOverridingTransaction();
+		if (overriding != null) {
+			response.setConflictTxId(overriding.getHashAsString());
+		}
+		return response;
+	}
+
+	/**
+	 * <p>
+	 * Start pushing the confidence events of the payments to listener,
+	 * until the returned watcher is stopped.
+	 * </p>
+	 *
+	 * @param ids
+	 *            txIds or payIds to follow, none for every payment
+	 * @throws CommandException
+	 *             if the depth or wallet option is invalid
+	 */
+	public PaymentWatcher watch(String[] ids, Map<String, String> options, PaymentWatcher.Listener listener)
+			throws CommandException {
+		if (options != null && options.containsKey("wallet")) {
+			Map<String, String> rest = new HashMap<String, String>(options);
+			String name = rest.remove("wallet");
+			return forWallet(name).watch(ids, rest, listener);
+		}
+		int depth = PaymentWatcher.DEFAULT_DEPTH;
+		if (options != null && options.containsKey("depth")) {
+			try {
+				depth = Integer.parseInt(options.get("depth"));
+			} catch (NumberFormatException e) {
+				throw new CommandException("Invalid depth: " + options.get("depth"));
+			}
+			if (depth < 1) {
+				throw new CommandException("Invalid depth: " + depth);
+			}
+		}
+		PaymentWatcher watcher = new PaymentWatcher(bitmarkWalletKit.wallet(), depth, Arrays.asList(ids), listener);
+		watcher.start();
+		return watcher;
+	}
+
+	private InfoJsonResponse info() throws CommandException {
+		Wallet wallet = bitmarkWalletKit.wallet();
+		Long estimated = wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE).value;
+		Long available = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).value;
+		InfoJsonResponse response = new InfoJsonResponse(estimated, available, address());
+		response.setLastBlock(wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenTimeSecs(),
+				      bitmarkWalletKit.isOffline());
+		return response;
+	}
+}
@@ -13,4 +13,31 @@ public enum Commands {
 	PENDING_TX,
 	INFO,
 	RESTORE,
+	DAEMON,
+	PAY_BATCH,
+	CHECKPOINTS,
+	STATUS,
+	SPLIT_UTXOS,
+	CONSOLIDATE,
+	ARCHIVE,
+	ARCHIVED,
+	HISTORY,
+	WATCH,
+	WAIT,
+	;
+
+	/**
+	 * <p>
+	 * Convert a command line name like "pending-tx" to the command.
+	 * </p>
+	 *
+	 * @param name
+	 *            command name, case and '-'/'_' insensitive
+	 * @return the command
+	 * @throws IllegalArgumentException
+	 *             if no command has the name
+	 */
+	public static Commands fromString(String name) {
+		return Commands.valueOf(name.toUpperCase().replace('-', '_'));
+	}
 }
@@ -0,0 +1,271 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+
+/**
+ * <p>
+ * Aims for a payment to confirm within the target number of blocks, going
+ * by how long our own recent payments took.
+ * </p>
+ * <p>
+ * A bloom filtered wallet cannot work out the fee of other transactions,
+ * their inputs are not known, so the samples are the payments this wallet
+ * sent in the last MAX_SAMPLE_AGE_HOURS: the block each confirmed in, or
+ * how long it has been waiting. The newest payment whose outcome is known
+ * sets the rate, lowered by LOWER when it confirmed within the target and
+ * raised by RAISE when it did not. A payment still waiting past the target
+ * is always outbid. With no sample the initial rate is used.
+ * </p>
+ * <p>
+ * The wallet is scanned for its recent payments only on the first call,
+ * after that the last MAX_SAMPLES payments are kept from its coins sent
+ * events, so a payment does not cost a walk of the whole wallet.
+ * </p>
+ */
+public class EstimatingFeePolicy implements FeePolicy {
+
+	/**
+	 * <p>
+	 * most recent payments looked at
+	 * </p>
+	 */
+	public static final int MAX_SAMPLES = 20;
+
+	/**
+	 * <p>
+	 * older payments say little about the network now
+	 * </p>
+	 */
+	public static final int MAX_SAMPLE_AGE_HOURS = 24;
+
+	static final double LOWER = 0.9;
+	static final double RAISE = 1.25;
+
+	/**
+	 * <p>
+	 * One of our payments: its fee rate and the blocks it waited.
+	 * </p>
+	 */
+	static class Sample {
+		final long sentSeconds;
+		final Coin feePerKb;
+		final int blocks;
+		final boolean confirmed;
+
+		Sample(long sentSeconds, Coin feePerKb, int blocks, boolean confirmed) {
+			this.sentSeconds = sentSeconds;
+			this.feePerKb = feePerKb;
+			this.blocks = blocks;
+			this.confirmed = confirmed;
+		}
+	}
+
+	// the last payments of one wallet
+	private static class Recent implements WalletCoinsSentEventListener {
+		private final List<Transaction> payments = new ArrayList<Transaction>();
+
+		@Override
+		public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+			add(tx);
+		}
+
+		synchronized void add(Transaction tx) {
+			for (Transaction payment : payments) {
+				if (payment.getHash().equals(tx.getHash())) {
+					return;
+				}
+			}
+			payments.add(tx);
+			if (payments.size() > MAX_SAMPLES) {
+				Transaction oldest = payments.get(0);
+				for (Transaction payment : payments) {
+					if (payment.getUpdateTime().before(oldest.getUpdateTime())) {
+						oldest = payment;
+					}
+				}
+				payments.remove(oldest);
+			}
+		}
+
+		synchronized List<Transaction> get() {
+			return new ArrayList<Transaction>(payments);
+		}
+	}
+
+	private final Coin initialFeePerKb;
+	private final int targetBlocks;
+
+	// one per wallet, the policy is shared by the hosted wallets
+	private final Map<Wallet, Recent> recent = new IdentityHashMap<Wallet, Recent>();
+
+	/**
+	 * @param initialFeePerKb
+	 *            rate while there are no samples
+	 * @param targetBlocks
+	 *            blocks a payment should confirm within
+	 */
+	public EstimatingFeePolicy(Coin initialFeePerKb, int targetBlocks) {
+		if (targetBlocks < 1) {
+			throw new IllegalArgumentException("fee target blocks: " + targetBlocks + " is below 1");
+		}
+		this.initialFeePerKb = initialFeePerKb;
+		this.targetBlocks = targetBlocks;
+	}
+
+	@Override
+	public Coin feePerKb(Wallet wallet, @Nullable BlockStore store) {
+		return estimate(samples(recent(wallet), wallet, store, Utils.currentTimeSeconds()));
+	}
+
+	// the last payments of wallet, followed from the first call on
+	private List<Transaction> recent(Wallet wallet) {
+		Recent r;
+		synchronized (recent) {
+			r = recent.get(wallet);
+			if (r == null) {
+				r = new Recent();
+				recent.put(wallet, r);
+				wallet.addCoinsSentEventListener(Threading.SAME_THREAD, r);
+			} else {
+				return r.get();
+			}
+		}
+
+		// once, outside the lock as the listener runs under the wallet lock
+		for (Transaction tx : wallet.getTransactions(false)) {
+			if (tx.getValueSentFromMe(wallet).signum() > 0) {
+				r.add(tx);
+			}
+		}
+		return r.get();
+	}
+
+	/**
+	 * @param samples
+	 *            newest first
+	 * @return the fee per kB for the next payment
+	 */
+	Coin estimate(List<Sample> samples) {
+		Coin rate = null;
+		for (Sample sample : samples) {
+			if (sample.confirmed) {
+				rate = scale(sample.feePerKb, sample.blocks <= targetBlocks ? LOWER : RAISE);
+				break;
+			}
+			if (sample.blocks > targetBlocks) {
+				rate = scale(sample.feePerKb, RAISE);
+				break;
+			}
+			// pending within the target: not known yet
+		}
+		if (rate == null) {
+			rate = initialFeePerKb;
+		}
+		for (Sample sample : samples) {
+			if (!sample.confirmed && sample.blocks > targetBlocks) {
+				Coin outbid = scale(sample.feePerKb, RAISE);
+				if (outbid.isGreaterThan(rate)) {
+					rate = outbid;
+				}
+			}
+		}
+		return rate;
+	}
+
+	// the samples of payments we sent, newest first
+	static List<Sample> samples(Collection<Transaction> payments, Wallet wallet, @Nullable BlockStore store, long now) {
+		long oldest = now - TimeUnit.HOURS.toSeconds(MAX_SAMPLE_AGE_HOURS);
+		List<Sample> samples = new ArrayList<Sample>();
+		for (Transaction tx : payments) {
+			long sent = tx.getUpdateTime().getTime() / 1000;
+			if (sent < oldest) {
+				continue;
+			}
+			ConfidenceType type = tx.getConfidence().getConfidenceType();
+			if (type != ConfidenceType.PENDING && type != ConfidenceType.BUILDING) {
+				continue;
+			}
+			Coin fee = tx.getFee();
+			if (fee == null || tx.getValueSentFromMe(wallet).isZero()) {
+				continue;
+			}
+			Coin feePerKb = Coin.valueOf(fee.value * 1000 / tx.unsafeBitcoinSerialize().length);
+			if (type == ConfidenceType.PENDING) {
+				samples.add(new Sample(sent, feePerKb, blocks(now - sent), false));
+				continue;
+			}
+			Long blockTime = blockTime(tx, store);
+			if (blockTime != null) {
+				samples.add(new Sample(sent, feePerKb, Math.max(1, blocks(blockTime - sent)), true));
+			}
+		}
+		Collections.sort(samples, new Comparator<Sample>() {
+			@Override
+			public int compare(Sample a, Sample b) {
+				return Long.compare(b.sentSeconds, a.sentSeconds);
+			}
+		});
+		return samples.size() > MAX_SAMPLES ? samples.subList(0, MAX_SAMPLES) : samples;
+	}
+
+	// the time of the block the tx confirmed in, if it is still in the store
+	private static Long blockTime(Transaction tx, @Nullable BlockStore store) {
+		if (store == null || tx.getAppearsInHashes() == null) {
+			return null;
+		}
+		for (Sha256Hash hash : tx.getAppearsInHashes().keySet()) {
+			try {
+				StoredBlock block = store.get(hash);
+				if (block != null) {
+					return block.getHeader().getTimeSeconds();
+				}
+			} catch (BlockStoreException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	// blocks expected in that many seconds, rounded up
+	private static int blocks(long seconds) {
+		if (seconds <= 0) {
+			return 0;
+		}
+		return (int) ((seconds + NetworkParameters.TARGET_SPACING - 1) / NetworkParameters.TARGET_SPACING);
+	}
+
+	private static Coin scale(Coin rate, double factor) {
+		return Coin.valueOf((long) Math.ceil(rate.value * factor));
+	}
+
+	@Override
+	public String toString() {
+		return "estimate " + targetBlocks + " blocks";
+	}
+}
@@ -0,0 +1,29 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * <p>
+ * Chooses the fee per kB of the next payment. BitmarkWalletKit clamps the
+ * result to the configured minimum and maximum.
+ * </p>
+ */
+public interface FeePolicy {
+
+	/**
+	 * @param wallet
+	 *            the paying wallet
+	 * @param store
+	 *            block store of the running kit, null if it is not running
+	 * @return fee per kB for the next payment
+	 */
+	Coin feePerKb(Wallet wallet, @Nullable BlockStore store);
+}
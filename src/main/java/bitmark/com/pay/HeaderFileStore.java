@@ -0,0 +1,392 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.ChainFileLockedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Block headers in a memory mapped file, in the format of the bitcoinj
+ * SPVBlockStore so an existing block chain file can be opened: a 1024
+ * byte prologue holding "SPVB", the ring cursor and the chain head hash,
+ * then records of the block hash and the compact StoredBlock.
+ * </p>
+ * <p>
+ * Unlike SPVBlockStore the capacity is not fixed at 5000 headers, the file
+ * can be preallocated and a hash index replaces the scan of the whole ring
+ * on a cache miss. A ring overwrites its oldest headers when it is full; a
+ * growing store doubles the file instead, so it keeps every header and can
+ * follow a reorganisation of any depth. A file that already exists keeps
+ * its capacity. A file that has already wrapped is only grown once the
+ * cursor reaches its end.
+ * </p>
+ */
+public class HeaderFileStore implements BlockStore {
+	private static final Logger log = LoggerFactory.getLogger(HeaderFileStore.class);
+
+	/**
+	 * <p>
+	 * the capacity of SPVBlockStore
+	 * </p>
+	 */
+	public static final int DEFAULT_CAPACITY = 5000;
+
+	/**
+	 * <p>
+	 * smallest capacity, slightly more than a difficulty interval so the
+	 * difficulty check always finds its ancestors
+	 * </p>
+	 */
+	public static final int MIN_CAPACITY = 2050;
+
+	private static final String HEADER_MAGIC = "SPVB";
+	private static final int CURSOR_OFFSET = 4;
+	private static final int CHAIN_HEAD_OFFSET = 8;
+	private static final int PROLOGUE_BYTES = 1024;
+	private static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - PROLOGUE_BYTES) / RECORD_SIZE;
+
+	// recently used blocks, as SPVBlockStore, to skip deserialising
+	private static final int CACHE_SIZE = 2050;
+
+	private final NetworkParameters params;
+	private final File file;
+	private final boolean grow;
+	private final boolean preallocate;
+
+	private RandomAccessFile randomAccessFile;
+	private FileLock fileLock;
+	private MappedByteBuffer buffer;
+	private int capacity;
+
+	// record offset of every block in the file
+	private final Map<Sha256Hash, Integer> index = new HashMap<Sha256Hash, Integer>();
+
+	private final LinkedHashMap<Sha256Hash, StoredBlock> cache = new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private StoredBlock chainHead;
+
+	/**
+	 * <p>
+	 * Open the file, creating it with the genesis block if it is missing.
+	 * </p>
+	 *
+	 * @param params
+	 *            network of the blocks
+	 * @param file
+	 *            block chain file
+	 * @param capacity
+	 *            headers in a new file, at least MIN_CAPACITY
+	 * @param grow
+	 *            true to grow the file when it is full instead of
+	 *            overwriting the oldest headers
+	 * @param preallocate
+	 *            true to write the whole file when it is created or grown,
+	 *            so the disk space is reserved up front
+	 * @throws BlockStoreException
+	 *             if the file cannot be opened, is not a block store or is
+	 *             used by another process
+	 */
+	public HeaderFileStore(NetworkParameters params, File file, int capacity, boolean grow, boolean preallocate)
+			throws BlockStoreException {
+		if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("block store capacity: " + capacity + " not in " + MIN_CAPACITY
+					+ ".." + MAX_CAPACITY);
+		}
+		this.params = params;
+		this.file = file;
+		this.grow = grow;
+		this.preallocate = preallocate;
+		try {
+			boolean exists = file.exists();
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			fileLock = randomAccessFile.getChannel().tryLock();
+			if (fileLock == null) {
+				throw new ChainFileLockedException("Store file is already locked by another process: " + file);
+			}
+			if (exists) {
+				long length = randomAccessFile.length();
+				if (length < PROLOGUE_BYTES + RECORD_SIZE || (length - PROLOGUE_BYTES) % RECORD_SIZE != 0
+						|| (length - PROLOGUE_BYTES) / RECORD_SIZE > MAX_CAPACITY) {
+					throw new BlockStoreException("Not a block store file: " + file + " size: " + length);
+				}
+				this.capacity = (int) ((length - PROLOGUE_BYTES) / RECORD_SIZE);
+				if (this.capacity != capacity) {
+					log.info("block store: {} keeps its capacity: {} headers", file, this.capacity);
+				}
+				map();
+				byte[] magic = new byte[HEADER_MAGIC.length()];
+				buffer.position(0);
+				buffer.get(magic);
+				if (!HEADER_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+					throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC + " in: " + file);
+				}
+				buildIndex();
+			} else {
+				this.capacity = capacity;
+				allocate(0);
+				map();
+				buffer.position(0);
+				buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+				setCursor(PROLOGUE_BYTES);
+				Block genesis = params.getGenesisBlock().cloneAsHeader();
+				StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+				put(storedGenesis);
+				setChainHead(storedGenesis);
+			}
+		} catch (IOException e) {
+			closeFile();
+			throw new BlockStoreException(e);
+		} catch (BlockStoreException | RuntimeException e) {
+			closeFile();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return headers the file can hold before it wraps or grows
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return headers in the store
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public synchronized long getFileSize() {
+		return fileSize(capacity);
+	}
+
+	@Override
+	public synchronized void put(StoredBlock block) throws BlockStoreException {
+		checkOpen();
+		Sha256Hash hash = block.getHeader().getHash();
+		Integer offset = index.get(hash);
+		if (offset == null) {
+			int cursor = getCursor();
+			if (cursor == fileSize(capacity)) {
+				if (grow && capacity < MAX_CAPACITY) {
+					expand();
+				} else {
+					cursor = PROLOGUE_BYTES;
+				}
+			}
+			// the oldest header in a full ring is overwritten
+			Sha256Hash old = hashAt(cursor);
+			if (old != null && Integer.valueOf(cursor).equals(index.get(old))) {
+				index.remove(old);
+				cache.remove(old);
+			}
+			offset = cursor;
+			index.put(hash, offset);
+			setCursor(cursor + RECORD_SIZE);
+		}
+		buffer.position(offset);
+		buffer.put(hash.getBytes());
+		block.serializeCompact(buffer);
+		cache.put(hash, block);
+	}
+
+	@Override
+	public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+		checkOpen();
+		StoredBlock block = cache.get(hash);
+		if (block != null) {
+			return block;
+		}
+		Integer offset = index.get(hash);
+		if (offset == null) {
+			return null;
+		}
+		buffer.position(offset + 32);
+		block = StoredBlock.deserializeCompact(params, buffer);
+		cache.put(hash, block);
+		return block;
+	}
+
+	@Override
+	public synchronized StoredBlock getChainHead() throws BlockStoreException {
+		checkOpen();
+		if (chainHead == null) {
+			byte[] bytes = new byte[32];
+			buffer.position(CHAIN_HEAD_OFFSET);
+			buffer.get(bytes);
+			Sha256Hash hash = Sha256Hash.wrap(bytes);
+			chainHead = get(hash);
+			if (chainHead == null) {
+				throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+			}
+		}
+		return chainHead;
+	}
+
+	@Override
+	public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+		checkOpen();
+		this.chainHead = chainHead;
+		buffer.position(CHAIN_HEAD_OFFSET);
+		buffer.put(chainHead.getHeader().getHash().getBytes());
+	}
+
+	@Override
+	public synchronized void close() throws BlockStoreException {
+		if (buffer == null) {
+			return;
+		}
+		buffer.force();
+		buffer = null;
+		index.clear();
+		cache.clear();
+		try {
+			fileLock.release();
+			randomAccessFile.close();
+		} catch (IOException e) {
+			throw new BlockStoreException(e);
+		}
+	}
+
+	@Override
+	public NetworkParameters getParams() {
+		return params;
+	}
+
+	private static long fileSize(int capacity) {
+		return PROLOGUE_BYTES + (long) RECORD_SIZE * capacity;
+	}
+
+	private void checkOpen() throws BlockStoreException {
+		if (buffer == null) {
+			throw new BlockStoreException("Store closed: " + file);
+		}
+	}
+
+	private int getCursor() {
+		return buffer.getInt(CURSOR_OFFSET);
+	}
+
+	private void setCursor(int cursor) {
+		buffer.putInt(CURSOR_OFFSET, cursor);
+	}
+
+	// hash of the record at offset, null if it was never written
+	private Sha256Hash hashAt(int offset) {
+		byte[] bytes = new byte[32];
+		buffer.position(offset);
+		buffer.get(bytes);
+		for (byte b : bytes) {
+			if (b != 0) {
+				return Sha256Hash.wrap(bytes);
+			}
+		}
+		return null;
+	}
+
+	// oldest record first, so a later copy of a block replaces an earlier one
+	private void buildIndex() throws BlockStoreException {
+		int cursor = getCursor();
+		long end = fileSize(capacity);
+		if (cursor < PROLOGUE_BYTES || cursor > end || (cursor - PROLOGUE_BYTES) % RECORD_SIZE != 0) {
+			throw new BlockStoreException("Corrupted block store: cursor: " + cursor + " in: " + file);
+		}
+		int offset = cursor == end ? PROLOGUE_BYTES : cursor;
+		for (int i = 0; i < capacity; i++) {
+			Sha256Hash hash = hashAt(offset);
+			if (hash != null) {
+				index.put(hash, offset);
+			}
+			offset += RECORD_SIZE;
+			if (offset == end) {
+				offset = PROLOGUE_BYTES;
+			}
+		}
+	}
+
+	private void map() throws IOException {
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+	}
+
+	// extend the file to the capacity, zeroed from offset if preallocating
+	private void allocate(long from) throws IOException {
+		long size = fileSize(capacity);
+		if (!preallocate) {
+			randomAccessFile.setLength(size);
+			return;
+		}
+		FileChannel channel = randomAccessFile.getChannel();
+		ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+		for (long position = from; position < size; position += zeros.capacity()) {
+			zeros.clear();
+			zeros.limit((int) Math.min(zeros.capacity(), size - position));
+			while (zeros.hasRemaining()) {
+				channel.write(zeros, position + zeros.position());
+			}
+		}
+	}
+
+	private void expand() throws BlockStoreException {
+		long start = System.currentTimeMillis();
+		long oldSize = fileSize(capacity);
+		buffer.force();
+		capacity = (int) Math.min(2L * capacity, MAX_CAPACITY);
+		try {
+			allocate(oldSize);
+			map();
+		} catch (IOException e) {
+			throw new BlockStoreException(e);
+		}
+		log.info("block store: {} grown to: {} headers, {} bytes in {}msec", file, capacity, fileSize(capacity),
+			 System.currentTimeMillis() - start);
+	}
+
+	private void closeFile() {
+		buffer = null;
+		try {
+			if (randomAccessFile != null) {
+				randomAccessFile.close();
+			}
+		} catch (IOException e) {
+			log.warn("close block store: {} failed: {}", file, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HeaderFileStore[" + file + ", " + (grow ? "full" : "spv") + ", " + capacity + " headers]";
+	}
+}
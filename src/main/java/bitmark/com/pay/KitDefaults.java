@@ -0,0 +1,42 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Defaults and names of the wallet kit that the service needs before it
+ * starts one.
+ * </p>
+ * <p>
+ * Deliberately uses only java classes, like WalletSnapshot, so that
+ * answering from a snapshot does not load BitmarkWalletKit and with it
+ * bitcoinj.
+ * </p>
+ */
+public final class KitDefaults {
+
+	/**
+	 * <p>
+	 * from org.bitcoinj.core.Transaction as of 2017-03-01
+	 * to override the current value which is yet to be updated,
+	 * the fee per kB in satoshi when none is configured
+	 * <p>
+	 */
+	public static final long DEFAULT_TX_FEE = 100000; // 1 mBTC
+
+	private static final Pattern HOSTED_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private KitDefaults() {
+	}
+
+	/**
+	 * @return true if name can be the name of a hosted wallet
+	 */
+	public static boolean isHostedName(String name) {
+		return HOSTED_NAME.matcher(name).matches();
+	}
+}
@@ -0,0 +1,192 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.bitcoinj.core.Coin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import bitmark.com.json.PayJsonRequest;
+import bitmark.com.json.PayResultJsonResponse;
+
+/**
+ * <p>
+ * Pay a stream of records against one started wallet, writing one json
+ * result line per record in input order.
+ * </p>
+ * <p>
+ * Each record is either a json object:
+ * {"payId":"hex","outputs":[{"address":"...","amount":satoshi},...]}
+ * or a csv line: payId,address,amount{,address,amount}. Empty lines and
+ * lines starting with '#' are skipped.
+ * </p>
+ * <p>
+ * Records are signed and committed one after the other, but up to window
+ * broadcasts are left running, so the next record is signed while the
+ * previous ones are still propagating to the peers.
+ * </p>
+ */
+public class PayBatch {
+	private static final Logger log = LoggerFactory.getLogger(PayBatch.class);
+
+	public static final int DEFAULT_WINDOW = 16;
+
+	private final BitmarkWalletKit bitmarkWalletKit;
+	private final CommandProcessor processor;
+	private final int window;
+	private final Gson gson = new Gson();
+
+	// a record that has been committed and is being broadcast, or failed
+	private static class Pending {
+		final int record;
+		final String payId;
+		final BitmarkWalletKit.PaySendResult sendResult;
+		final String error;
+
+		Pending(int record, String payId, BitmarkWalletKit.PaySendResult sendResult, String error) {
+			this.record = record;
+			this.payId = payId;
+			this.sendResult = sendResult;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * @param bitmarkWalletKit
+	 *            a started kit
+	 * @param window
+	 *            maximum number of broadcasts in flight
+	 */
+	public PayBatch(BitmarkWalletKit bitmarkWalletKit, int window) {
+		this.bitmarkWalletKit = bitmarkWalletKit;
+		this.processor = new CommandProcessor(bitmarkWalletKit);
+		this.window = window < 1 ? 1 : window;
+	}
+
+	/**
+	 * <p>
+	 * Pay every record read from in.
+	 * </p>
+	 *
+	 * @param in
+	 *            records, one per line
+	 * @param out
+	 *            receives one PayResultJsonResponse line per record
+	 * @param aesKey
+	 *            from CommandProcessor.checkPassword(), null if the wallet
+	 *            is not encrypted
+	 * @return number of records that failed
+	 * @throws IOException
+	 *             if reading the records failed
+	 */
+	public int run(BufferedReader in, PrintStream out, KeyParameter aesKey) throws IOException {
+		Deque<Pending> inFlight = new ArrayDeque<Pending>();
+		int record = 0;
+		int failed = 0;
+		String line;
+
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			record += 1;
+
+			while (inFlight.size() >= window) {
+				failed += finish(inFlight.removeFirst(), out);
+			}
+			inFlight.addLast(submit(record, line, aesKey));
+		}
+		while (!inFlight.isEmpty()) {
+			failed += finish(inFlight.removeFirst(), out);
+		}
+		log.info("batch of: {} records completed with: {} failures", record, failed);
+		return failed;
+	}
+
+	private Pending submit(int record, String line, KeyParameter aesKey) {
+		String payId = null;
+		try {
+			List<Payment> payments = new ArrayList<Payment>();
+			if (line.startsWith("{")) {
+				PayJsonRequest request = gson.fromJson(line, PayJsonRequest.class);
+				payId = request.getPayId();
+				if (request.getOutputs() != null) {
+					for (PayJsonRequest.Output output : request.getOutputs()) {
+						payments.add(processor.parsePayment(output.getAddress(), String.valueOf(output.getAmount())));
+					}
+				}
+			} else {
+				String[] fields = line.split(",");
+				payId = fields[0].trim();
+				if (0 == (fields.length % 2)) {
+					return new Pending(record, payId, null, "Incorrect address/amount pairing");
+				}
+				for (int i = 1; i < fields.length; i += 2) {
+					payments.add(processor.parsePayment(fields[i].trim(), fields[i+1].trim()));
+				}
+			}
+
+			if (!PayIdCodec.isValid(payId)) {
+				return new Pending(record, payId, null, "payId is not hex of at most " + PayIdCodec.MAX_PAY_ID_BYTES + " bytes");
+			}
+			if (payments.size() < 1) {
+				return new Pending(record, payId, null, "Need at least one payment address/amount item");
+			}
+
+			BitmarkWalletKit.PaySendResult sendResult = bitmarkWalletKit.sendCoinsAsync(payId, payments, null, aesKey);
+			return new Pending(record, payId, sendResult, null);
+		} catch (CommandException e) {
+			return new Pending(record, payId, null, e.getMessage());
+		} catch (JsonParseException e) {
+			return new Pending(record, payId, null, "Invalid record: " + e.getMessage());
+		} catch (RuntimeException e) {
+			// one bad record must not lose the results of those in flight
+			log.error("record: {} payId: {} failed: {}", record, payId, e);
+			return new Pending(record, payId, null, "Payment failed: " + e.getMessage());
+		}
+	}
+
+	private int finish(Pending pending, PrintStream out) {
+		String txId = null;
+		Long feePerKb = null;
+		Long fee = null;
+		String error = pending.error;
+		String paidStatus = null;
+		if (pending.sendResult != null && pending.sendResult.paidTxId != null) {
+			txId = pending.sendResult.paidTxId;
+			paidStatus = pending.sendResult.paidStatus;
+		} else if (pending.sendResult != null) {
+			feePerKb = pending.sendResult.feePerKb.value;
+			Coin txFee = pending.sendResult.tx.getFee();
+			fee = txFee == null ? null : txFee.value;
+			txId = bitmarkWalletKit.waitForBroadcast(pending.payId, pending.sendResult);
+			if (txId == null) {
+				// committed to the wallet but not confirmed as broadcast
+				txId = pending.sendResult.tx.getHashAsString();
+				error = "Broadcast failed";
+			}
+		}
+		PayResultJsonResponse response = new PayResultJsonResponse(pending.record, pending.payId, txId, feePerKb, fee, error);
+		if (paidStatus != null) {
+			response.setPaid(paidStatus);
+		}
+		out.println(gson.toJson(response));
+		out.flush();
+		return error == null ? 0 : 1;
+	}
+}
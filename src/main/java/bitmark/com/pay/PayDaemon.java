@@ -0,0 +1,390 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bitcoinj.core.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import bitmark.com.json.CommandJsonRequest;
+import bitmark.com.json.ErrorJsonResponse;
+import bitmark.com.json.WatchEventJsonResponse;
+
+/**
+ * <p>
+ * Serve wallet commands from a started BitmarkWalletKit on a local socket
+ * so that each command does not have to start the kit again.
+ * </p>
+ * <p>
+ * The protocol is line-delimited json: each request line is a
+ * CommandJsonRequest and gets exactly one response line, either the json
+ * response of the command or an ErrorJsonResponse. A connection may send
+ * any number of requests.
+ * </p>
+ * <p>
+ * Each request carries the token the daemon writes to a file only its
+ * user can read, next to the port file, so other local users cannot run
+ * commands. A connection that starts with an HTTP request line is closed
+ * unanswered, so a web page cannot post commands to the port.
+ * </p>
+ * <p>
+ * A watch request instead turns its connection into a subscription: each
+ * confidence event of the payments is written as a WatchEventJsonResponse
+ * line until the client closes the connection, or is disconnected for
+ * falling MAX_QUEUED_EVENTS behind. It holds one of the
+ * connections for as long as it lasts. So does a wait until its
+ * transaction is deep enough, so at most MAX_HELD watches and waits run at
+ * the same time and the other connections are left for pay and the rest.
+ * </p>
+ */
+public class PayDaemon {
+	private static final Logger log = LoggerFactory.getLogger(PayDaemon.class);
+
+	// maximum number of connections served at the same time
+	private static final int MAX_CONNECTIONS = 16;
+
+	// maximum number of those held by a watch or a wait
+	private static final int MAX_HELD = MAX_CONNECTIONS / 2;
+
+	// events a watch client may fall behind by before it is disconnected
+	private static final int MAX_QUEUED_EVENTS = 1000;
+
+	// msec a watch waits for an event before looking for the end of input
+	private static final long WATCH_POLL_MSEC = 500;
+
+	private static final int TOKEN_BYTES = 32;
+
+	private static final Pattern HTTP_REQUEST_LINE = Pattern.compile("^[A-Za-z]+ \\S+ HTTP/\\d.*");
+
+	private final CommandProcessor processor;
+	private final File portFile;
+	private final File tokenFile;
+	private final int port;
+	private final Gson gson = new Gson();
+	private final Semaphore held = new Semaphore(MAX_HELD);
+
+	private volatile byte[] token;
+	private volatile ServerSocket serverSocket;
+	private ExecutorService workers;
+
+	/**
+	 * @param processor
+	 *            runs the commands
+	 * @param portFile
+	 *            file to publish the listening port in, so clients can
+	 *            find the daemon
+	 * @param port
+	 *            local port to listen on, 0 for any free port
+	 */
+	public PayDaemon(CommandProcessor processor, File portFile, int port) {
+		this.processor = processor;
+		this.portFile = portFile;
+		this.tokenFile = tokenFile(portFile);
+		this.port = port;
+	}
+
+	/**
+	 * @param portFile
+	 *            the port file of a daemon
+	 * @return the file the daemon writes its token to
+	 */
+	public static File tokenFile(File portFile) {
+		return new File(portFile.getPath() + "-token");
+	}
+
+	/**
+	 * <p>
+	 * Accept connections until stop() is called.
+	 * </p>
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+		writeTokenFile();
+		writePortFile(serverSocket.getLocalPort());
+		log.info("daemon listening on: {}", serverSocket.getLocalSocketAddress());
+
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				if (serverSocket.isClosed()) {
+					break;
+				}
+				throw e;
+			}
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+		log.info("daemon stopped");
+	}
+
+	/**
+	 * <p>
+	 * Stop accepting connections and remove the port file.
+	 * </p>
+	 */
+	public void stop() {
+		if (!portFile.delete()) {
+			log.warn("could not delete daemon port file: {}", portFile);
+		}
+		if (!tokenFile.delete()) {
+			log.warn("could not delete daemon token file: {}", tokenFile);
+		}
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			log.warn("close daemon socket failed: {}", e);
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Write the events to out until the client closes the connection.
+	 * </p>
+	 * <p>
+	 * The events are queued by the listener and written by this thread, so
+	 * a client that stops reading never blocks the bitcoinj user thread.
+	 * When MAX_QUEUED_EVENTS are waiting the client is disconnected.
+	 * </p>
+	 */
+	private void watch(String[] ids, CommandJsonRequest request, final Socket socket, PrintWriter out)
+			throws IOException, CommandException {
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>(MAX_QUEUED_EVENTS);
+		PaymentWatcher watcher = processor.watch(ids, request.getOptions(), new PaymentWatcher.Listener() {
+			@Override
+			public void onEvent(WatchEventJsonResponse event) {
+				if (!events.offer(gson.toJson(event))) {
+					log.warn("daemon watch: client not reading, disconnecting it");
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		});
+		log.info("daemon watch started");
+		InputStream input = socket.getInputStream();
+		socket.setSoTimeout(1);
+		try {
+			while (!socket.isClosed()) {
+				String event = events.poll(WATCH_POLL_MSEC, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					out.println(event);
+					out.flush();
+					if (out.checkError()) {
+						break;
+					}
+					continue;
+				}
+				// nothing more is expected, the end of input is the unsubscribe
+				try {
+					if (input.read() < 0) {
+						break;
+					}
+				} catch (SocketTimeoutException e) {
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			watcher.stop();
+			log.info("daemon watch stopped");
+		}
+	}
+
+	// a new token for this run, readable by the user of the daemon only
+	private void writeTokenFile() throws IOException {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		String hex = Utils.HEX.encode(bytes);
+
+		File temp = new File(tokenFile.getPath() + ".tmp");
+		Files.deleteIfExists(temp.toPath());
+		try {
+			Files.createFile(temp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			Files.createFile(temp.toPath());
+			temp.setReadable(false, false);
+			temp.setWritable(false, false);
+			temp.setReadable(true, true);
+			temp.setWritable(true, true);
+		}
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+			w.write(hex);
+			w.write('\n');
+		}
+		Files.move(temp.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		token = hex.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// answer with the error, the connection is then closed
+	private String refuse(PrintWriter out, String error) {
+		synchronized (out) {
+			out.println(gson.toJson(new ErrorJsonResponse(error, false)));
+			out.flush();
+		}
+		return null;
+	}
+
+	private boolean isAuthorised(CommandJsonRequest request) {
+		String given = request.getToken();
+		return given != null && MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void writePortFile(int localPort) throws IOException {
+		File temp = new File(portFile.getPath() + ".tmp");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+			w.write(Integer.toString(localPort));
+			w.write('\n');
+		}
+		Files.move(temp.toPath(), portFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+		     BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		     PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			boolean first = true;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				if (first && HTTP_REQUEST_LINE.matcher(line).matches()) {
+					log.warn("daemon refused an HTTP request from: {}", s.getRemoteSocketAddress());
+					break;
+				}
+				first = false;
+				String response = handle(line, s, out);
+				if (response == null) {
+					// a watch ended by the client, or refused
+					break;
+				}
+				synchronized (out) {
+					out.println(response);
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			log.warn("daemon connection failed: {}", e);
+		}
+	}
+
+	// the response line, or null when the connection was a watch or must
+	// be closed
+	private String handle(String line, Socket socket, PrintWriter out) throws IOException {
+		CommandJsonRequest request;
+		try {
+			request = gson.fromJson(line, CommandJsonRequest.class);
+		} catch (JsonSyntaxException e) {
+			log.warn("daemon invalid request: {}", e.toString());
+			return refuse(out, "Invalid request");
+		}
+		if (request == null || !isAuthorised(request)) {
+			log.warn("daemon request without the token refused");
+			return refuse(out, "Not authorised, no daemon token");
+		}
+
+		Commands cmd;
+		try {
+			cmd = Commands.fromString(request.getCommand());
+		} catch (IllegalArgumentException | NullPointerException e) {
+			log.warn("daemon invalid request: {}", e.toString());
+			return gson.toJson(new ErrorJsonResponse("Invalid request", false));
+		}
+
+		if (cmd == Commands.WATCH) {
+			if (!held.tryAcquire()) {
+				log.warn("daemon watch refused, {} watches and waits running", MAX_HELD);
+				return gson.toJson(new ErrorJsonResponse("Too many watches and waits running, try again later", false));
+			}
+			List<String> args = request.getArgs();
+			String[] ids = args == null ? new String[0] : args.toArray(new String[args.size()]);
+			try {
+				watch(ids, request, socket, out);
+			} catch (CommandException e) {
+				return gson.toJson(new ErrorJsonResponse(e.getMessage(), false));
+			} finally {
+				held.release();
+			}
+			return null;
+		}
+
+		if (!CommandProcessor.isServed(cmd)) {
+			return gson.toJson(new ErrorJsonResponse("Command not supported by daemon: " + request.getCommand(), false));
+		}
+
+		List<String> args = request.getArgs();
+		String[] targets = args == null ? new String[0] : args.toArray(new String[args.size()]);
+
+		// a wait may block until its timeout, or for ever without one
+		boolean wait = cmd == Commands.WAIT;
+		if (wait && !held.tryAcquire()) {
+			log.warn("daemon wait refused, {} watches and waits running", MAX_HELD);
+			return gson.toJson(new ErrorJsonResponse("Too many watches and waits running, try again later", false));
+		}
+
+		log.info("daemon command: {}", cmd);
+		try {
+			return gson.toJson(processor.process(cmd, targets, request.getOptions(), request.getPassword()));
+		} catch (CommandException e) {
+			return gson.toJson(new ErrorJsonResponse(e.getMessage(), e.isPasswordRequired()));
+		} catch (RuntimeException e) {
+			log.error("daemon command: {} failed: {}", cmd, e);
+			return gson.toJson(new ErrorJsonResponse("Internal error: " + e, false));
+		} finally {
+			if (wait) {
+				held.release();
+			}
+		}
+	}
+}
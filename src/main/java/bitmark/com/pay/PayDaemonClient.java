@@ -0,0 +1,147 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.google.gson.Gson;
+
+import bitmark.com.json.CommandJsonRequest;
+
+/**
+ * <p>
+ * Client side of the PayDaemon protocol.
+ * </p>
+ */
+public class PayDaemonClient implements Closeable {
+
+	// a local daemon either answers at once or is not there
+	private static final int CONNECT_TIMEOUT_MS = 1000;
+
+	private final Socket socket;
+	private final BufferedReader in;
+	private final PrintWriter out;
+	private final String token;
+	private final Gson gson = new Gson();
+
+	private PayDaemonClient(Socket socket, String token) throws IOException {
+		this.socket = socket;
+		this.token = token;
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * <p>
+	 * Connect to the daemon whose port is in the port file, with the token
+	 * from its token file. Without read access to the token file the
+	 * daemon refuses every request.
+	 * </p>
+	 *
+	 * @param portFile
+	 *            written by a running PayDaemon
+	 * @return the client or null if no daemon is running
+	 */
+	public static PayDaemonClient connect(File portFile) {
+		if (!portFile.isFile()) {
+			return null;
+		}
+		Socket socket = new Socket();
+		try {
+			int port = Integer.parseInt(new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8).trim());
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+			return new PayDaemonClient(socket, readToken(PayDaemon.tokenFile(portFile)));
+		} catch (IOException | NumberFormatException e) {
+			// stale port file left by a daemon that did not exit cleanly
+			try {
+				socket.close();
+			} catch (IOException x) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Check whether a daemon is answering on the port in the port file,
+	 * without keeping the connection.
+	 * </p>
+	 *
+	 * @param portFile
+	 *            written by a running PayDaemon
+	 * @return true if a daemon is running
+	 */
+	public static boolean isRunning(File portFile) {
+		PayDaemonClient client = connect(portFile);
+		if (client == null) {
+			return false;
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+		}
+		return true;
+	}
+
+	// null if the token file cannot be read
+	private static String readToken(File tokenFile) {
+		try {
+			return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Send one request and wait for its response line.
+	 * </p>
+	 *
+	 * @param request
+	 *            the command to run
+	 * @return json response line
+	 * @throws IOException
+	 *             if the daemon went away
+	 */
+	public String send(CommandJsonRequest request) throws IOException {
+		request.setToken(token);
+		out.println(gson.toJson(request));
+		out.flush();
+		String line = in.readLine();
+		if (line == null) {
+			throw new IOException("daemon closed the connection");
+		}
+		return line;
+	}
+
+	/**
+	 * <p>
+	 * Wait for the next line of a streamed response, such as a watch.
+	 * </p>
+	 *
+	 * @return json line, or null once the daemon closed the connection
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public String receive() throws IOException {
+		return in.readLine();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,161 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.Arrays;
+
+import org.bitcoinj.script.ScriptOpCodes;
+
+/**
+ * <p>
+ * Convert between a hex payId and the OP_RETURN output script that carries
+ * it in a payment.
+ * </p>
+ * <p>
+ * The script is OP_RETURN followed by a single push of the payId bytes: a
+ * direct push for up to 75 bytes, PUSHDATA1 above that. The hex is decoded
+ * through a lookup table straight into the script array, so encoding
+ * allocates only the script. PayIds longer than MAX_PAY_ID_BYTES would not
+ * be relayed by the bitcoin nodes and are rejected.
+ * </p>
+ */
+public final class PayIdCodec {
+
+	/**
+	 * <p>
+	 * largest payId in bytes, the default OP_RETURN data limit of the
+	 * bitcoin nodes
+	 * </p>
+	 */
+	public static final int MAX_PAY_ID_BYTES = 80;
+
+	// largest push without a length byte
+	private static final int MAX_DIRECT_PUSH = ScriptOpCodes.OP_PUSHDATA1 - 1;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// value of each ascii character as a hex digit, -1 if it is not one
+	private static final byte[] HEX_VALUES = new byte[128];
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	private PayIdCodec() {
+	}
+
+	/**
+	 * <p>
+	 * Check that a payId can be encoded.
+	 * </p>
+	 *
+	 * @param payId
+	 *            hex string, either case
+	 * @return true if it is non-empty, even length, hex and not too long
+	 */
+	public static boolean isValid(String payId) {
+		return validate(payId) == null;
+	}
+
+	/**
+	 * <p>
+	 * Build the output script for a payId.
+	 * </p>
+	 *
+	 * @param payId
+	 *            hex string, either case
+	 * @return the script bytes
+	 * @throws IllegalArgumentException
+	 *             if the payId is not valid
+	 */
+	public static byte[] encodeScript(String payId) {
+		String error = validate(payId);
+		if (error != null) {
+			throw new IllegalArgumentException(error);
+		}
+		int length = payId.length() / 2;
+		byte[] script;
+		int offset;
+		if (length <= MAX_DIRECT_PUSH) {
+			script = new byte[2 + length];
+			script[1] = (byte) length;
+			offset = 2;
+		} else {
+			script = new byte[3 + length];
+			script[1] = (byte) ScriptOpCodes.OP_PUSHDATA1;
+			script[2] = (byte) length;
+			offset = 3;
+		}
+		script[0] = (byte) ScriptOpCodes.OP_RETURN;
+		for (int i = 0; i < length; i++) {
+			script[offset + i] = (byte) ((HEX_VALUES[payId.charAt(2 * i)] << 4) | HEX_VALUES[payId.charAt(2 * i + 1)]);
+		}
+		return script;
+	}
+
+	/**
+	 * <p>
+	 * Get the payId back from an output script.
+	 * </p>
+	 *
+	 * @param script
+	 *            output script bytes
+	 * @return lower case hex payId, or null if the script does not hold one
+	 */
+	public static String decodeScript(byte[] script) {
+		if (script == null || script.length < 3 || (script[0] & 0xff) != ScriptOpCodes.OP_RETURN) {
+			return null;
+		}
+		int push = script[1] & 0xff;
+		int length;
+		int offset;
+		if (push >= 1 && push <= MAX_DIRECT_PUSH) {
+			length = push;
+			offset = 2;
+		} else if (push == ScriptOpCodes.OP_PUSHDATA1 && script.length > 3) {
+			length = script[2] & 0xff;
+			offset = 3;
+		} else {
+			return null;
+		}
+		if (length > MAX_PAY_ID_BYTES || script.length != offset + length) {
+			return null;
+		}
+		char[] hex = new char[2 * length];
+		for (int i = 0; i < length; i++) {
+			int b = script[offset + i] & 0xff;
+			hex[2 * i] = HEX_DIGITS[b >>> 4];
+			hex[2 * i + 1] = HEX_DIGITS[b & 0x0f];
+		}
+		return new String(hex);
+	}
+
+	// reason the payId cannot be encoded, null if it can
+	private static String validate(String payId) {
+		if (payId == null || payId.isEmpty()) {
+			return "payId is empty";
+		}
+		int chars = payId.length();
+		if ((chars & 1) != 0) {
+			return "payId has an odd number of hex digits";
+		}
+		if (chars > 2 * MAX_PAY_ID_BYTES) {
+			return "payId is longer than " + MAX_PAY_ID_BYTES + " bytes";
+		}
+		for (int i = 0; i < chars; i++) {
+			char c = payId.charAt(i);
+			if (c >= 128 || HEX_VALUES[c] < 0) {
+				return "payId is not hex";
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,211 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * The txId that paid each payId, so a payment retried by the caller is
+ * not sent twice.
+ * </p>
+ * <p>
+ * The index is a map held in memory and an append-only file of "payId
+ * txId" lines, a later line replacing an earlier one. A missing file is
+ * rebuilt from the OP_RETURN outputs of the payments in the wallet and in
+ * the archive. On open the pending transactions are added too, they may
+ * have been committed just before a crash.
+ * </p>
+ * <p>
+ * A payment reserves its payId before its transaction is built and
+ * completes or releases it after the commit; a second payment of the same
+ * payId waits for that and then finds the txId.
+ * </p>
+ */
+public class PayIdIndex {
+	private static final Logger log = LoggerFactory.getLogger(PayIdIndex.class);
+
+	private final File file;
+	private final Map<String, String> txIds = new HashMap<String, String>();
+	private final Set<String> reserved = new HashSet<String>();
+
+	private Writer writer;
+
+	/**
+	 * @param file
+	 *            the index file, need not exist
+	 */
+	public PayIdIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * <p>
+	 * Read the index file, or rebuild it, and open it for appending.
+	 * </p>
+	 *
+	 * @param wallet
+	 *            the wallet of the payments
+	 * @param archive
+	 *            the archive of the wallet, null for none
+	 * @throws IOException
+	 *             if a file could not be read or written
+	 */
+	public synchronized void open(Wallet wallet, @Nullable WalletArchive archive) throws IOException {
+		long start = System.currentTimeMillis();
+		txIds.clear();
+		if (file.exists()) {
+			read();
+			for (Transaction tx : wallet.getPendingTransactions()) {
+				add(wallet, tx);
+			}
+		} else {
+			if (archive != null) {
+				archive.payIds(txIds);
+			}
+			add(wallet, wallet.getTransactions(false));
+			rewrite();
+			log.info("payId index: {} rebuilt with: {} payIds", file, txIds.size());
+		}
+		writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		log.info("payId index: {} payIds opened in {}msec", txIds.size(), System.currentTimeMillis() - start);
+	}
+
+	public synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			log.error("payId index: {} close failed: {}", file, e);
+		}
+		writer = null;
+	}
+
+	/**
+	 * @return the txId that paid payId, or null
+	 */
+	public synchronized String get(String payId) {
+		return txIds.get(payId.toLowerCase());
+	}
+
+	/**
+	 * <p>
+	 * Hold payId for a payment, waiting for one already holding it. Must
+	 * be followed by complete() or release().
+	 * </p>
+	 *
+	 * @return the txId that paid payId before, or null
+	 */
+	public synchronized String reserve(String payId) throws InterruptedException {
+		String key = payId.toLowerCase();
+		while (reserved.contains(key)) {
+			wait();
+		}
+		reserved.add(key);
+		return txIds.get(key);
+	}
+
+	/**
+	 * <p>
+	 * The reserved payId is paid by txId.
+	 * </p>
+	 */
+	public synchronized void complete(String payId, String txId) {
+		String key = payId.toLowerCase();
+		put(key, txId);
+		reserved.remove(key);
+		notifyAll();
+	}
+
+	/**
+	 * <p>
+	 * The reserved payId was not paid.
+	 * </p>
+	 */
+	public synchronized void release(String payId) {
+		reserved.remove(payId.toLowerCase());
+		notifyAll();
+	}
+
+	private void put(String payId, String txId) {
+		if (txId.equals(txIds.put(payId, txId)) || writer == null) {
+			return;
+		}
+		try {
+			writer.write(payId + " " + txId + "\n");
+			writer.flush();
+		} catch (IOException e) {
+			// still in memory, rebuilt from the wallet if the file is lost
+			log.error("payId index: {} write of: {} failed: {}", file, payId, e);
+		}
+	}
+
+	private void add(Wallet wallet, Collection<Transaction> transactions) {
+		for (Transaction tx : transactions) {
+			add(wallet, tx);
+		}
+	}
+
+	// a payment of ours carrying a payId
+	private void add(Wallet wallet, Transaction tx) {
+		if (tx.getValueSentFromMe(wallet).signum() <= 0) {
+			return;
+		}
+		for (TransactionOutput output : tx.getOutputs()) {
+			String payId = PayIdCodec.decodeScript(output.getScriptBytes());
+			if (payId != null) {
+				put(payId, tx.getHashAsString());
+				return;
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields.length != 2) {
+					log.error("payId index: skip unreadable line: {}", line);
+					continue;
+				}
+				txIds.put(fields[0], fields[1]);
+			}
+		}
+	}
+
+	private void rewrite() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, String> entry : txIds.entrySet()) {
+				w.write(entry.getKey() + " " + entry.getValue() + "\n");
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
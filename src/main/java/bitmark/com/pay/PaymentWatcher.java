@@ -0,0 +1,275 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bitmark.com.json.WatchEventJsonResponse;
+
+/**
+ * <p>
+ * Confidence events of the payments made by a wallet, pushed to a listener
+ * so callers need not poll pending-tx until a payment confirms.
+ * </p>
+ * <p>
+ * A confidence listener is put on each payment that is pending or less
+ * than depth blocks deep, and on each new one as the wallet commits it. It
+ * is taken off once the payment reaches depth or is dead, so the wallet
+ * history does not have to be scanned on every block.
+ * </p>
+ * <p>
+ * The events are: sent, seen (announced by more peers), confirmed (included
+ * in a block), depth (reached depth), unconfirmed (its block was reorganised
+ * away), double-spent (a conflicting transaction is pending) and dead
+ * (with conflictTxId if a conflicting transaction confirmed).
+ * </p>
+ */
+public class PaymentWatcher {
+	private static final Logger log = LoggerFactory.getLogger(PaymentWatcher.class);
+
+	/**
+	 * <p>
+	 * blocks deep a payment is followed to without a depth
+	 * </p>
+	 */
+	public static final int DEFAULT_DEPTH = 6;
+
+	public static final String SENT = "sent";
+	public static final String SEEN = "seen";
+	public static final String CONFIRMED = "confirmed";
+	public static final String DEPTH = "depth";
+	public static final String UNCONFIRMED = "unconfirmed";
+	public static final String DOUBLE_SPENT = "double-spent";
+	public static final String DEAD = "dead";
+
+	/**
+	 * <p>
+	 * Receiver of the events, called on the bitcoinj user thread.
+	 * </p>
+	 */
+	public interface Listener {
+		void onEvent(WatchEventJsonResponse event);
+	}
+
+	private final Wallet wallet;
+	private final int depth;
+	private final Set<String> ids;
+	private final Listener listener;
+
+	private final Map<Sha256Hash, Watched> watched = new HashMap<Sha256Hash, Watched>();
+	private boolean stopped = false;
+
+	private final WalletCoinsSentEventListener sentListener = new WalletCoinsSentEventListener() {
+		@Override
+		public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+			Watched w = watch(tx);
+			if (w != null) {
+				w.emit(SENT, tx.getConfidence());
+			}
+		}
+	};
+
+	// one payment followed until it is deep enough or dead
+	private class Watched implements TransactionConfidence.Listener {
+		final Transaction tx;
+		final String payId;
+
+		Watched(Transaction tx, String payId) {
+			this.tx = tx;
+			this.payId = payId;
+		}
+
+		@Override
+		public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+			ConfidenceType type = confidence.getConfidenceType();
+			switch (reason) {
+			case SEEN_PEERS:
+				if (type == ConfidenceType.PENDING) {
+					emit(SEEN, confidence);
+				}
+				break;
+			case DEPTH:
+				if (type == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= depth) {
+					unwatch(this);
+					emit(DEPTH, confidence);
+				}
+				break;
+			case TYPE:
+				switch (type) {
+				case BUILDING:
+					if (confidence.getDepthInBlocks() >= depth) {
+						unwatch(this);
+						emit(CONFIRMED, confidence);
+						emit(DEPTH, confidence);
+					} else {
+						emit(CONFIRMED, confidence);
+					}
+					break;
+				case PENDING:
+					emit(UNCONFIRMED, confidence);
+					break;
+				case IN_CONFLICT:
+					emit(DOUBLE_SPENT, confidence);
+					break;
+				case DEAD:
+					unwatch(this);
+					emit(DEAD, confidence);
+					break;
+				default:
+					break;
+				}
+				break;
+			}
+		}
+
+		// the last events are emitted after unwatch(), so a listener sees
+		// the payment gone
+		void emit(String name, TransactionConfidence confidence) {
+			synchronized (PaymentWatcher.this) {
+				if (stopped) {
+					return;
+				}
+			}
+			WatchEventJsonResponse event = new WatchEventJsonResponse(name, tx.getHashAsString(), payId,
+										  System.currentTimeMillis() / 1000);
+			switch (confidence.getConfidenceType()) {
+			case PENDING:
+				event.setPeers(confidence.numBroadcastPeers());
+				break;
+			case BUILDING:
+				event.setBlock(confidence.getAppearedAtChainHeight(), confidence.getDepthInBlocks());
+				break;
+			case DEAD:
+				Transaction overriding = confidence.getOverridingTransaction();
+				if (overriding != null) {
+					event.setConflictTxId(overriding.getHashAsString());
+				}
+				break;
+			default:
+				break;
+			}
+			try {
+				listener.onEvent(event);
+			} catch (RuntimeException e) {
+				log.error("watch: listener failed on: {} of: {}: {}", name, event.getTxId(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param wallet
+	 *            the wallet of the payments
+	 * @param depth
+	 *            blocks deep a payment is followed to, at least 1
+	 * @param ids
+	 *            txIds or payIds of the payments to follow, empty for all
+	 * @param listener
+	 *            receiver of the events
+	 */
+	public PaymentWatcher(Wallet wallet, int depth, List<String> ids, Listener listener) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("depth: " + depth + " is below 1");
+		}
+		this.wallet = wallet;
+		this.depth = depth;
+		this.ids = new HashSet<String>();
+		for (String id : ids) {
+			this.ids.add(id.toLowerCase());
+		}
+		this.listener = listener;
+	}
+
+	/**
+	 * <p>
+	 * Follow the payments still pending or shallow, and new ones.
+	 * </p>
+	 */
+	public void start() {
+		wallet.addCoinsSentEventListener(sentListener);
+		for (Transaction tx : wallet.getTransactions(false)) {
+			watch(tx);
+		}
+		log.info("watch: {} payments to depth: {}", size(), depth);
+	}
+
+	/**
+	 * <p>
+	 * Take all the listeners off, no event follows.
+	 * </p>
+	 */
+	public void stop() {
+		wallet.removeCoinsSentEventListener(sentListener);
+		List<Watched> all;
+		synchronized (this) {
+			stopped = true;
+			all = new ArrayList<Watched>(watched.values());
+			watched.clear();
+		}
+		for (Watched w : all) {
+			w.tx.getConfidence().removeEventListener(w);
+		}
+	}
+
+	/**
+	 * @return the number of payments followed
+	 */
+	public synchronized int size() {
+		return watched.size();
+	}
+
+	// follow tx if it is a payment of interest not yet deep enough
+	private Watched watch(Transaction tx) {
+		TransactionConfidence confidence = tx.getConfidence();
+		ConfidenceType type = confidence.getConfidenceType();
+		if (type == ConfidenceType.DEAD
+				|| (type == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= depth)
+				|| tx.getValueSentFromMe(wallet).signum() <= 0) {
+			return null;
+		}
+		String payId = null;
+		for (TransactionOutput output : tx.getOutputs()) {
+			payId = PayIdCodec.decodeScript(output.getScriptBytes());
+			if (payId != null) {
+				break;
+			}
+		}
+		if (!ids.isEmpty() && !ids.contains(tx.getHashAsString()) && (payId == null || !ids.contains(payId))) {
+			return null;
+		}
+		Watched w;
+		synchronized (this) {
+			if (stopped || watched.containsKey(tx.getHash())) {
+				return null;
+			}
+			w = new Watched(tx, payId);
+			watched.put(tx.getHash(), w);
+		}
+		confidence.addEventListener(w);
+		return w;
+	}
+
+	private void unwatch(Watched w) {
+		synchronized (this) {
+			watched.remove(w.tx.getHash());
+		}
+		w.tx.getConfidence().removeEventListener(w);
+	}
+}
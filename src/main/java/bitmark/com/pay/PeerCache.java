@@ -0,0 +1,303 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * <p>
+ * Peers remembered between runs: those we completed a handshake with and
+ * those other peers told us about in addr messages.
+ * </p>
+ * <p>
+ * Peers that answered are ranked by their last latency, then the gossiped
+ * ones by when they were last seen. The cache keeps MAX_PEERS, forgets a
+ * peer not seen for MAX_AGE_DAYS and one that failed MAX_FAILURES times in
+ * a row. It is written with a temporary file and a rename like the
+ * WalletSnapshot.
+ * </p>
+ */
+public class PeerCache {
+	private static final Logger log = LoggerFactory.getLogger(PeerCache.class);
+
+	/**
+	 * <p>
+	 * most peers kept in the file
+	 * </p>
+	 */
+	public static final int MAX_PEERS = 64;
+
+	/**
+	 * <p>
+	 * peers not seen for this long are dropped
+	 * </p>
+	 */
+	public static final int MAX_AGE_DAYS = 30;
+
+	/**
+	 * <p>
+	 * failed connects in a row before a peer is dropped
+	 * </p>
+	 */
+	public static final int MAX_FAILURES = 3;
+
+	/**
+	 * <p>
+	 * One remembered peer, as stored in the file.
+	 * </p>
+	 */
+	public static class Entry {
+		private String host;
+		private int port;
+		// seconds, 0 if we never completed a handshake
+		private long lastSuccess;
+		// seconds, handshake or addr message
+		private long lastSeen;
+		// msec, -1 if unknown
+		private long latency = -1;
+		private int failures;
+
+		Entry(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public long getLastSuccess() {
+			return lastSuccess;
+		}
+
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		public long getLatency() {
+			return latency;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		public InetSocketAddress toSocketAddress() {
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	private static class Contents {
+		private List<Entry> peers;
+	}
+
+	// best first after every change
+	private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			boolean aAnswered = a.lastSuccess > 0 && a.latency >= 0;
+			boolean bAnswered = b.lastSuccess > 0 && b.latency >= 0;
+			if (aAnswered != bAnswered) {
+				return aAnswered ? -1 : 1;
+			}
+			if (aAnswered && a.latency != b.latency) {
+				return Long.compare(a.latency, b.latency);
+			}
+			return Long.compare(b.lastSeen, a.lastSeen);
+		}
+	};
+
+	private final File file;
+
+	private final Map<String, Entry> peers = new LinkedHashMap<String, Entry>();
+
+	private boolean changed = false;
+
+	public PeerCache(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private static String key(String host, int port) {
+		return host + "/" + port;
+	}
+
+	/**
+	 * <p>
+	 * Read the cache file. A missing or unreadable file leaves the cache
+	 * empty, it is rebuilt as peers are seen.
+	 * </p>
+	 */
+	public synchronized void read() {
+		peers.clear();
+		if (!file.exists()) {
+			return;
+		}
+		try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			Contents contents = new Gson().fromJson(in, Contents.class);
+			long oldest = now() - TimeUnit.DAYS.toSeconds(MAX_AGE_DAYS);
+			if (contents != null && contents.peers != null) {
+				for (Entry entry : contents.peers) {
+					if (entry != null && entry.host != null && entry.port > 0 && entry.lastSeen >= oldest) {
+						peers.put(key(entry.host, entry.port), entry);
+					}
+				}
+			}
+		} catch (IOException | JsonParseException e) {
+			log.warn("unreadable peer cache: {}: {}", file, e);
+			peers.clear();
+		}
+		log.info("peer cache: {} peers from: {}", peers.size(), file);
+	}
+
+	/**
+	 * <p>
+	 * Write the cache if it changed since the last write.
+	 * </p>
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public synchronized void write() throws IOException {
+		if (!changed) {
+			return;
+		}
+		Contents contents = new Contents();
+		contents.peers = sorted();
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer w = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8)) {
+			new Gson().toJson(contents, w);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+	}
+
+	/**
+	 * @return the cached peers, best first
+	 */
+	public synchronized List<Entry> getPeers() {
+		return sorted();
+	}
+
+	/**
+	 * <p>
+	 * A handshake with the peer completed.
+	 * </p>
+	 *
+	 * @param latencyMsec
+	 *            measured latency, -1 to keep the last one
+	 */
+	public synchronized void succeeded(String host, int port, long latencyMsec) {
+		Entry entry = entry(host, port);
+		entry.lastSuccess = now();
+		entry.lastSeen = entry.lastSuccess;
+		if (latencyMsec >= 0) {
+			entry.latency = latencyMsec;
+		}
+		entry.failures = 0;
+		changed = true;
+		trim();
+	}
+
+	/**
+	 * <p>
+	 * A connect to the peer failed, it is dropped after MAX_FAILURES.
+	 * </p>
+	 */
+	public synchronized void failed(String host, int port) {
+		Entry entry = peers.get(key(host, port));
+		if (entry == null) {
+			return;
+		}
+		entry.failures += 1;
+		if (entry.failures >= MAX_FAILURES) {
+			peers.remove(key(host, port));
+		}
+		changed = true;
+	}
+
+	/**
+	 * <p>
+	 * A peer sent us this address.
+	 * </p>
+	 *
+	 * @param seenSeconds
+	 *            time the address was last seen by the sender
+	 */
+	public synchronized void gossiped(String host, int port, long seenSeconds) {
+		long oldest = now() - TimeUnit.DAYS.toSeconds(MAX_AGE_DAYS);
+		if (seenSeconds < oldest) {
+			return;
+		}
+		Entry entry = entry(host, port);
+		entry.lastSeen = Math.max(entry.lastSeen, Math.min(seenSeconds, now()));
+		changed = true;
+		trim();
+	}
+
+	private Entry entry(String host, int port) {
+		String key = key(host, port);
+		Entry entry = peers.get(key);
+		if (entry == null) {
+			entry = new Entry(host, port);
+			peers.put(key, entry);
+		}
+		return entry;
+	}
+
+	private List<Entry> sorted() {
+		List<Entry> list = new ArrayList<Entry>(peers.values());
+		Collections.sort(list, BEST_FIRST);
+		return list;
+	}
+
+	// keep the best MAX_PEERS
+	private void trim() {
+		if (peers.size() <= MAX_PEERS) {
+			return;
+		}
+		List<Entry> list = sorted();
+		for (Entry entry : list.subList(MAX_PEERS, list.size())) {
+			peers.remove(key(entry.host, entry.port));
+		}
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+}
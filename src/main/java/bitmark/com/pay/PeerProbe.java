@@ -0,0 +1,215 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.PeerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Rank the configured peers by the time a TCP connect to them takes, all
+ * probed at once. Host names are resolved by the probe, so a name that
+ * does not resolve is skipped instead of stopping the start.
+ * </p>
+ * <p>
+ * The probe stops waiting once enough peers have answered: a peer that
+ * does not answer costs at most the connect timeout, and nothing at all
+ * when the others are enough.
+ * </p>
+ */
+public class PeerProbe {
+	private static final Logger log = LoggerFactory.getLogger(PeerProbe.class);
+
+	/**
+	 * <p>
+	 * Outcome of probing one peer.
+	 * </p>
+	 */
+	public static class Result {
+		private final InetSocketAddress configured;
+		private final PeerAddress address;
+		private final long connectMsec;
+		private final boolean failed;
+
+		Result(InetSocketAddress configured, PeerAddress address, long connectMsec, boolean failed) {
+			this.configured = configured;
+			this.address = address;
+			this.connectMsec = connectMsec;
+			this.failed = failed;
+		}
+
+		public InetSocketAddress getConfigured() {
+			return configured;
+		}
+
+		/**
+		 * @return resolved address, null if the host name did not resolve
+		 */
+		public PeerAddress getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return msec the connect took, -1 if it failed or did not finish
+		 */
+		public long getConnectMsec() {
+			return connectMsec;
+		}
+
+		public boolean isResponsive() {
+			return connectMsec >= 0;
+		}
+
+		/**
+		 * @return true if the connect was refused, timed out or the host
+		 *         name did not resolve, false if it answered or its probe
+		 *         was not waited for as enough peers had answered
+		 */
+		public boolean isFailed() {
+			return failed;
+		}
+
+		@Override
+		public String toString() {
+			return configured.getHostString() + ":" + configured.getPort()
+					+ (isResponsive() ? " " + connectMsec + "msec" : failed ? " no answer" : " not waited for");
+		}
+	}
+
+	private PeerProbe() {
+	}
+
+	/**
+	 * <p>
+	 * Probe the peers in parallel.
+	 * </p>
+	 *
+	 * @param peers
+	 *            configured peers, resolved or not
+	 * @param timeoutMsec
+	 *            connect timeout of each probe and the longest wait
+	 * @param wanted
+	 *            stop waiting once this many peers answered
+	 * @return answering peers fastest first, then the others in the
+	 *         configured order
+	 */
+	public static List<Result> rank(List<InetSocketAddress> peers, final int timeoutMsec, int wanted) {
+		if (peers.isEmpty()) {
+			return new ArrayList<Result>();
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(peers.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "peer probe");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		CompletionService<Result> probes = new ExecutorCompletionService<Result>(executor);
+		for (final InetSocketAddress peer : peers) {
+			probes.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return probe(peer, timeoutMsec);
+				}
+			});
+		}
+
+		List<Result> answered = new ArrayList<Result>();
+		List<Result> finished = new ArrayList<Result>();
+		long deadline = start + timeoutMsec;
+		boolean timedOut = false;
+		try {
+			while (finished.size() < peers.size() && answered.size() < wanted) {
+				long wait = deadline - System.currentTimeMillis();
+				Future<Result> next = wait > 0 ? probes.poll(wait, TimeUnit.MILLISECONDS) : null;
+				if (next == null) {
+					timedOut = true;
+					break;
+				}
+				Result result = next.get();
+				finished.add(result);
+				if (result.isResponsive()) {
+					answered.add(result);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.warn("peer probe failed: {}", e);
+		} finally {
+			// a connect still running ends at its timeout
+			executor.shutdownNow();
+		}
+
+		Collections.sort(answered, new Comparator<Result>() {
+			@Override
+			public int compare(Result a, Result b) {
+				return Long.compare(a.getConnectMsec(), b.getConnectMsec());
+			}
+		});
+		List<Result> ranked = new ArrayList<Result>(answered);
+		for (InetSocketAddress peer : peers) {
+			Result result = null;
+			for (Result r : finished) {
+				if (r.getConfigured() == peer) {
+					result = r;
+					break;
+				}
+			}
+			if (result == null) {
+				// not finished: still usable if it needs no resolving, and
+				// only failed if it ran into the timeout
+				result = new Result(peer, peer.isUnresolved() ? null : new PeerAddress(peer.getAddress(), peer.getPort()), -1,
+						    timedOut);
+			}
+			if (!result.isResponsive()) {
+				ranked.add(result);
+			}
+		}
+		log.info("peer probe: {} of {} answered in {}msec: {}", answered.size(), peers.size(),
+			 System.currentTimeMillis() - start, ranked);
+		return ranked;
+	}
+
+	private static Result probe(InetSocketAddress peer, int timeoutMsec) {
+		InetSocketAddress resolved = peer;
+		if (peer.isUnresolved()) {
+			resolved = new InetSocketAddress(peer.getHostString(), peer.getPort());
+			if (resolved.isUnresolved()) {
+				log.warn("peer: {} does not resolve", peer.getHostString());
+				return new Result(peer, null, -1, true);
+			}
+		}
+		PeerAddress address = new PeerAddress(resolved.getAddress(), resolved.getPort());
+		long start = System.nanoTime();
+		try (Socket socket = new Socket()) {
+			socket.connect(resolved, timeoutMsec);
+			return new Result(peer, address, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), false);
+		} catch (IOException e) {
+			log.info("peer: {} connect failed: {}", resolved, e.getMessage());
+			return new Result(peer, address, -1, true);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Keep the WalletSnapshot file up to date while the kit is running.
+ * </p>
+ * <p>
+ * Every wallet change and new chain head requests a write. Requests that
+ * arrive while a write is pending are merged into it, so a burst of blocks
+ * during sync costs one write rather than one per block.
+ * </p>
+ */
+public class SnapshotWriter {
+	private static final Logger log = LoggerFactory.getLogger(SnapshotWriter.class);
+
+	private final File file;
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+
+	private Wallet wallet;
+	private AbstractBlockChain chain;
+	private ExecutorService executor;
+
+	private final WalletChangeEventListener walletListener = new WalletChangeEventListener() {
+		@Override
+		public void onWalletChanged(Wallet wallet) {
+			request();
+		}
+	};
+
+	private final NewBestBlockListener chainListener = new NewBestBlockListener() {
+		@Override
+		public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+			request();
+		}
+	};
+
+	/**
+	 * @param file
+	 *            the snapshot file
+	 */
+	public SnapshotWriter(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * <p>
+	 * Write a first snapshot and follow the wallet and chain.
+	 * </p>
+	 *
+	 * @param wallet
+	 *            the wallet of a started kit
+	 * @param chain
+	 *            the chain of that kit
+	 */
+	public void start(Wallet wallet, AbstractBlockChain chain) {
+		this.wallet = wallet;
+		this.chain = chain;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "snapshot writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		wallet.addChangeEventListener(walletListener);
+		chain.addNewBestBlockListener(chainListener);
+		request();
+	}
+
+	/**
+	 * <p>
+	 * Stop following and write a final snapshot.
+	 * </p>
+	 */
+	public void stop() {
+		if (executor == null) {
+			return;
+		}
+		wallet.removeChangeEventListener(walletListener);
+		chain.removeNewBestBlockListener(chainListener);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		write();
+	}
+
+	private void request() {
+		if (!pending.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.set(false);
+					write();
+				}
+			});
+		} catch (RuntimeException e) {
+			// stopping
+			pending.set(false);
+		}
+	}
+
+	private void write() {
+		long now = System.currentTimeMillis();
+
+		List<String> pendingTx = new ArrayList<String>();
+		for (Transaction tx : wallet.getPendingTransactions()) {
+			pendingTx.add(tx.getHashAsString());
+		}
+		List<Address> issued = wallet.getIssuedReceiveAddresses();
+		String address = issued.isEmpty() ? null : issued.get(0).toString();
+
+		WalletSnapshot snapshot = new WalletSnapshot(
+			wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE).value,
+			wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE).value,
+			address,
+			pendingTx,
+			wallet.getLastBlockSeenHeight(),
+			wallet.getLastBlockSeenTimeSecs(),
+			now);
+		try {
+			snapshot.write(file);
+		} catch (IOException e) {
+			log.error("write snapshot: {} failed: {}", file, e);
+			return;
+		}
+		log.debug("snapshot written in {}msec", System.currentTimeMillis() - now);
+	}
+}
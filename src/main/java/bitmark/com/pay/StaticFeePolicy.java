@@ -0,0 +1,36 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * <p>
+ * The same fee per kB for every payment, set per network in its
+ * configuration.
+ * </p>
+ */
+public class StaticFeePolicy implements FeePolicy {
+
+	private final Coin feePerKb;
+
+	public StaticFeePolicy(Coin feePerKb) {
+		this.feePerKb = feePerKb;
+	}
+
+	@Override
+	public Coin feePerKb(Wallet wallet, @Nullable BlockStore store) {
+		return feePerKb;
+	}
+
+	@Override
+	public String toString() {
+		return "static " + feePerKb.value;
+	}
+}
@@ -0,0 +1,211 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * <p>
+ * The transactions of a wallet in chronological order, a page at a time.
+ * </p>
+ * <p>
+ * Confirmed transactions are ordered by height and by their order within
+ * the block, then come the others by the time the wallet saw them. A page
+ * is the limit transactions following the cursor, kept in a heap of that
+ * size while the wallet is scanned, so no list of the whole history is
+ * built. The cursor of the next page is the position of the last
+ * transaction returned.
+ * </p>
+ * <p>
+ * An unconfirmed transaction moves to its block once it confirms, so a
+ * client paging through should stop at the pending ones and start from
+ * its last confirmed height the next time.
+ * </p>
+ * <p>
+ * Only the transactions still in the wallet are listed: those moved out
+ * by WalletArchive are looked up with the archived command instead.
+ * </p>
+ */
+public class TransactionHistory {
+
+	/**
+	 * <p>
+	 * transactions per page without a limit
+	 * </p>
+	 */
+	public static final int DEFAULT_LIMIT = 1000;
+
+	/**
+	 * <p>
+	 * largest page, one daemon response holds it
+	 * </p>
+	 */
+	public static final int MAX_LIMIT = 10000;
+
+	// unconfirmed transactions come after every block
+	private static final int PENDING_HEIGHT = Integer.MAX_VALUE;
+
+	/**
+	 * <p>
+	 * Place of a transaction in the history, written as the cursor.
+	 * </p>
+	 */
+	static final class Position implements Comparable<Position> {
+		final int height;
+		final long order;
+		final String txId;
+
+		Position(int height, long order, String txId) {
+			this.height = height;
+			this.order = order;
+			this.txId = txId;
+		}
+
+		static Position of(Transaction tx) {
+			TransactionConfidence confidence = tx.getConfidence();
+			if (confidence.getConfidenceType() != ConfidenceType.BUILDING) {
+				return new Position(PENDING_HEIGHT, tx.getUpdateTime().getTime() / 1000, tx.getHashAsString());
+			}
+			long order = 0;
+			Map<?, Integer> offsets = tx.getAppearsInHashes();
+			if (offsets != null && !offsets.isEmpty()) {
+				order = Collections.min(offsets.values());
+			}
+			return new Position(confidence.getAppearedAtChainHeight(), order, tx.getHashAsString());
+		}
+
+		/**
+		 * @throws IllegalArgumentException
+		 *             if the cursor was not written by toString()
+		 */
+		static Position parse(String cursor) {
+			String[] parts = cursor.split("\\.");
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("invalid cursor: " + cursor);
+			}
+			return new Position(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), parts[2]);
+		}
+
+		@Override
+		public int compareTo(Position other) {
+			int c = Integer.compare(height, other.height);
+			if (c != 0) {
+				return c;
+			}
+			c = Long.compare(order, other.order);
+			if (c != 0) {
+				return c;
+			}
+			return txId.compareTo(other.txId);
+		}
+
+		@Override
+		public String toString() {
+			return height + "." + order + "." + txId;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Some transactions of the history and where the next ones start.
+	 * </p>
+	 */
+	public static class Page {
+		public final List<Transaction> transactions;
+
+		// null on the last page
+		public final String next;
+
+		Page(List<Transaction> transactions, String next) {
+			this.transactions = transactions;
+			this.next = next;
+		}
+	}
+
+	// a transaction with its position, ordered by it
+	private static final class Placed {
+		final Position position;
+		final Transaction tx;
+
+		Placed(Position position, Transaction tx) {
+			this.position = position;
+			this.tx = tx;
+		}
+	}
+
+	private static final Comparator<Placed> LATEST_FIRST = new Comparator<Placed>() {
+		@Override
+		public int compare(Placed a, Placed b) {
+			return b.position.compareTo(a.position);
+		}
+	};
+
+	private TransactionHistory() {
+	}
+
+	/**
+	 * <p>
+	 * The transactions following the cursor.
+	 * </p>
+	 *
+	 * @param sinceHeight
+	 *            leave out the transactions confirmed below this height
+	 * @param cursor
+	 *            next of the previous page, null to start from the oldest
+	 * @param limit
+	 *            transactions in the page, 1 to MAX_LIMIT
+	 * @throws IllegalArgumentException
+	 *             if the cursor or limit is invalid
+	 */
+	public static Page page(Wallet wallet, int sinceHeight, @Nullable String cursor, int limit) {
+		if (limit < 1 || limit > MAX_LIMIT) {
+			throw new IllegalArgumentException("limit: " + limit + " is not from 1 to " + MAX_LIMIT);
+		}
+		Position after;
+		try {
+			after = cursor == null ? null : Position.parse(cursor);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid cursor: " + cursor);
+		}
+
+		// the limit + 1 earliest, the extra one tells there is a next page
+		PriorityQueue<Placed> earliest = new PriorityQueue<Placed>(limit + 1, LATEST_FIRST);
+		for (Transaction tx : wallet.getTransactions(true)) {
+			Position position = Position.of(tx);
+			if (position.height < sinceHeight || (after != null && position.compareTo(after) <= 0)) {
+				continue;
+			}
+			if (earliest.size() <= limit) {
+				earliest.add(new Placed(position, tx));
+			} else if (position.compareTo(earliest.peek().position) < 0) {
+				earliest.poll();
+				earliest.add(new Placed(position, tx));
+			}
+		}
+		boolean more = earliest.size() > limit;
+		if (more) {
+			earliest.poll();
+		}
+		List<Transaction> transactions = new ArrayList<Transaction>(earliest.size());
+		String next = more ? earliest.peek().position.toString() : null;
+		while (!earliest.isEmpty()) {
+			transactions.add(earliest.poll().tx);
+		}
+		Collections.reverse(transactions);
+		return new Page(transactions, next);
+	}
+}
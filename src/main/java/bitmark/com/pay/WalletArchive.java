@@ -0,0 +1,349 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.protobuf.ByteString;
+
+/**
+ * <p>
+ * Append-only file of the transactions moved out of the wallet file.
+ * </p>
+ * <p>
+ * The wallet keeps every payment forever, so it takes longer to load and
+ * save the longer it runs. archive() moves the transactions whose outputs
+ * are all spent and that are at least the given depth in the chain into
+ * the archive file, one json line each with its txId, payId, height and
+ * raw bytes. The balance and the spendable outputs are unchanged.
+ * </p>
+ * <p>
+ * bitcoinj has no way to remove a transaction from a wallet, so the wallet
+ * file is rewritten without them while the kit is not running. A kept
+ * transaction whose output is spent by an archived one would not load, so
+ * such spenders stay in the wallet too. The archive is written and synced
+ * before the wallet file is replaced: a crash in between leaves an entry
+ * twice, never a transaction in neither file.
+ * </p>
+ */
+public class WalletArchive {
+	private static final Logger log = LoggerFactory.getLogger(WalletArchive.class);
+
+	/**
+	 * <p>
+	 * shallowest depth archived, a reorganisation would need the
+	 * transactions back in the wallet
+	 * </p>
+	 */
+	public static final int MIN_DEPTH = 100;
+
+	/**
+	 * <p>
+	 * One line of the archive file.
+	 * </p>
+	 */
+	public static class Entry {
+		String txId;
+		String payId;
+		Integer height;
+		Long time;
+		String tx;
+
+		public String getTxId() {
+			return txId;
+		}
+
+		public String getPayId() {
+			return payId;
+		}
+
+		public Integer getHeight() {
+			return height;
+		}
+
+		public Long getTime() {
+			return time;
+		}
+
+		public String getTx() {
+			return tx;
+		}
+	}
+
+	private final NetworkParameters params;
+	private final File walletFile;
+	private final File file;
+	private final Gson gson = new Gson();
+
+	/**
+	 * @param params
+	 *            network of the wallet
+	 * @param walletFile
+	 *            the wallet file
+	 * @param file
+	 *            the archive file, need not exist
+	 */
+	public WalletArchive(NetworkParameters params, File walletFile, File file) {
+		this.params = params;
+		this.walletFile = walletFile;
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * <p>
+	 * Move the spent transactions at least depth deep into the archive.
+	 * The wallet file must not be in use by a running kit.
+	 * </p>
+	 *
+	 * @param depth
+	 *            blocks, at least MIN_DEPTH
+	 * @return the number of transactions archived
+	 * @throws IOException
+	 *             if the wallet is unreadable or a file could not be
+	 *             written
+	 */
+	public int archive(int depth) throws IOException {
+		if (depth < MIN_DEPTH) {
+			throw new IllegalArgumentException("archive depth: " + depth + " is below: " + MIN_DEPTH);
+		}
+		if (!walletFile.exists()) {
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		Protos.Wallet proto;
+		try (FileInputStream in = new FileInputStream(walletFile)) {
+			proto = WalletProtobufSerializer.parseToProto(in);
+		}
+		Set<ByteString> archived = archivable(proto, depth);
+		if (archived.isEmpty()) {
+			log.info("archive: nothing at depth: {} in: {} transactions", depth, proto.getTransactionCount());
+			return 0;
+		}
+
+		Wallet wallet;
+		try {
+			wallet = new WalletProtobufSerializer().readWallet(params, null, proto);
+		} catch (UnreadableWalletException e) {
+			throw new IOException("Unreadable wallet: " + walletFile, e);
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		for (ByteString hash : archived) {
+			entries.add(entry(wallet.getTransaction(Sha256Hash.wrap(hash.toByteArray()))));
+		}
+		append(entries);
+
+		Protos.Wallet.Builder pruned = proto.toBuilder().clearTransaction();
+		for (Protos.Transaction tx : proto.getTransactionList()) {
+			if (!archived.contains(tx.getHash())) {
+				pruned.addTransaction(tx);
+			}
+		}
+		replaceWallet(pruned.build());
+		log.info("archive: moved: {} of: {} transactions to: {} in {}msec", archived.size(),
+			 proto.getTransactionCount(), file, System.currentTimeMillis() - start);
+		return archived.size();
+	}
+
+	// the spent transactions deep enough whose spenders are all deep enough
+	// too, less those a kept one points at
+	static Set<ByteString> archivable(Protos.Wallet proto, int depth) {
+		int best = proto.getLastSeenBlockHeight();
+		Set<ByteString> deep = new HashSet<ByteString>();
+		for (Protos.Transaction tx : proto.getTransactionList()) {
+			if (!tx.hasConfidence()) {
+				continue;
+			}
+			Protos.TransactionConfidence confidence = tx.getConfidence();
+			if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+					&& confidence.hasAppearedAtHeight()
+					&& best - confidence.getAppearedAtHeight() + 1 >= depth) {
+				deep.add(tx.getHash());
+			}
+		}
+		Set<ByteString> archived = new HashSet<ByteString>();
+		for (Protos.Transaction tx : proto.getTransactionList()) {
+			if (tx.getPool() != Protos.Transaction.Pool.SPENT || !deep.contains(tx.getHash())) {
+				continue;
+			}
+			// a pending or shallow spender could still be dropped by a
+			// reorg, and the wallet would need this transaction again
+			boolean settled = true;
+			for (Protos.TransactionOutput output : tx.getTransactionOutputList()) {
+				if (output.hasSpentByTransactionHash() && !deep.contains(output.getSpentByTransactionHash())) {
+					settled = false;
+					break;
+				}
+			}
+			if (settled) {
+				archived.add(tx.getHash());
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Protos.Transaction tx : proto.getTransactionList()) {
+				if (archived.contains(tx.getHash())) {
+					continue;
+				}
+				for (Protos.TransactionOutput output : tx.getTransactionOutputList()) {
+					if (output.hasSpentByTransactionHash() && archived.remove(output.getSpentByTransactionHash())) {
+						changed = true;
+					}
+				}
+			}
+		}
+		return archived;
+	}
+
+	private static Entry entry(Transaction tx) {
+		Entry entry = new Entry();
+		entry.txId = tx.getHashAsString();
+		for (TransactionOutput output : tx.getOutputs()) {
+			String payId = PayIdCodec.decodeScript(output.getScriptBytes());
+			if (payId != null) {
+				entry.payId = payId;
+				break;
+			}
+		}
+		int height = tx.getConfidence().getAppearedAtChainHeight();
+		entry.height = height > 0 ? height : null;
+		entry.time = tx.getUpdateTime().getTime() / 1000;
+		entry.tx = Utils.HEX.encode(tx.unsafeBitcoinSerialize());
+		return entry;
+	}
+
+	private void append(List<Entry> entries) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			for (Entry entry : entries) {
+				w.write(gson.toJson(entry));
+				w.write('\n');
+			}
+			w.flush();
+			out.getFD().sync();
+		}
+	}
+
+	private void replaceWallet(Protos.Wallet proto) throws IOException {
+		File directory = walletFile.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("wallet", null, directory);
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			proto.writeTo(out);
+			out.flush();
+			out.getFD().sync();
+		}
+		Files.move(temp.toPath(), walletFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			   StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("directory: {} not synced: {}", directory, e.toString());
+		}
+	}
+
+	/**
+	 * <p>
+	 * Look up archived transactions.
+	 * </p>
+	 *
+	 * @param id
+	 *            a txId or a payId, either case
+	 * @return the entries with that txId or payId, oldest first
+	 * @throws IOException
+	 *             if the archive is unreadable
+	 */
+	public List<Entry> find(String id) throws IOException {
+		String key = id.toLowerCase();
+		List<Entry> found = new ArrayList<Entry>();
+		Set<String> seen = new HashSet<String>();
+		if (!file.exists()) {
+			return found;
+		}
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				// cheap test before parsing, the ids are lower case hex
+				if (!line.contains(key)) {
+					continue;
+				}
+				Entry entry;
+				try {
+					entry = gson.fromJson(line, Entry.class);
+				} catch (JsonParseException e) {
+					log.error("archive: skip unreadable entry: {}", line);
+					continue;
+				}
+				if (entry != null && (key.equals(entry.txId) || key.equals(entry.payId)) && seen.add(entry.txId)) {
+					found.add(entry);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * <p>
+	 * Put the payId and txId of each archived payment into payIds, a later
+	 * entry replacing an earlier one.
+	 * </p>
+	 *
+	 * @throws IOException
+	 *             if the archive is unreadable
+	 */
+	public void payIds(Map<String, String> payIds) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				Entry entry;
+				try {
+					entry = gson.fromJson(line, Entry.class);
+				} catch (JsonParseException e) {
+					log.error("archive: skip unreadable entry: {}", line);
+					continue;
+				}
+				if (entry != null && entry.payId != null && entry.txId != null) {
+					payIds.put(entry.payId, entry.txId);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,420 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
+import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+
+import bitmark.com.json.StatusJsonResponse;
+
+/**
+ * <p>
+ * Counters for the startup, chain download, peers, bloom filter,
+ * broadcasts and wallet saves of one kit.
+ * </p>
+ * <p>
+ * The startup phases are timed from start() so a slow start can be put
+ * down to the wallet load, the first peer connection or the header
+ * download. The counters are read by the status command and logged
+ * periodically as one metrics line.
+ * </p>
+ */
+public class WalletMetrics extends DownloadProgressTracker
+		implements PeerConnectedEventListener, PeerDisconnectedEventListener {
+	private static final Logger log = LoggerFactory.getLogger(WalletMetrics.class);
+
+	private volatile long startTime;
+	private volatile long walletLoadedTime;
+	private volatile long firstPeerTime;
+	private volatile long downloadStartTime;
+	private volatile long downloadDoneTime;
+
+	private final AtomicLong blocksDownloaded = new AtomicLong();
+	private final AtomicLong downloadBlocks = new AtomicLong();
+	private volatile int blocksLeft;
+
+	private final Map<FilterRecalculateMode, AtomicLong> filterRecalculations =
+		new EnumMap<FilterRecalculateMode, AtomicLong>(FilterRecalculateMode.class);
+	private final AtomicLong filterRecalculationsMerged = new AtomicLong();
+	private volatile double filterFalsePositiveRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+
+	// transactions in the filtered blocks, those the filter matched and of
+	// those the ones the wallet did not want
+	private final AtomicLong filterTransactions = new AtomicLong();
+	private final AtomicLong filterMatched = new AtomicLong();
+	private final AtomicLong filterFalsePositives = new AtomicLong();
+
+	private final AtomicLong broadcasts = new AtomicLong();
+	private final AtomicLong broadcastsAcknowledged = new AtomicLong();
+	private final AtomicLong broadcastsFailed = new AtomicLong();
+	private volatile long lastAcknowledgeMsec = -1;
+
+	private final AtomicLong walletSaves = new AtomicLong();
+	private final AtomicLong walletSavesMerged = new AtomicLong();
+	private final AtomicLong walletSavesFailed = new AtomicLong();
+	private volatile long lastWalletSaveMsec = -1;
+	private volatile long maxWalletSaveMsec = -1;
+	private volatile long walletFileBytes = -1;
+
+	private volatile Service kit;
+	private volatile PeerGroup peerGroup;
+	private volatile AbstractBlockChain chain;
+
+	private ScheduledExecutorService scheduler;
+
+	public WalletMetrics() {
+		for (FilterRecalculateMode mode : FilterRecalculateMode.values()) {
+			filterRecalculations.put(mode, new AtomicLong());
+		}
+	}
+
+	/**
+	 * <p>
+	 * The kit is starting, begin the startup timing and log the metrics
+	 * every interval until stop().
+	 * </p>
+	 *
+	 * @param kit
+	 *            the kit, only its state is read
+	 * @param intervalSeconds
+	 *            seconds between metrics lines, 0 for none
+	 */
+	public synchronized void start(Service kit, int intervalSeconds) {
+		this.kit = kit;
+		this.startTime = System.currentTimeMillis();
+		if (intervalSeconds <= 0 || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "wallet metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				logMetrics();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * <p>
+	 * Stop the metrics lines, with a last one.
+	 * </p>
+	 */
+	public synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+		logMetrics();
+	}
+
+	/**
+	 * <p>
+	 * The wallet and block store are loaded and the peer group created,
+	 * called before any peer is contacted.
+	 * </p>
+	 */
+	public void setupCompleted(PeerGroup peerGroup, AbstractBlockChain chain) {
+		this.walletLoadedTime = System.currentTimeMillis();
+		this.peerGroup = peerGroup;
+		this.chain = chain;
+		peerGroup.addConnectedEventListener(this);
+		peerGroup.addDisconnectedEventListener(this);
+		log.info("wallet and block store loaded in {}msec", walletLoadedTime - startTime);
+	}
+
+	/**
+	 * <p>
+	 * Count a bloom filter recalculation.
+	 * </p>
+	 */
+	public void filterRecalculated(FilterRecalculateMode mode) {
+		filterRecalculations.get(mode).incrementAndGet();
+	}
+
+	/**
+	 * <p>
+	 * The false positive rate the bloom filter is built for, PeerGroup has
+	 * no getter for it.
+	 * </p>
+	 */
+	public void setFilterFalsePositiveRate(double rate) {
+		this.filterFalsePositiveRate = rate;
+	}
+
+	/**
+	 * <p>
+	 * Count a recalculation request merged into a pending one.
+	 * </p>
+	 */
+	public void filterRecalculationMerged() {
+		filterRecalculationsMerged.incrementAndGet();
+	}
+
+	/**
+	 * <p>
+	 * Count the transactions of a filtered block.
+	 * </p>
+	 *
+	 * @param transactions
+	 *            transactions in the block
+	 * @param matched
+	 *            transactions the bloom filter matched
+	 * @param falsePositives
+	 *            matched transactions that were not for the wallet
+	 */
+	public void filteredBlock(int transactions, int matched, int falsePositives) {
+		filterTransactions.addAndGet(transactions);
+		filterMatched.addAndGet(matched);
+		filterFalsePositives.addAndGet(falsePositives);
+	}
+
+	/**
+	 * <p>
+	 * Count a broadcast and whether the peers acknowledge it.
+	 * </p>
+	 */
+	public void broadcastStarted(final Transaction tx, TransactionBroadcast broadcast) {
+		broadcasts.incrementAndGet();
+		final long started = System.currentTimeMillis();
+		Futures.addCallback(broadcast.future(), new FutureCallback<Transaction>() {
+			@Override
+			public void onSuccess(Transaction result) {
+				broadcastsAcknowledged.incrementAndGet();
+				lastAcknowledgeMsec = System.currentTimeMillis() - started;
+				log.debug("broadcast of tx: {} acknowledged in {}msec", tx.getHashAsString(), lastAcknowledgeMsec);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				broadcastsFailed.incrementAndGet();
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * <p>
+	 * Count a wallet save and its duration.
+	 * </p>
+	 *
+	 * @param msec
+	 *            time to write, sync and rename the file
+	 * @param bytes
+	 *            size of the written wallet file
+	 */
+	public void walletSaved(long msec, long bytes) {
+		walletSaves.incrementAndGet();
+		lastWalletSaveMsec = msec;
+		if (msec > maxWalletSaveMsec) {
+			maxWalletSaveMsec = msec;
+		}
+		walletFileBytes = bytes;
+	}
+
+	/**
+	 * <p>
+	 * Count a wallet change merged into a pending save.
+	 * </p>
+	 */
+	public void walletSaveMerged() {
+		walletSavesMerged.incrementAndGet();
+	}
+
+	public void walletSaveFailed() {
+		walletSavesFailed.incrementAndGet();
+	}
+
+	@Override
+	public void onPeerConnected(Peer peer, int peerCount) {
+		if (firstPeerTime == 0) {
+			firstPeerTime = System.currentTimeMillis();
+			log.info("first peer: {} connected in {}msec", peer.getAddress(), firstPeerTime - startTime);
+		}
+	}
+
+	@Override
+	public void onPeerDisconnected(Peer peer, int peerCount) {
+		log.info("peer: {} disconnected, {} peers left", peer.getAddress(), peerCount);
+	}
+
+	@Override
+	public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+		blocksDownloaded.incrementAndGet();
+		this.blocksLeft = blocksLeft;
+		super.onBlocksDownloaded(peer, block, filteredBlock, blocksLeft);
+	}
+
+	@Override
+	protected void startDownload(int blocks) {
+		downloadStartTime = System.currentTimeMillis();
+		downloadBlocks.set(blocksDownloaded.get());
+		blocksLeft = blocks;
+		log.info("downloading: {} blocks", blocks);
+	}
+
+	@Override
+	protected void progress(double pct, int blocksSoFar, Date date) {
+		log.debug("chain download: {}% done with: {} blocks to go, block date: {}", (int) pct, blocksSoFar, date);
+	}
+
+	@Override
+	protected void doneDownload() {
+		downloadDoneTime = System.currentTimeMillis();
+		blocksLeft = 0;
+		log.info("chain download done in {}msec", downloadDoneTime - startTime);
+	}
+
+	/**
+	 * <p>
+	 * Blocks per second of the chain download, over the download so far or
+	 * the whole download once it is done.
+	 * </p>
+	 *
+	 * @return the rate or null before the download has started
+	 */
+	public Double blocksPerSecond() {
+		long from = downloadStartTime;
+		if (from == 0) {
+			return null;
+		}
+		long to = downloadDoneTime != 0 ? downloadDoneTime : System.currentTimeMillis();
+		long blocks = blocksDownloaded.get() - downloadBlocks.get();
+		if (to <= from) {
+			return null;
+		}
+		return blocks * 1000.0 / (to - from);
+	}
+
+	/**
+	 * @return the current counters as the status command response
+	 */
+	public StatusJsonResponse status() {
+		StatusJsonResponse status = new StatusJsonResponse();
+		long now = System.currentTimeMillis();
+
+		Service k = kit;
+		status.setState(k == null ? null : k.state().toString(), startTime == 0 ? null : (now - startTime) / 1000);
+		status.setStartup(since(walletLoadedTime), since(firstPeerTime), since(downloadDoneTime));
+
+		AbstractBlockChain c = chain;
+		PeerGroup p = peerGroup;
+		List<StatusJsonResponse.PeerStatus> peers = new ArrayList<StatusJsonResponse.PeerStatus>();
+		Integer peersHeight = null;
+		if (p != null) {
+			peersHeight = p.getMostCommonChainHeight();
+			for (Peer peer : p.getConnectedPeers()) {
+				peers.add(new StatusJsonResponse.PeerStatus(
+					peer.getAddress().toString(),
+					pingOrNull(peer.getPingTime()),
+					pingOrNull(peer.getLastPingTime()),
+					peer.getBestHeight(),
+					peer.getPeerVersionMessage().subVer));
+			}
+		}
+		status.setSync(c == null ? null : c.getBestChainHeight(), peersHeight, blocksLeft,
+			       blocksDownloaded.get(), blocksPerSecond());
+		status.setPeers(peers);
+
+		Map<String, Long> recalculations = new LinkedHashMap<String, Long>();
+		for (Map.Entry<FilterRecalculateMode, AtomicLong> entry : filterRecalculations.entrySet()) {
+			recalculations.put(entry.getKey().toString(), entry.getValue().get());
+		}
+		status.setFilterRecalculations(recalculations);
+		status.setFilterRecalculationsMerged(filterRecalculationsMerged.get());
+		status.setFilter(filterFalsePositiveRate,
+				 c == null ? null : c.getFalsePositiveRate(),
+				 filterTransactions.get(), filterMatched.get(), filterFalsePositives.get());
+
+		status.setBroadcasts(broadcasts.get(), broadcastsAcknowledged.get(), broadcastsFailed.get(),
+				     lastAcknowledgeMsec < 0 ? null : lastAcknowledgeMsec);
+		status.setWalletSaves(walletSaves.get(), walletSavesMerged.get(), walletSavesFailed.get(),
+				      lastWalletSaveMsec < 0 ? null : lastWalletSaveMsec,
+				      maxWalletSaveMsec < 0 ? null : maxWalletSaveMsec,
+				      walletFileBytes < 0 ? null : walletFileBytes);
+		return status;
+	}
+
+	private void logMetrics() {
+		StatusJsonResponse status = status();
+		Long minPing = null;
+		for (StatusJsonResponse.PeerStatus peer : status.getPeers()) {
+			if (peer.getPingMsec() != null && (minPing == null || peer.getPingMsec() < minPing)) {
+				minPing = peer.getPingMsec();
+			}
+		}
+		long recalculations = 0;
+		for (Long count : status.getFilterRecalculations().values()) {
+			recalculations += count;
+		}
+		Double rate = status.getBlocksPerSecond();
+		log.info("metrics: state: {} height: {} peers height: {} headers remaining: {} blocks/s: {} peers: {} min ping: {}msec filter recalculations: {} merged: {} matched: {} false positives: {} broadcasts: {} acknowledged: {} failed: {} wallet saves: {} merged: {} last: {}msec bytes: {}",
+			 status.getState(),
+			 status.getChainHeight(),
+			 status.getPeersHeight(),
+			 status.getHeadersRemaining(),
+			 rate == null ? null : String.format("%.1f", rate),
+			 status.getPeers().size(),
+			 minPing,
+			 recalculations,
+			 status.getFilterRecalculationsMerged(),
+			 status.getFilterMatched(),
+			 status.getFilterFalsePositives(),
+			 status.getBroadcasts(),
+			 status.getBroadcastsAcknowledged(),
+			 status.getBroadcastsFailed(),
+			 status.getWalletSaves(),
+			 status.getWalletSavesMerged(),
+			 status.getLastWalletSaveMsec(),
+			 status.getWalletFileBytes());
+	}
+
+	private Long since(long time) {
+		if (time == 0 || startTime == 0) {
+			return null;
+		}
+		return time - startTime;
+	}
+
+	private static Long pingOrNull(long ping) {
+		return ping == Long.MAX_VALUE ? null : ping;
+	}
+}
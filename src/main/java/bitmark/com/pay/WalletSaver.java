@@ -0,0 +1,218 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Save the wallet file a fixed delay after it changes, in place of the
+ * bitcoinj autosave.
+ * </p>
+ * <p>
+ * bitcoinj writes the whole wallet again on every committed payment, on
+ * the paying thread. Here every change, new key and chain head only
+ * requests a save; the first request schedules it delay msec later and
+ * the requests that arrive in between are merged into it. A crash loses
+ * at most the changes of the last delay and the save that was running.
+ * </p>
+ * <p>
+ * The wallet is written to a temporary file that is synced and renamed
+ * over the wallet file, then the directory is synced so the rename
+ * survives a crash too.
+ * </p>
+ */
+public class WalletSaver implements NewBestBlockListener {
+	private static final Logger log = LoggerFactory.getLogger(WalletSaver.class);
+
+	private final Wallet wallet;
+	private final File file;
+	private final int delay;
+	private final WalletMetrics metrics;
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+
+	// saves do not wait for start() and stop()
+	private final Object saveLock = new Object();
+
+	private ScheduledExecutorService executor;
+
+	private final WalletChangeEventListener walletListener = new WalletChangeEventListener() {
+		@Override
+		public void onWalletChanged(Wallet wallet) {
+			request();
+		}
+	};
+
+	private final KeyChainEventListener keyListener = new KeyChainEventListener() {
+		@Override
+		public void onKeysAdded(List<ECKey> keys) {
+			request();
+		}
+	};
+
+	/**
+	 * @param wallet
+	 *            the wallet to save
+	 * @param file
+	 *            the wallet file
+	 * @param delay
+	 *            msec from a change to the save, 0 to save at once
+	 * @param metrics
+	 *            counts the saves
+	 */
+	public WalletSaver(Wallet wallet, File file, int delay, WalletMetrics metrics) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("wallet autosave delay: " + delay + " is negative");
+		}
+		this.wallet = wallet;
+		this.file = file;
+		this.delay = delay;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * <p>
+	 * Follow the wallet changes.
+	 * </p>
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "wallet saver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
+		wallet.addKeyChainEventListener(Threading.SAME_THREAD, keyListener);
+		log.info("wallet: {} saved {}msec after a change", file, delay);
+	}
+
+	/**
+	 * <p>
+	 * Stop following, drop the scheduled save and save now.
+	 * </p>
+	 */
+	public void stop() {
+		synchronized (this) {
+			if (executor == null) {
+				return;
+			}
+			wallet.removeChangeEventListener(walletListener);
+			wallet.removeKeyChainEventListener(keyListener);
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		pending.set(false);
+		try {
+			save();
+		} catch (IOException e) {
+			log.error("wallet: {} save on stop failed: {}", file, e);
+		}
+	}
+
+	// the wallet only keeps the last block seen, no event is sent for it
+	@Override
+	public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+		request();
+	}
+
+	private void request() {
+		if (!pending.compareAndSet(false, true)) {
+			metrics.walletSaveMerged();
+			return;
+		}
+		ScheduledExecutorService saver;
+		synchronized (this) {
+			saver = executor;
+		}
+		if (saver == null) {
+			// not started or stopping, stop() saves
+			pending.set(false);
+			return;
+		}
+		try {
+			saver.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// a change from now on asks for the next save
+					pending.set(false);
+					try {
+						save();
+					} catch (IOException e) {
+						log.error("wallet: {} save failed: {}", file, e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.set(false);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Write the wallet file now, on this thread.
+	 * </p>
+	 *
+	 * @throws IOException
+	 *             if the file could not be written or renamed
+	 */
+	public void save() throws IOException {
+		synchronized (saveLock) {
+			long start = System.currentTimeMillis();
+			File directory = file.getAbsoluteFile().getParentFile();
+			try {
+				// syncs the temporary file and renames it over the wallet file
+				wallet.saveToFile(File.createTempFile("wallet", null, directory), file);
+				syncDirectory(directory);
+			} catch (IOException e) {
+				metrics.walletSaveFailed();
+				throw e;
+			}
+			long msec = System.currentTimeMillis() - start;
+			metrics.walletSaved(msec, file.length());
+			log.debug("wallet: {} saved in {}msec", file, msec);
+		}
+	}
+
+	// make the rename durable, not every platform can open a directory
+	private static void syncDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("directory: {} not synced: {}", directory, e.toString());
+		}
+	}
+}
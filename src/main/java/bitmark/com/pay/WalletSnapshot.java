@@ -0,0 +1,117 @@
+// Copyright (c) 2014-2016 Bitmark Inc.
+// Use of this source code is governed by an ISC
+// license that can be found in the LICENSE file.
+
+package bitmark.com.pay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * <p>
+ * Compact copy of the wallet state kept next to the wallet file.
+ * </p>
+ * <p>
+ * Deliberately uses only java and gson classes, so that reading a snapshot
+ * does not pull in and initialise bitcoinj.
+ * </p>
+ */
+public class WalletSnapshot {
+	private Long estimated;
+	private Long available;
+	private String address;
+	private List<String> pending;
+	private Integer lastBlockHeight;
+	private Long lastBlockTime;
+	// when the snapshot was taken, milliseconds
+	private Long timestamp;
+
+	public WalletSnapshot(Long estimated, Long available, String address, List<String> pending,
+			      Integer lastBlockHeight, Long lastBlockTime, Long timestamp) {
+		this.estimated = estimated;
+		this.available = available;
+		this.address = address;
+		this.pending = pending;
+		this.lastBlockHeight = lastBlockHeight;
+		this.lastBlockTime = lastBlockTime;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * <p>
+	 * Read a snapshot file.
+	 * </p>
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @return the snapshot or null if there is none
+	 * @throws IOException
+	 *             if the file is unreadable
+	 */
+	public static WalletSnapshot read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			return new Gson().fromJson(in, WalletSnapshot.class);
+		} catch (JsonParseException e) {
+			throw new IOException("Unreadable snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Write the snapshot to a temporary file and rename it into place, so
+	 * readers never see a partial snapshot.
+	 * </p>
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer w = new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8)) {
+			new Gson().toJson(this, w);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public Long getEstimated() {
+		return estimated;
+	}
+
+	public Long getAvailable() {
+		return available;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public List<String> getPending() {
+		return pending;
+	}
+
+	public Integer getLastBlockHeight() {
+		return lastBlockHeight;
+	}
+
+	public Long getLastBlockTime() {
+		return lastBlockTime;
+	}
+
+	public Long getTimestamp() {
+		return timestamp;
+	}
+}
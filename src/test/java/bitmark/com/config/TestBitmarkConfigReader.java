@@ -0,0 +1,44 @@
+package bitmark.com.config;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBitmarkConfigReader {
+
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("config").toFile();
+		file = new File(directory, "testing.xml");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		BitmarkConfigReader reader = new BitmarkConfigReader(file.getPath());
+		assertTrue(reader.isDefault());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testInvalidValue() throws Exception {
+		// an error in the file, not a reason to use the built-in default
+		Files.write(file.toPath(), "<configuration><fee><fee_per_kb>-1</fee_per_kb></fee></configuration>"
+			    .getBytes(StandardCharsets.UTF_8));
+		new BitmarkConfigReader(file.getPath());
+	}
+}
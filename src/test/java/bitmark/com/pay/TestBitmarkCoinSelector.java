@@ -0,0 +1,120 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionConfidence.Source;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBitmarkCoinSelector {
+
+	private RegTestParams params;
+	private Wallet wallet;
+	private Address address;
+	private int next = 0;
+
+	@Before
+	public void setUp() {
+		params = RegTestParams.get();
+		Context.propagate(new Context(params));
+		wallet = new Wallet(params);
+		address = new ECKey().toAddress(params);
+	}
+
+	// a transaction of ours paying value, spending the parent or a coin from elsewhere
+	private Transaction tx(Transaction parent, long value, boolean confirmed) {
+		Transaction tx = new Transaction(params);
+		if (parent == null) {
+			TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] { (byte) next++ }));
+			tx.addInput(new TransactionInput(params, tx, new byte[0], outpoint));
+		} else {
+			tx.addInput(parent.getOutput(0));
+		}
+		tx.addOutput(Coin.valueOf(value), address);
+		tx.getConfidence().setSource(Source.SELF);
+		if (confirmed) {
+			tx.getConfidence().setAppearedAtChainHeight(1);
+		} else {
+			tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+		}
+		wallet.addWalletTransaction(new WalletTransaction(
+			confirmed ? WalletTransaction.Pool.UNSPENT : WalletTransaction.Pool.PENDING, tx));
+		return tx;
+	}
+
+	private static List<Long> values(CoinSelection selection) {
+		List<Long> values = new ArrayList<Long>();
+		for (TransactionOutput output : selection.gathered) {
+			values.add(output.getValue().value);
+		}
+		return values;
+	}
+
+	@Test
+	public void testFewestInputs() {
+		List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+		for (long value : new long[] { 1000, 4000, 6000, 7000 }) {
+			candidates.add(tx(null, value, true).getOutput(0));
+		}
+		BitmarkCoinSelector selector = new BitmarkCoinSelector(wallet, 10);
+
+		// the smallest single output covering the target
+		assertEquals(Arrays.asList(6000L), values(selector.select(Coin.valueOf(5000), candidates)));
+		assertEquals(Arrays.asList(4000L), values(selector.select(Coin.valueOf(4000), candidates)));
+
+		// largest first, the last one as small as will do
+		assertEquals(Arrays.asList(7000L, 4000L), values(selector.select(Coin.valueOf(10000), candidates)));
+
+		// not enough
+		assertEquals(18000, selector.select(Coin.valueOf(20000), candidates).valueGathered.value);
+	}
+
+	@Test
+	public void testConfirmedFirst() {
+		TransactionOutput confirmed = tx(null, 9000, true).getOutput(0);
+		TransactionOutput pending = tx(null, 4000, false).getOutput(0);
+		BitmarkCoinSelector selector = new BitmarkCoinSelector(wallet, 10);
+
+		assertEquals(Arrays.asList(9000L), values(selector.select(Coin.valueOf(4000), Arrays.asList(pending, confirmed))));
+		assertEquals(Arrays.asList(9000L, 4000L), values(selector.select(Coin.valueOf(12000), Arrays.asList(pending, confirmed))));
+
+		// only confirmed outputs
+		selector = new BitmarkCoinSelector(wallet, 0);
+		assertEquals(9000, selector.select(Coin.valueOf(12000), Arrays.asList(pending, confirmed)).valueGathered.value);
+	}
+
+	@Test
+	public void testUnconfirmedAncestors() {
+		Transaction first = tx(tx(null, 10000, true), 9000, false);
+		Transaction second = tx(first, 8000, false);
+		Transaction third = tx(second, 7000, false);
+		List<TransactionOutput> candidates = Arrays.asList(third.getOutput(0));
+
+		assertEquals(0, new BitmarkCoinSelector(wallet, 2).select(Coin.valueOf(1000), candidates).valueGathered.value);
+		assertEquals(7000, new BitmarkCoinSelector(wallet, 3).select(Coin.valueOf(1000), candidates).valueGathered.value);
+
+		// two chains together count once each
+		Transaction other = tx(null, 6000, false);
+		candidates = Arrays.asList(third.getOutput(0), other.getOutput(0));
+		assertEquals(Arrays.asList(7000L), values(new BitmarkCoinSelector(wallet, 3).select(Coin.valueOf(10000), candidates)));
+		assertEquals(13000, new BitmarkCoinSelector(wallet, 4).select(Coin.valueOf(10000), candidates).valueGathered.value);
+	}
+}
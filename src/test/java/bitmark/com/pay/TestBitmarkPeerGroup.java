@@ -0,0 +1,54 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TestBitmarkPeerGroup {
+
+	@Test
+	public void testRecalculationsMerged() throws Exception {
+		UnitTestParams params = UnitTestParams.get();
+		Context.propagate(new Context(params));
+		WalletMetrics metrics = new WalletMetrics();
+		BitmarkPeerGroup peerGroup = new BitmarkPeerGroup(params, null, metrics, null);
+		peerGroup.addWallet(new Wallet(params));
+		// no peers, the executor only runs once started
+		peerGroup.start();
+		peerGroup.setFilterRecalculateDelay(200);
+		try {
+			recalculate(peerGroup, metrics);
+		} finally {
+			peerGroup.stop();
+		}
+	}
+
+	private void recalculate(BitmarkPeerGroup peerGroup, WalletMetrics metrics) throws Exception {
+		// adding the wallet and starting recalculated already
+		long before = metrics.status().getFilterRecalculations().get("SEND_IF_CHANGED");
+		ListenableFuture<BloomFilter> first = peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+		ListenableFuture<BloomFilter> second = peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+		ListenableFuture<BloomFilter> third = peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+		assertSame(first, second);
+		assertSame(first, third);
+		first.get(5, TimeUnit.SECONDS);
+
+		assertEquals(Long.valueOf(2), metrics.status().getFilterRecalculationsMerged());
+		assertEquals(before + 1, (long) metrics.status().getFilterRecalculations().get("SEND_IF_CHANGED"));
+
+		// a new request after the recalculation waits again
+		ListenableFuture<BloomFilter> next = peerGroup.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+		assertNotSame(first, next);
+		next.get(5, TimeUnit.SECONDS);
+		assertEquals(before + 2, (long) metrics.status().getFilterRecalculations().get("SEND_IF_CHANGED"));
+	}
+}
@@ -0,0 +1,86 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBitmarkRegTestParams {
+
+	private BitmarkRegTestParams params;
+	private MemoryBlockStore store;
+	private BlockChain chain;
+	private Address to;
+
+	@Before
+	public void setUp() throws Exception {
+		// own instance so no blocks are remembered from other tests
+		params = new BitmarkRegTestParams();
+		Context.propagate(new Context(params));
+		store = new MemoryBlockStore(params);
+		chain = new BlockChain(params, store);
+		to = new ECKey().toAddress(params);
+	}
+
+	private void mine(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			assertTrue(chain.add(chain.getChainHead().getHeader().createNextBlock(to)));
+		}
+	}
+
+	// a block whose ancestors are not in the store
+	private StoredBlock orphan() throws Exception {
+		Block head = chain.getChainHead().getHeader();
+		Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, Sha256Hash.of("missing".getBytes()),
+					 head.getMerkleRoot(), head.getTimeSeconds() + 1, head.getDifficultyTarget(), 0,
+					 Collections.<Transaction>emptyList());
+		StoredBlock orphan = new StoredBlock(header, BigInteger.ONE, 5000);
+		store.put(orphan);
+		return orphan;
+	}
+
+	@Test
+	public void testSyncFromGenesis() throws Exception {
+		// past the first interval, where the walk used to reach genesis
+		mine(params.getInterval() + 10);
+		assertEquals(params.getInterval() + 10, chain.getBestChainHeight());
+	}
+
+	@Test
+	public void testMissingAncestors() throws Exception {
+		mine(10);
+		StoredBlock orphan = orphan();
+		try {
+			params.checkDifficultyTransitions(orphan, orphan.getHeader().createNextBlock(to), store);
+			fail("no ancestors but passed");
+		} catch (VerificationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		StoredBlock orphan = orphan();
+		params.addCheckpoint(orphan.getHeader().getHash());
+		Block next = orphan.getHeader().createNextBlock(to);
+		params.checkDifficultyTransitions(orphan, next, store);
+
+		// and the child of the checked block is known without a walk
+		StoredBlock storedNext = orphan.build(next);
+		store.put(storedNext);
+		params.checkDifficultyTransitions(storedNext, next.createNextBlock(to), store);
+	}
+}
@@ -2,6 +2,8 @@ package bitmark.com.pay;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,4 +38,21 @@ public class TestBitmarkWalletKit {
 		assertEquals(walletFileName, bitmarkWalletKit.getBitmarkWalletFileName());
 	}
 
+	@Test
+	public void testHostedWallets() {
+		bitmarkWalletKit.setHostedWallets(Arrays.asList("unit_a", "unit-b"));
+		assertEquals(Arrays.asList("unit_a", "unit-b"), bitmarkWalletKit.getHostedNames());
+
+		// own files, the same peers and block store
+		BitmarkWalletKit hosted = bitmarkWalletKit.getHosted("unit_a");
+		assertEquals("bitmarkWallet-" + net + "-unit_a", hosted.getBitmarkWalletFileName());
+		assertSame(bitmarkWalletKit.getWalletAppkit(), hosted.getWalletAppkit());
+		assertNull(bitmarkWalletKit.getHosted("unit_c"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidHostedWallet() {
+		bitmarkWalletKit.setHostedWallets(Arrays.asList("../other"));
+	}
+
 }
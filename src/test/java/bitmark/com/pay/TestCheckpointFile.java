@@ -0,0 +1,101 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCheckpointFile {
+
+	private NetworkParameters params;
+	private MemoryBlockStore store;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		// trivial proof of work, and mined blocks keep the same difficulty
+		params = new UnitTestParams() {
+			@Override
+			public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) {
+			}
+		};
+		Context.propagate(new Context(params));
+		store = new MemoryBlockStore(params);
+		file = File.createTempFile("checkpoints", ".txt");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private void mine(int count) throws Exception {
+		BlockChain chain = new BlockChain(params, store);
+		Address to = new ECKey().toAddress(params);
+		for (int i = 0; i < count; i++) {
+			assertTrue(chain.add(chain.getChainHead().getHeader().createNextBlock(to)));
+		}
+	}
+
+	@Test
+	public void testCheckpointsFromStore() throws Exception {
+		int interval = params.getInterval();
+		int height = CheckpointFile.MIN_DEPTH + 3 * interval + 1;
+		mine(height);
+
+		CheckpointFile checkpoints = new CheckpointFile(params, file);
+		assertFalse(checkpoints.read());
+		assertEquals(3, checkpoints.addFromStore(store));
+		checkpoints.write();
+
+		List<StoredBlock> blocks = checkpoints.getCheckpoints();
+		assertEquals(3, blocks.size());
+		for (int i = 0; i < blocks.size(); i++) {
+			assertEquals((i + 1) * interval, blocks.get(i).getHeight());
+			assertTrue(blocks.get(i).getHeight() <= height - CheckpointFile.MIN_DEPTH);
+		}
+
+		// read back, and nothing new from the same store
+		CheckpointFile reread = new CheckpointFile(params, file);
+		assertTrue(reread.read());
+		assertEquals(blocks, reread.getCheckpoints());
+		assertEquals(0, reread.addFromStore(store));
+
+		// more blocks add to the existing checkpoints
+		mine(interval);
+		assertEquals(1, reread.addFromStore(store));
+		assertEquals(4, reread.getCheckpoints().size());
+	}
+
+	@Test
+	public void testReadableByBitcoinj() throws Exception {
+		mine(CheckpointFile.MIN_DEPTH + 2 * params.getInterval());
+		CheckpointFile checkpoints = new CheckpointFile(params, file);
+		checkpoints.addFromStore(store);
+		checkpoints.write();
+
+		StoredBlock last = checkpoints.getCheckpoints().get(checkpoints.getCheckpoints().size() - 1);
+		try (FileInputStream in = new FileInputStream(file)) {
+			CheckpointManager manager = new CheckpointManager(params, in);
+			assertEquals(checkpoints.getCheckpoints().size(), manager.numCheckpoints());
+			assertEquals(last, manager.getCheckpointBefore(last.getHeader().getTimeSeconds() + 1));
+		}
+	}
+}
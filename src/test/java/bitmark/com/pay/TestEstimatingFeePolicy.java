@@ -0,0 +1,88 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Test;
+
+public class TestEstimatingFeePolicy {
+
+	private static EstimatingFeePolicy.Sample confirmed(long sent, long feePerKb, int blocks) {
+		return new EstimatingFeePolicy.Sample(sent, Coin.valueOf(feePerKb), blocks, true);
+	}
+
+	private static EstimatingFeePolicy.Sample pending(long sent, long feePerKb, int blocks) {
+		return new EstimatingFeePolicy.Sample(sent, Coin.valueOf(feePerKb), blocks, false);
+	}
+
+	@Test
+	public void testNoSamples() {
+		EstimatingFeePolicy policy = new EstimatingFeePolicy(Coin.valueOf(100000), 6);
+		assertEquals(Coin.valueOf(100000), policy.estimate(new ArrayList<EstimatingFeePolicy.Sample>()));
+	}
+
+	@Test
+	public void testNewestKnownOutcome() {
+		EstimatingFeePolicy policy = new EstimatingFeePolicy(Coin.valueOf(100000), 6);
+
+		// confirmed in time: a little less than it paid
+		assertEquals(Coin.valueOf(18000), policy.estimate(Arrays.asList(
+			confirmed(300, 20000, 2),
+			confirmed(200, 50000, 10))));
+
+		// confirmed late: more than it paid
+		assertEquals(Coin.valueOf(25000), policy.estimate(Arrays.asList(
+			confirmed(300, 20000, 8),
+			confirmed(200, 50000, 1))));
+
+		// a payment still within the target tells nothing yet
+		assertEquals(Coin.valueOf(18000), policy.estimate(Arrays.asList(
+			pending(400, 5000, 3),
+			confirmed(300, 20000, 2))));
+	}
+
+	@Test
+	public void testOutbidStuckPayment() {
+		EstimatingFeePolicy policy = new EstimatingFeePolicy(Coin.valueOf(100000), 6);
+		assertEquals(Coin.valueOf(37500), policy.estimate(Arrays.asList(
+			confirmed(400, 20000, 1),
+			pending(300, 30000, 9))));
+	}
+
+	@Test
+	public void testFollowsPayments() {
+		RegTestParams params = RegTestParams.get();
+		Context.propagate(new Context(params));
+		Wallet wallet = new Wallet(params);
+		EstimatingFeePolicy policy = new EstimatingFeePolicy(Coin.valueOf(100000), 6);
+		assertEquals(Coin.valueOf(100000), policy.feePerKb(wallet, null));
+
+		// a payment made after the first call, stuck for two hours
+		Transaction received = new Transaction(params);
+		received.addOutput(Coin.valueOf(100000), wallet.currentReceiveAddress());
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, received));
+		Transaction payment = new Transaction(params);
+		payment.addInput(received.getOutput(0));
+		payment.addOutput(Coin.valueOf(90000), new ECKey().toAddress(params));
+		try {
+			Utils.setMockClock();
+			wallet.commitTx(payment);
+			Utils.rollMockClock(2 * 60 * 60);
+
+			long feePerKb = 10000 * 1000 / payment.unsafeBitcoinSerialize().length;
+			assertEquals(Coin.valueOf((long) Math.ceil(feePerKb * EstimatingFeePolicy.RAISE)), policy.feePerKb(wallet, null));
+		} finally {
+			Utils.mockTime = null;
+		}
+	}
+}
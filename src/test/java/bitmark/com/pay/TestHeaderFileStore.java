@@ -0,0 +1,117 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.SPVBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHeaderFileStore {
+
+	private static final int CAPACITY = HeaderFileStore.MIN_CAPACITY;
+
+	private NetworkParameters params;
+	private File file;
+	private Address to;
+
+	@Before
+	public void setUp() throws Exception {
+		params = UnitTestParams.get();
+		Context.propagate(new Context(params));
+		file = File.createTempFile("headers", ".spvchain");
+		file.delete();
+		to = new ECKey().toAddress(params);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	// add count blocks on the chain head
+	private List<StoredBlock> extend(BlockStore store, int count) throws Exception {
+		List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+		StoredBlock head = store.getChainHead();
+		for (int i = 0; i < count; i++) {
+			// a second apart, createNextBlock(to) would pass the current time
+			Block header = head.getHeader();
+			head = head.build(header.createNextBlock(to, Block.BLOCK_VERSION_GENESIS, header.getTimeSeconds() + 1,
+								 head.getHeight() + 1));
+			store.put(head);
+			store.setChainHead(head);
+			blocks.add(head);
+		}
+		return blocks;
+	}
+
+	@Test
+	public void testRingOverwritesOldest() throws Exception {
+		HeaderFileStore store = new HeaderFileStore(params, file, CAPACITY, false, false);
+		List<StoredBlock> blocks = extend(store, CAPACITY + 10);
+		assertEquals(CAPACITY, store.getCapacity());
+		assertEquals(CAPACITY, store.size());
+		assertNull(store.get(params.getGenesisBlock().getHash()));
+		assertNull(store.get(blocks.get(9).getHeader().getHash()));
+		assertEquals(blocks.get(10), store.get(blocks.get(10).getHeader().getHash()));
+		store.close();
+
+		// the index is rebuilt from the file
+		store = new HeaderFileStore(params, file, HeaderFileStore.DEFAULT_CAPACITY, false, false);
+		assertEquals(CAPACITY, store.getCapacity());
+		assertEquals(CAPACITY, store.size());
+		assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+		assertNull(store.get(blocks.get(9).getHeader().getHash()));
+		assertEquals(blocks.get(10), store.get(blocks.get(10).getHeader().getHash()));
+		store.close();
+	}
+
+	@Test
+	public void testFullGrows() throws Exception {
+		HeaderFileStore store = new HeaderFileStore(params, file, CAPACITY, true, true);
+		List<StoredBlock> blocks = extend(store, CAPACITY + 10);
+		assertEquals(2 * CAPACITY, store.getCapacity());
+		assertEquals(store.getFileSize(), file.length());
+		assertEquals(CAPACITY + 11, store.size());
+		store.close();
+
+		store = new HeaderFileStore(params, file, CAPACITY, true, false);
+		assertNotNull(store.get(params.getGenesisBlock().getHash()));
+		for (StoredBlock block : blocks) {
+			assertEquals(block, store.get(block.getHeader().getHash()));
+		}
+		assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+		store.close();
+	}
+
+	@Test
+	public void testOpensSPVBlockStoreFile() throws Exception {
+		SPVBlockStore spv = new SPVBlockStore(params, file);
+		List<StoredBlock> blocks = extend(spv, 100);
+		spv.close();
+
+		HeaderFileStore store = new HeaderFileStore(params, file, CAPACITY, false, false);
+		assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS, store.getCapacity());
+		assertEquals(blocks.get(99), store.getChainHead());
+		extend(store, 100);
+		store.close();
+
+		// and back
+		spv = new SPVBlockStore(params, file);
+		assertEquals(199 + 1, spv.getChainHead().getHeight());
+		assertEquals(blocks.get(50), spv.get(blocks.get(50).getHeader().getHash()));
+		spv.close();
+	}
+}
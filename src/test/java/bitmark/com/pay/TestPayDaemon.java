@@ -0,0 +1,105 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import bitmark.com.json.CommandJsonRequest;
+import bitmark.com.json.ErrorJsonResponse;
+
+public class TestPayDaemon {
+
+	private File directory;
+	private File portFile;
+	private PayDaemon daemon;
+	private Thread thread;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("daemon").toFile();
+		portFile = new File(directory, "test.daemon");
+		BitmarkWalletKit kit = new BitmarkWalletKit(NetType.LOCAL_BITCOIN_REG, directory.getPath(), null);
+		daemon = new PayDaemon(new CommandProcessor(kit), portFile, 0);
+		thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					daemon.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		for (int i = 0; i < 100 && !portFile.exists(); i++) {
+			Thread.sleep(50);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		daemon.stop();
+		thread.join(5000);
+		for (File f : directory.listFiles()) {
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testToken() throws Exception {
+		File tokenFile = PayDaemon.tokenFile(portFile);
+		assertTrue(tokenFile.exists());
+		assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+			     Files.getPosixFilePermissions(tokenFile.toPath()));
+
+		// the client sends the token, so the command itself is answered
+		try (PayDaemonClient client = PayDaemonClient.connect(portFile)) {
+			String response = client.send(new CommandJsonRequest("encrypt", Collections.<String>emptyList(), null, null));
+			assertTrue(response.contains("not supported"));
+		}
+
+		// without it the request is refused and the connection closed
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port());
+		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			out.println("{\"command\":\"balance\"}");
+			out.flush();
+			ErrorJsonResponse error = new Gson().fromJson(in.readLine(), ErrorJsonResponse.class);
+			assertTrue(error.getError().startsWith("Not authorised"));
+			assertNull(in.readLine());
+		}
+	}
+
+	@Test
+	public void testHttpRefused() throws Exception {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port());
+		     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			out.print("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n\r\n{\"command\":\"pay\"}\r\n");
+			out.flush();
+			assertNull(in.readLine());
+		}
+	}
+
+	private int port() throws Exception {
+		return Integer.parseInt(new String(Files.readAllBytes(portFile.toPath()), StandardCharsets.UTF_8).trim());
+	}
+}
@@ -0,0 +1,115 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Test;
+
+public class TestPayIdCodec {
+
+	private static final int RUNS = 10000;
+
+	private final Random random = new Random(20170301);
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	// hex in random case
+	private String randomHex(byte[] bytes) {
+		char[] hex = Utils.HEX.encode(bytes).toCharArray();
+		for (int i = 0; i < hex.length; i++) {
+			if (random.nextBoolean()) {
+				hex[i] = Character.toUpperCase(hex[i]);
+			}
+		}
+		return new String(hex);
+	}
+
+	@Test
+	public void testEncodeIsParsedBack() {
+		for (int run = 0; run < RUNS; run++) {
+			byte[] bytes = randomBytes(1 + random.nextInt(PayIdCodec.MAX_PAY_ID_BYTES));
+			String payId = randomHex(bytes);
+			assertTrue(payId, PayIdCodec.isValid(payId));
+
+			byte[] program = PayIdCodec.encodeScript(payId);
+			List<ScriptChunk> chunks = new Script(program).getChunks();
+			assertEquals(2, chunks.size());
+			assertTrue(chunks.get(0).equalsOpCode(ScriptOpCodes.OP_RETURN));
+			assertArrayEquals(bytes, chunks.get(1).data);
+
+			int expectedOpcode = bytes.length < ScriptOpCodes.OP_PUSHDATA1 ? bytes.length : ScriptOpCodes.OP_PUSHDATA1;
+			assertEquals(expectedOpcode, chunks.get(1).opcode);
+
+			assertEquals(payId.toLowerCase(), PayIdCodec.decodeScript(program));
+		}
+	}
+
+	@Test
+	public void testShortPayIds() {
+		// a length below 0x10 used to get a single hex digit
+		for (int length = 1; length < 0x10; length++) {
+			byte[] bytes = randomBytes(length);
+			byte[] program = PayIdCodec.encodeScript(Utils.HEX.encode(bytes));
+			assertEquals(2 + length, program.length);
+			assertEquals(length, program[1]);
+			assertArrayEquals(bytes, Arrays.copyOfRange(program, 2, program.length));
+		}
+	}
+
+	@Test
+	public void testRejectsInvalid() {
+		assertFalse(PayIdCodec.isValid(null));
+		assertFalse(PayIdCodec.isValid(""));
+		assertFalse(PayIdCodec.isValid(Utils.HEX.encode(randomBytes(PayIdCodec.MAX_PAY_ID_BYTES + 1))));
+
+		String nonHex = "ghijklmnopqrstuvwxyzGHIJKLMNOPQRSTUVWXYZ -+x:/@`\u00e9\u0660";
+		for (int run = 0; run < RUNS; run++) {
+			String payId = Utils.HEX.encode(randomBytes(1 + random.nextInt(PayIdCodec.MAX_PAY_ID_BYTES)));
+
+			String odd = payId.substring(0, payId.length() - 1);
+			assertFalse(odd, PayIdCodec.isValid(odd));
+
+			char[] chars = payId.toCharArray();
+			chars[random.nextInt(chars.length)] = nonHex.charAt(random.nextInt(nonHex.length()));
+			String bad = new String(chars);
+			assertFalse(bad, PayIdCodec.isValid(bad));
+			try {
+				PayIdCodec.encodeScript(bad);
+				fail("encoded: " + bad);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testDecodeRejectsOtherScripts() {
+		assertNull(PayIdCodec.decodeScript(null));
+		assertNull(PayIdCodec.decodeScript(new byte[] {}));
+		assertNull(PayIdCodec.decodeScript(new byte[] {(byte) ScriptOpCodes.OP_RETURN}));
+		for (int run = 0; run < RUNS; run++) {
+			byte[] program = PayIdCodec.encodeScript(Utils.HEX.encode(randomBytes(1 + random.nextInt(PayIdCodec.MAX_PAY_ID_BYTES))));
+
+			byte[] truncated = Arrays.copyOf(program, program.length - 1);
+			assertNull(PayIdCodec.decodeScript(truncated));
+
+			byte[] longer = Arrays.copyOf(program, program.length + 1);
+			assertNull(PayIdCodec.decodeScript(longer));
+
+			byte[] notReturn = program.clone();
+			notReturn[0] = (byte) ScriptOpCodes.OP_DUP;
+			assertNull(PayIdCodec.decodeScript(notReturn));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Test;
+
+public class TestPayIdIndex {
+
+	private RegTestParams params = RegTestParams.get();
+
+	@Test
+	public void testRebuildAndReserve() throws Exception {
+		Context.propagate(new Context(params));
+		File directory = Files.createTempDirectory("payids").toFile();
+		File file = new File(directory, "test.payids");
+		Wallet wallet = new Wallet(params);
+
+		// a coin of ours, then a payment of it carrying a payId
+		Transaction received = new Transaction(params);
+		received.addOutput(Coin.valueOf(50000), wallet.currentReceiveAddress());
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, received));
+		Transaction payment = new Transaction(params);
+		TransactionInput input = payment.addInput(received.getOutput(0));
+		input.connect(received.getOutput(0));
+		payment.addOutput(Coin.valueOf(40000), new ECKey().toAddress(params));
+		payment.addOutput(new TransactionOutput(params, payment, Coin.ZERO, PayIdCodec.encodeScript("abcd")));
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, payment));
+
+		PayIdIndex index = new PayIdIndex(file);
+		index.open(wallet, null);
+		assertTrue(file.exists());
+		assertEquals(payment.getHashAsString(), index.get("ABCD"));
+
+		assertNull(index.reserve("ef01"));
+		index.complete("ef01", "1234");
+		assertEquals("1234", index.reserve("ef01"));
+		index.release("ef01");
+		index.close();
+
+		// read back from the file, not rebuilt
+		index = new PayIdIndex(file);
+		index.open(new Wallet(params), null);
+		assertEquals(payment.getHashAsString(), index.get("abcd"));
+		assertEquals("1234", index.get("ef01"));
+		index.close();
+
+		for (File f : directory.listFiles()) {
+			f.delete();
+		}
+		directory.delete();
+	}
+}
@@ -0,0 +1,90 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Test;
+
+import bitmark.com.json.WatchEventJsonResponse;
+
+public class TestPaymentWatcher {
+
+	private RegTestParams params = RegTestParams.get();
+
+	private final BlockingQueue<WatchEventJsonResponse> events = new LinkedBlockingQueue<WatchEventJsonResponse>();
+
+	private final PaymentWatcher.Listener listener = new PaymentWatcher.Listener() {
+		@Override
+		public void onEvent(WatchEventJsonResponse event) {
+			events.add(event);
+		}
+	};
+
+	private WatchEventJsonResponse next() throws InterruptedException {
+		WatchEventJsonResponse event = events.poll(5, TimeUnit.SECONDS);
+		assertNotNull(event);
+		return event;
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		Context.propagate(new Context(params));
+		Wallet wallet = new Wallet(params);
+
+		// a pending payment of a coin of ours
+		Transaction received = new Transaction(params);
+		received.addOutput(Coin.valueOf(50000), wallet.currentReceiveAddress());
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, received));
+		Transaction payment = new Transaction(params);
+		payment.addInput(received.getOutput(0)).connect(received.getOutput(0));
+		payment.addOutput(Coin.valueOf(40000), new ECKey().toAddress(params));
+		payment.addOutput(new TransactionOutput(params, payment, Coin.ZERO, PayIdCodec.encodeScript("abcd")));
+		payment.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+		wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, payment));
+
+		PaymentWatcher watcher = new PaymentWatcher(wallet, 2, Collections.singletonList("ABCD"), listener);
+		watcher.start();
+		assertEquals(1, watcher.size());
+
+		TransactionConfidence confidence = payment.getConfidence();
+		confidence.markBroadcastBy(new PeerAddress(params, InetAddress.getLoopbackAddress(), 18444));
+		confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+		WatchEventJsonResponse event = next();
+		assertEquals(PaymentWatcher.SEEN, event.getEvent());
+		assertEquals(payment.getHashAsString(), event.getTxId());
+		assertEquals("abcd", event.getPayId());
+		assertEquals(Integer.valueOf(1), event.getPeers());
+
+		confidence.setAppearedAtChainHeight(10);
+		confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+		event = next();
+		assertEquals(PaymentWatcher.CONFIRMED, event.getEvent());
+		assertEquals(Integer.valueOf(10), event.getHeight());
+		assertEquals(1, watcher.size());
+
+		confidence.incrementDepthInBlocks();
+		confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+		event = next();
+		assertEquals(PaymentWatcher.DEPTH, event.getEvent());
+		assertEquals(Integer.valueOf(2), event.getDepth());
+		assertEquals(0, watcher.size());
+
+		watcher.stop();
+	}
+}
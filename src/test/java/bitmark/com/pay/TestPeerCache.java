@@ -0,0 +1,82 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPeerCache {
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("peers", ".peers");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	@Test
+	public void testBestFirstAndReadBack() throws Exception {
+		PeerCache cache = new PeerCache(file);
+		cache.gossiped("10.0.0.1", 7002, now() - 60);
+		cache.succeeded("10.0.0.2", 7002, 80);
+		cache.succeeded("10.0.0.3", 7002, 20);
+		cache.gossiped("10.0.0.4", 7002, now());
+		// too old to keep
+		cache.gossiped("10.0.0.5", 7002, now() - 31 * 24 * 3600);
+		cache.write();
+
+		PeerCache read = new PeerCache(file);
+		read.read();
+		List<PeerCache.Entry> peers = read.getPeers();
+		assertEquals(4, peers.size());
+		assertEquals("10.0.0.3", peers.get(0).getHost());
+		assertEquals(20, peers.get(0).getLatency());
+		assertEquals("10.0.0.2", peers.get(1).getHost());
+		assertEquals("10.0.0.4", peers.get(2).getHost());
+		assertEquals("10.0.0.1", peers.get(3).getHost());
+		assertEquals(0, peers.get(3).getLastSuccess());
+	}
+
+	@Test
+	public void testFailuresAndLimit() throws Exception {
+		PeerCache cache = new PeerCache(file);
+		cache.succeeded("10.0.0.1", 7002, 10);
+		for (int i = 0; i < PeerCache.MAX_FAILURES; i++) {
+			assertEquals(1, cache.getPeers().size());
+			cache.failed("10.0.0.1", 7002);
+		}
+		assertTrue(cache.getPeers().isEmpty());
+
+		cache.succeeded("10.0.1.1", 7002, 10);
+		for (int i = 0; i < 2 * PeerCache.MAX_PEERS; i++) {
+			cache.gossiped("10.0.2." + i, 7002, now() - i);
+		}
+		List<PeerCache.Entry> peers = cache.getPeers();
+		assertEquals(PeerCache.MAX_PEERS, peers.size());
+		assertEquals("10.0.1.1", peers.get(0).getHost());
+		assertEquals("10.0.2.0", peers.get(1).getHost());
+	}
+
+	@Test
+	public void testUnreadableFileIsEmpty() throws Exception {
+		Files.write(file.toPath(), "not json".getBytes());
+		PeerCache cache = new PeerCache(file);
+		cache.read();
+		assertTrue(cache.getPeers().isEmpty());
+	}
+}
@@ -0,0 +1,89 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPeerProbe {
+
+	@Test
+	public void testAnsweringPeersFirst() throws Exception {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		try (ServerSocket first = new ServerSocket(0, 5, localhost);
+		     ServerSocket second = new ServerSocket(0, 5, localhost)) {
+			// a port that was free a moment ago refuses the connect
+			int closedPort;
+			try (ServerSocket closed = new ServerSocket(0, 5, localhost)) {
+				closedPort = closed.getLocalPort();
+			}
+			InetSocketAddress refused = new InetSocketAddress(localhost, closedPort);
+			InetSocketAddress answering = new InetSocketAddress(localhost, first.getLocalPort());
+			InetSocketAddress other = new InetSocketAddress(localhost, second.getLocalPort());
+
+			List<PeerProbe.Result> ranked = PeerProbe.rank(Arrays.asList(refused, answering, other), 2000, 2);
+			assertEquals(3, ranked.size());
+			assertTrue(ranked.get(0).isResponsive());
+			assertTrue(ranked.get(1).isResponsive());
+			assertTrue(ranked.get(0).getConnectMsec() <= ranked.get(1).getConnectMsec());
+			assertSame(refused, ranked.get(2).getConfigured());
+			assertFalse(ranked.get(2).isResponsive());
+			assertNotNull(ranked.get(2).getAddress());
+		}
+	}
+
+	@Test
+	public void testUnansweredNotWaitedFor() throws Exception {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		try (ServerSocket server = new ServerSocket(0, 5, localhost)) {
+			InetSocketAddress answering = new InetSocketAddress(localhost, server.getLocalPort());
+			// the literal is usable even when the probe is not waited for
+			InetSocketAddress unanswered = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 7002);
+
+			long start = System.currentTimeMillis();
+			List<PeerProbe.Result> ranked = PeerProbe.rank(Arrays.asList(unanswered, answering), 5000, 1);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertSame(answering, ranked.get(0).getConfigured());
+			assertSame(unanswered, ranked.get(1).getConfigured());
+			assertNotNull(ranked.get(1).getAddress());
+		}
+	}
+
+	@Test
+	public void testRefusedIsFailed() throws Exception {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		int closedPort;
+		try (ServerSocket closed = new ServerSocket(0, 5, localhost)) {
+			closedPort = closed.getLocalPort();
+		}
+		List<PeerProbe.Result> ranked = PeerProbe.rank(Arrays.asList(new InetSocketAddress(localhost, closedPort)), 2000, 1);
+		assertFalse(ranked.get(0).isResponsive());
+		assertTrue(ranked.get(0).isFailed());
+	}
+
+	@Test
+	public void testNotWaitedForIsNotFailed() throws Exception {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		try (ServerSocket first = new ServerSocket(0, 5, localhost);
+		     ServerSocket second = new ServerSocket(0, 5, localhost);
+		     ServerSocket third = new ServerSocket(0, 5, localhost)) {
+			List<InetSocketAddress> peers = Arrays.asList(
+				new InetSocketAddress(localhost, first.getLocalPort()),
+				new InetSocketAddress(localhost, second.getLocalPort()),
+				new InetSocketAddress(localhost, third.getLocalPort()));
+
+			// more peers answer than are wanted, none of them failed
+			List<PeerProbe.Result> ranked = PeerProbe.rank(peers, 2000, 1);
+			assertEquals(3, ranked.size());
+			assertTrue(ranked.get(0).isResponsive());
+			for (PeerProbe.Result result : ranked) {
+				assertFalse(result.isFailed());
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Test;
+
+public class TestSnapshotWriter {
+
+	// a one-shot command: start the background writers and return from main
+	public static void main(String[] args) throws Exception {
+		RegTestParams params = RegTestParams.get();
+		Context.propagate(new Context(params));
+		Wallet wallet = new Wallet(params);
+		BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+
+		new SnapshotWriter(new File(args[0])).start(wallet, chain);
+		new WalletMetrics().start(new WalletAppKit(params, new File(args[0]).getParentFile(), "test"), 60);
+	}
+
+	@Test
+	public void testProcessExits() throws Exception {
+		File directory = Files.createTempDirectory("snapshot").toFile();
+		File file = new File(directory, "test.snapshot");
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						     TestSnapshotWriter.class.getName(), file.getPath())
+			.redirectErrorStream(true)
+			.redirectOutput(Redirect.INHERIT)
+			.start();
+
+		// no thread of the writers may keep the JVM alive
+		boolean exited = process.waitFor(30, TimeUnit.SECONDS);
+		if (!exited) {
+			process.destroyForcibly();
+		}
+		assertTrue("process did not exit after main returned", exited);
+		assertEquals(0, process.exitValue());
+
+		file.delete();
+		directory.delete();
+	}
+}
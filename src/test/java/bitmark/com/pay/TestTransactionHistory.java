@@ -0,0 +1,83 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTransactionHistory {
+
+	private RegTestParams params;
+	private Wallet wallet;
+	private int next = 0;
+
+	@Before
+	public void setUp() {
+		params = RegTestParams.get();
+		Context.propagate(new Context(params));
+		wallet = new Wallet(params);
+	}
+
+	// a payment to us confirmed at height as the offset-th of its block, or pending for height 0
+	private Transaction tx(int height, int offset) {
+		Transaction tx = new Transaction(params);
+		TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] { (byte) next++ }));
+		tx.addInput(new TransactionInput(params, tx, new byte[0], outpoint));
+		tx.addOutput(Coin.valueOf(10000), wallet.currentReceiveAddress());
+		if (height > 0) {
+			tx.getConfidence().setAppearedAtChainHeight(height);
+			tx.addBlockAppearance(Sha256Hash.of(new byte[] { (byte) height }), offset);
+		} else {
+			tx.getConfidence().setConfidenceType(ConfidenceType.PENDING);
+		}
+		wallet.addWalletTransaction(new WalletTransaction(
+			height > 0 ? WalletTransaction.Pool.UNSPENT : WalletTransaction.Pool.PENDING, tx));
+		return tx;
+	}
+
+	private static List<Transaction> all(TransactionHistory.Page page) {
+		return new ArrayList<Transaction>(page.transactions);
+	}
+
+	@Test
+	public void testPages() {
+		Transaction pending = tx(0, 0);
+		Transaction later = tx(5, 0);
+		Transaction second = tx(3, 1);
+		Transaction first = tx(3, 0);
+
+		TransactionHistory.Page page = TransactionHistory.page(wallet, 0, null, 2);
+		assertEquals(Arrays.asList(first, second), all(page));
+		assertNotNull(page.next);
+
+		page = TransactionHistory.page(wallet, 0, page.next, 2);
+		assertEquals(Arrays.asList(later, pending), all(page));
+		assertNull(page.next);
+
+		// exactly the limit left: no empty page after it
+		page = TransactionHistory.page(wallet, 0, null, 4);
+		assertEquals(Arrays.asList(first, second, later, pending), all(page));
+		assertNull(page.next);
+
+		assertEquals(Arrays.asList(later, pending), all(TransactionHistory.page(wallet, 4, null, 10)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCursor() {
+		TransactionHistory.page(wallet, 0, "3.x.abcd", 10);
+	}
+}
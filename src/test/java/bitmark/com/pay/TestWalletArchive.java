@@ -0,0 +1,117 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Test;
+
+public class TestWalletArchive {
+
+	private RegTestParams params = RegTestParams.get();
+
+	// a transaction confirmed at height paying values to address, spending
+	// the first output of parent or a coin from elsewhere
+	private Transaction tx(Wallet wallet, WalletTransaction.Pool pool, TransactionOutput parent, int height,
+			Address address, long... values) {
+		Transaction tx = new Transaction(params);
+		if (parent == null) {
+			TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] { (byte) height }));
+			tx.addInput(new TransactionInput(params, tx, new byte[0], outpoint));
+		} else {
+			tx.addInput(parent).connect(parent);
+		}
+		for (long value : values) {
+			tx.addOutput(Coin.valueOf(value), address);
+		}
+		tx.getConfidence().setAppearedAtChainHeight(height);
+		wallet.addWalletTransaction(new WalletTransaction(pool, tx));
+		return tx;
+	}
+
+	private static Wallet read(File file) throws Exception {
+		try (FileInputStream in = new FileInputStream(file)) {
+			return new WalletProtobufSerializer().readWallet(in);
+		}
+	}
+
+	@Test
+	public void testArchive() throws Exception {
+		Context.propagate(new Context(params));
+		File directory = Files.createTempDirectory("archive").toFile();
+		File walletFile = new File(directory, "test.wallet");
+		File archiveFile = new File(directory, "test.archive");
+		Wallet wallet = new Wallet(params);
+		Address ours = wallet.currentReceiveAddress();
+		Address other = new ECKey().toAddress(params);
+
+		// spent and deep: archived, its spender stays
+		Transaction received = tx(wallet, WalletTransaction.Pool.SPENT, null, 1, ours, 50000);
+		received.addOutput(new TransactionOutput(params, received, Coin.ZERO, PayIdCodec.encodeScript("abcd")));
+		Transaction spender = tx(wallet, WalletTransaction.Pool.UNSPENT, received.getOutput(0), 2, ours, 40000);
+
+		// spent and deep, but its parent is kept
+		Transaction parent = tx(wallet, WalletTransaction.Pool.UNSPENT, null, 3, ours, 30000, 20000);
+		Transaction paid = tx(wallet, WalletTransaction.Pool.SPENT, parent.getOutput(0), 4, other, 25000);
+
+		// spent and deep, but its spender is still pending
+		Transaction unsettled = tx(wallet, WalletTransaction.Pool.SPENT, null, 5, ours, 15000);
+		Transaction pending = tx(wallet, WalletTransaction.Pool.PENDING, unsettled.getOutput(0), 6, ours, 14000);
+		pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+
+		// spent and deep, but its spender is too shallow
+		Transaction early = tx(wallet, WalletTransaction.Pool.SPENT, null, 7, ours, 12000);
+		tx(wallet, WalletTransaction.Pool.UNSPENT, early.getOutput(0), 160, ours, 11000);
+
+		// spent but too shallow
+		Transaction recent = tx(wallet, WalletTransaction.Pool.SPENT, null, 150, ours, 10000);
+		tx(wallet, WalletTransaction.Pool.UNSPENT, recent.getOutput(0), 151, ours, 9000);
+
+		wallet.setLastBlockSeenHash(Sha256Hash.of(new byte[] { 1 }));
+		wallet.setLastBlockSeenHeight(200);
+		wallet.saveToFile(walletFile);
+		Coin balance = read(walletFile).getBalance();
+
+		WalletArchive archive = new WalletArchive(params, walletFile, archiveFile);
+		assertEquals(1, archive.archive(100));
+		assertEquals(0, archive.archive(100));
+
+		Wallet pruned = read(walletFile);
+		assertNull(pruned.getTransaction(received.getHash()));
+		assertNotNull(pruned.getTransaction(spender.getHash()));
+		assertNotNull(pruned.getTransaction(paid.getHash()));
+		assertNotNull(pruned.getTransaction(recent.getHash()));
+		assertNotNull(pruned.getTransaction(unsettled.getHash()));
+		assertNotNull(pruned.getTransaction(early.getHash()));
+		assertEquals(balance, pruned.getBalance());
+
+		List<WalletArchive.Entry> found = archive.find(received.getHashAsString().toUpperCase());
+		assertEquals(1, found.size());
+		assertEquals("abcd", found.get(0).getPayId());
+		assertEquals(Integer.valueOf(1), found.get(0).getHeight());
+		assertEquals(received.getHashAsString(), archive.find("abcd").get(0).getTxId());
+		assertTrue(archive.find(paid.getHashAsString()).isEmpty());
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+}
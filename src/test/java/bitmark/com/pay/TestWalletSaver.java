@@ -0,0 +1,48 @@
+package bitmark.com.pay;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Test;
+
+public class TestWalletSaver {
+
+	@Test
+	public void testChangesMerged() throws Exception {
+		UnitTestParams params = UnitTestParams.get();
+		Context.propagate(new Context(params));
+		File directory = Files.createTempDirectory("saver").toFile();
+		File file = new File(directory, "test.wallet");
+		Wallet wallet = new Wallet(params);
+		WalletMetrics metrics = new WalletMetrics();
+		WalletSaver saver = new WalletSaver(wallet, file, 200, metrics);
+		saver.start();
+		try {
+			for (int i = 0; i < 5; i++) {
+				wallet.importKey(new ECKey());
+			}
+			assertFalse(file.exists());
+
+			long end = System.currentTimeMillis() + 5000;
+			while (metrics.status().getWalletSaves() == 0 && System.currentTimeMillis() < end) {
+				Thread.sleep(50);
+			}
+			assertEquals(Long.valueOf(1), metrics.status().getWalletSaves());
+			assertEquals(Long.valueOf(4), metrics.status().getWalletSavesMerged());
+			assertEquals(Long.valueOf(file.length()), metrics.status().getWalletFileBytes());
+			assertEquals(1, directory.list().length);
+		} finally {
+			saver.stop();
+		}
+		// stop saves once more
+		assertEquals(Long.valueOf(2), metrics.status().getWalletSaves());
+		file.delete();
+		directory.delete();
+	}
+}